@@ -0,0 +1,178 @@
+package com.distribution.chat.client.src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A class represented the length prefixed binary protocol of the client,
+ * every message is a frame with a fixed header of opcode (1 byte), meta length (1 byte),
+ * topic length (2 bytes) and payload length (4 bytes), followed by the meta, the topic and the raw payload,
+ * a command may carry a "#id" meta, and then its reply carries the same "#id" meta
+ */
+public class BinaryCodec {
+
+    static final byte MAGIC = 0x00;
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    //client to server opcodes
+    static final byte REGISTER = 0x01;
+    static final byte LEAVE = 0x02;
+    static final byte SEND = 0x03;
+    static final byte CLOSE = 0x04;
+    static final byte TOPICS = 0x05;
+    static final byte STATS = 0x06;
+    static final byte BATCH = 0x07;
+    //server to client opcodes (CLOSE is used by both sides)
+    static final byte OK = 0x10;
+    static final byte ERROR = 0x11;
+    static final byte DELIVER = 0x12;
+    static final byte TOPICS_REPLY = 0x13;
+    static final byte STATS_REPLY = 0x14;
+
+    private BinaryCodec()
+    {
+    }
+
+    /**
+     * A method that tells the server this connection speaks the binary protocol, must be the first bytes sent
+     * @param out - the output stream to the server
+     */
+    static void writeHandshake(OutputStream out) throws IOException
+    {
+        out.write(new byte[]{MAGIC, VERSION});
+        out.flush();
+    }
+
+    /**
+     * A method that encode a command to the server as a frame
+     * @param opcode - the opcode of the command
+     * @param requestId - the request id the reply is tagged with, 0 if none
+     * @param topic - the topic of the command, null if none
+     * @param payload - the content of the command, null if none
+     * @return the encoded frame
+     */
+    static byte[] encode(byte opcode, long requestId, String topic, String payload)
+    {
+        return encode(opcode, requestId, null, topic, payload);
+    }
+
+    /**
+     * A method that encode a command to the server as a frame, with an option of the command in the meta
+     * @param opcode - the opcode of the command
+     * @param requestId - the request id the reply is tagged with, 0 if none
+     * @param option - the option of the command after the request id (such as the CONFLATE of a REGISTER), null if none
+     * @param topic - the topic of the command, null if none
+     * @param payload - the content of the command, null if none
+     * @return the encoded frame
+     */
+    static byte[] encode(byte opcode, long requestId, String option, String topic, String payload)
+    {
+        String meta = (requestId == 0 ? "" : "#" + requestId) + (option == null ? "" : " " + option);
+        byte[] metaBytes = meta.trim().getBytes(StandardCharsets.UTF_8);
+        byte[] topicBytes = topic == null ? new byte[0] : topic.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = payload == null ? new byte[0] : payload.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(HEADER_SIZE + metaBytes.length + topicBytes.length + payloadBytes.length)
+                .put(opcode)
+                .put((byte) metaBytes.length)
+                .putShort((short) topicBytes.length)
+                .putInt(payloadBytes.length)
+                .put(metaBytes)
+                .put(topicBytes)
+                .put(payloadBytes)
+                .array();
+    }
+
+    /**
+     * A method that encode a batch of messages as a single BATCH frame, every entry of the payload is
+     * topic length (2 bytes), topic, content length (4 bytes) and the content
+     * @param requestId - the request id the reply is tagged with, 0 if none
+     * @param messages - the contents of the messages by their topic
+     * @return the encoded frame
+     */
+    static byte[] encodeBatch(long requestId, Map<String, ? extends List<String>> messages)
+    {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        try {
+            for (Map.Entry<String, ? extends List<String>> topic : messages.entrySet()) {
+                byte[] topicBytes = topic.getKey().getBytes(StandardCharsets.UTF_8);
+                for (String content : topic.getValue()) {
+                    byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(topicBytes.length);
+                    out.write(topicBytes);
+                    out.writeInt(contentBytes.length);
+                    out.write(contentBytes);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //a byte array stream does not fail
+        }
+        byte[] metaBytes = requestId == 0 ? new byte[0] : ("#" + requestId).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(HEADER_SIZE + metaBytes.length + entries.size())
+                .put(BATCH)
+                .put((byte) metaBytes.length)
+                .putShort((short) 0)
+                .putInt(entries.size())
+                .put(metaBytes)
+                .put(entries.toByteArray())
+                .array();
+    }
+
+    /**
+     * A method that read a single frame from the server, and convert it to the line the text protocol would send,
+     * a reply tagged with a "#id" meta becomes a "#id reply" line
+     * @param in - the input stream from the server
+     * @return the line of the frame, or null if the server closed the connection
+     */
+    static String readFrameAsLine(DataInputStream in) throws IOException
+    {
+        byte[] header = new byte[HEADER_SIZE];
+        try {
+            in.readFully(header);
+        } catch (EOFException e) {
+            return null;
+        }
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        byte opcode = fields.get();
+        byte[] meta = new byte[fields.get() & 0xFF];
+        byte[] topic = new byte[fields.getShort() & 0xFFFF];
+        byte[] payload = new byte[fields.getInt()];
+        in.readFully(meta);
+        in.readFully(topic);
+        in.readFully(payload);
+
+        String text = new String(payload, StandardCharsets.UTF_8);
+        String tag = opcode != DELIVER && meta.length > 0 && meta[0] == '#'
+                ? new String(meta, StandardCharsets.UTF_8).split(" ")[0] + " " : "";
+        switch (opcode) {
+            case OK:
+                return tag + "OK";
+            case ERROR:
+                return tag + (text.isEmpty() ? "ERROR" : "ERROR - " + text);
+            case CLOSE:
+                return "CLOSE";
+            case TOPICS_REPLY:
+                return tag + "*topics-[" + text.replace("\n", ", ") + "]";
+            case STATS_REPLY:
+                return tag + "*stats-" + text;
+            case DELIVER:
+                //the meta is "ip:port time", followed by the sequence number after a replaying REGISTER
+                String[] metaFields = new String(meta, StandardCharsets.UTF_8).split(" ");
+                String sender = metaFields.length > 2 ? metaFields[0] + " " + metaFields[1] + " #" + metaFields[2] : String.join(" ", metaFields);
+                return "( " + new String(topic, StandardCharsets.UTF_8) + " ) " + sender
+                        + " - " + (text.isEmpty() ? "" : " " + text);
+            default:
+                return "";
+        }
+    }
+}
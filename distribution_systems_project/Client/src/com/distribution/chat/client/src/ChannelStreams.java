@@ -0,0 +1,82 @@
+package com.distribution.chat.client.src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A class represented the streams of a blocking socket channel, such as a unix domain socket,
+ * the streams of Channels lock the channel for a read and a write alike, so a reader thread that waits for the server
+ * would stop every command of the client, these streams read and write the channel directly instead
+ */
+final class ChannelStreams {
+
+    private ChannelStreams()
+    {
+    }
+
+    /**
+     * A method that create the input stream of a channel
+     * @param channel - a connected blocking channel
+     * @return A stream that reads the channel
+     */
+    static InputStream input(SocketChannel channel)
+    {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException
+            {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException
+            {
+                if (length == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * A method that create the output stream of a channel
+     * @param channel - a connected blocking channel
+     * @return A stream that writes the channel
+     */
+    static OutputStream output(SocketChannel channel)
+    {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,443 @@
+package com.distribution.chat.client.src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A class represented an embeddable client of a single server connection,
+ * every command returns a future of its reply, and many commands may be in flight at once,
+ * the commands are tagged with increasing request ids that the server echoes on the replies, so the replies are matched by id,
+ * a SEND is acknowledged by the server once the message was forwarded to the subscribers,
+ * the published messages of the registered topics go to the listener, from the reader thread of the connection
+ */
+public class ChatClient implements AutoCloseable {
+
+    private static final String CONFLATE_OPTION = "CONFLATE"; //the REGISTER option that keeps only the latest message of a topic
+    private static final String WHERE_OPTION = "WHERE"; //the REGISTER option that filters the content of the messages
+
+    private final Closeable connection; //the socket or the unix domain socket channel
+    private final InputStream in;
+    private final boolean binary;
+    private final OutputStream out;
+    private final MessageListener listener;
+    private final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>(); //request id -> the future of its reply
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicInteger writers = new AtomicInteger(); //the threads writing or waiting to write
+    private final AtomicBoolean closeReported = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    private ChatClient(Closeable connection, InputStream in, OutputStream out, boolean binary, MessageListener listener)
+    {
+        this.connection = connection;
+        this.in = in;
+        this.binary = binary;
+        this.listener = listener;
+        this.out = new BufferedOutputStream(out);
+    }
+
+    /**
+     * A method that connect to a server and start the reader thread of the connection
+     * @param host - the host of the server
+     * @param port - the port of the server
+     * @param binary - true to speak the binary protocol, false for the text protocol
+     * @param listener - the listener of the published messages and of the closing of the connection
+     * @return the connected client
+     * @throws IOException if the server can not be connected
+     */
+    public static ChatClient connect(String host, int port, boolean binary, MessageListener listener) throws IOException
+    {
+        Socket socket = new Socket(host, port);
+        try {
+            socket.setTcpNoDelay(true);
+            return start(new ChatClient(socket, socket.getInputStream(), socket.getOutputStream(), binary, listener), host + ":" + port);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A method that connect to a server on the same host through its unix domain socket, and start the reader thread of the connection,
+     * the connection speaks the same protocols as a connection to the port of the server
+     * @param socketPath - the path of the socket file of the server
+     * @param binary - true to speak the binary protocol, false for the text protocol
+     * @param listener - the listener of the published messages and of the closing of the connection
+     * @return the connected client
+     * @throws IOException if the server can not be connected
+     */
+    public static ChatClient connect(Path socketPath, boolean binary, MessageListener listener) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        try {
+            return start(new ChatClient(channel, ChannelStreams.input(channel), ChannelStreams.output(channel), binary, listener), socketPath.toString());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A method that send the handshake of the binary protocol, and start the reader thread of a new connection
+     * @param client - the connected client
+     * @param server - the address of the server, for the name of the thread
+     * @return the client
+     * @throws IOException if the handshake can not be sent
+     */
+    private static ChatClient start(ChatClient client, String server) throws IOException
+    {
+        if (client.binary) {
+            BinaryCodec.writeHandshake(client.out);
+        }
+        Thread reader = new Thread(client::readReplies, "chat-client-" + server);
+        reader.setDaemon(true);
+        reader.start();
+        return client;
+    }
+
+    /**
+     * A method that register to a topic or a topic filter
+     * @param topic - the topic or the filter
+     * @return a future that completes when the server registered the client, or fails with the ERROR of the server
+     */
+    public CompletableFuture<Void> register(String topic)
+    {
+        return request("REGISTER", BinaryCodec.REGISTER, topic, null).thenApply(reply -> null);
+    }
+
+    /**
+     * A method that register to a topic or a topic filter, and keep only the latest message of each of its topics
+     * waiting for the client, so a slow client skips the outdated values instead of falling behind,
+     * the server sends the last message of each topic at once
+     * @param topic - the topic or the filter
+     * @return a future that completes when the server registered the client, or fails with the ERROR of the server
+     */
+    public CompletableFuture<Void> registerConflated(String topic)
+    {
+        return request("REGISTER", BinaryCodec.REGISTER, topic, null, CONFLATE_OPTION).thenApply(reply -> null);
+    }
+
+    /**
+     * A method that register to a topic or a topic filter, and get only the messages whose content passes a filter,
+     * the filter is evaluated by the server, so the other messages of the topic are not sent at all
+     * @param topic - the topic or the filter
+     * @param where - the content filter expression: "PREFIX text", "CONTAINS text", "REGEX pattern" or "key=value"
+     * @return a future that completes when the server registered the client, or fails with the ERROR of the server
+     */
+    public CompletableFuture<Void> registerWhere(String topic, String where)
+    {
+        if (where == null || where.trim().isEmpty() || where.contains("\n")) {
+            return failed(new IllegalArgumentException("a content filter must not be empty or contain line breaks - '" + where + "'"));
+        }
+        //a binary REGISTER carries the expression as its payload
+        return request("REGISTER", BinaryCodec.REGISTER, topic, binary ? where : null, binary ? null : WHERE_OPTION + " " + where)
+                .thenApply(reply -> null);
+    }
+
+    /**
+     * A method that leave a registered topic or topic filter
+     * @param topic - the topic or the filter
+     * @return a future that completes when the server unregistered the client, or fails with the ERROR of the server
+     */
+    public CompletableFuture<Void> leave(String topic)
+    {
+        return request("LEAVE", BinaryCodec.LEAVE, topic, null).thenApply(reply -> null);
+    }
+
+    /**
+     * A method that publish a message to a topic
+     * @param topic - the topic, must not be a wildcard filter
+     * @param content - the content of the message
+     * @return a future that completes when the server forwarded the message to the subscribers
+     */
+    public CompletableFuture<Void> send(String topic, String content)
+    {
+        if (!binary && (content.indexOf('\n') >= 0 || content.indexOf('\r') >= 0)) {
+            return failed(new IllegalArgumentException("a message of the text protocol can not contain line breaks"));
+        }
+        return request("SEND", BinaryCodec.SEND, topic, content).thenApply(reply -> null);
+    }
+
+    /**
+     * A method that publish many messages at once, the binary protocol sends them in a single BATCH frame,
+     * that the server fans out once per topic, the text protocol pipelines a SEND per message instead,
+     * either way the messages of a topic are delivered in the order of their list,
+     * a BATCH with a wildcard topic is rejected as a whole, while the pipelined SENDs of the other topics are published
+     * @param messages - the contents of the messages by their topic, none of the topics may be a wildcard filter
+     * @return a future that completes when the server forwarded all the messages to the subscribers
+     */
+    public CompletableFuture<Void> sendBatch(Map<String, ? extends List<String>> messages)
+    {
+        if (!binary) {
+            List<CompletableFuture<Void>> sends = new ArrayList<>();
+            for (Map.Entry<String, ? extends List<String>> topic : messages.entrySet()) {
+                for (String content : topic.getValue()) {
+                    sends.add(send(topic.getKey(), content));
+                }
+            }
+            return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0]));
+        }
+        if (messages.values().stream().allMatch(List::isEmpty)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        for (String topic : messages.keySet()) {
+            if (topic.isEmpty() || topic.contains(" ") || topic.contains("\n")) {
+                return failed(new IllegalArgumentException("a topic must not be empty or contain spaces or line breaks - '" + topic + "'"));
+            }
+        }
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        long requestId = nextRequestId.incrementAndGet();
+        return send(requestId, reply, BinaryCodec.encodeBatch(requestId, messages)).thenApply(ok -> null);
+    }
+
+    /**
+     * A method that retrieve the topics the client registered to
+     * @return a future of the registered topics and filters
+     */
+    public CompletableFuture<List<String>> topics()
+    {
+        return request("getRegisterTopics", BinaryCodec.TOPICS, null, null).thenApply(reply -> {
+            //"*topics-[a, b]"
+            String list = reply.substring(reply.indexOf('[') + 1, reply.lastIndexOf(']'));
+            return list.isEmpty() ? Collections.emptyList() : Arrays.asList(list.split(", "));
+        });
+    }
+
+    /**
+     * A method that retrieve the metrics of the server
+     * @return a future of the metrics report in a single line
+     */
+    public CompletableFuture<String> stats()
+    {
+        //"*stats-report"
+        return request("STATS", BinaryCodec.STATS, null, null).thenApply(reply -> reply.substring(reply.indexOf('-') + 1));
+    }
+
+    /**
+     * A method that checks if the connection is closed
+     * @return true if the connection is closed
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * A method that ask the server to close the connection and close it,
+     * the requests without a reply yet fail, and the listener is told the connection was closed
+     */
+    @Override
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+        try {
+            write(binary ? BinaryCodec.encode(BinaryCodec.CLOSE, 0, null, null) : "CLOSE\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ignored) {
+            //the connection is closed anyway
+        }
+        connectionClosed(null);
+    }
+
+    /**
+     * A method that send a command tagged with the next request id, and register the future of its reply
+     * @param action - the action of the text protocol
+     * @param opcode - the opcode of the binary protocol
+     * @param topic - the topic of the command, null if none
+     * @param content - the content of the command, null if none
+     * @return the future of the reply line, without its tag
+     */
+    private CompletableFuture<String> request(String action, byte opcode, String topic, String content)
+    {
+        return request(action, opcode, topic, content, null);
+    }
+
+    /**
+     * A method that send a command with an option after its topic, tagged with the next request id, and register the future of its reply
+     * @param action - the action of the text protocol
+     * @param opcode - the opcode of the binary protocol
+     * @param topic - the topic of the command, null if none
+     * @param content - the content of the command, null if none
+     * @param option - the option of the command, null if none
+     * @return the future of the reply line, without its tag
+     */
+    private CompletableFuture<String> request(String action, byte opcode, String topic, String content, String option)
+    {
+        if (topic != null && (topic.isEmpty() || topic.contains(" ") || topic.contains("\n"))) {
+            return failed(new IllegalArgumentException("a topic must not be empty or contain spaces or line breaks - '" + topic + "'"));
+        }
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        long requestId = nextRequestId.incrementAndGet();
+        byte[] command = binary ? BinaryCodec.encode(opcode, requestId, option, topic, content)
+                : ("#" + requestId + " " + action + (topic == null ? "" : " " + topic) + (option == null ? "" : " " + option)
+                + (content == null ? "" : " " + content) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+        return send(requestId, reply, command);
+    }
+
+    /**
+     * A method that register the future of a reply and send the tagged command
+     * @param requestId - the request id the command is tagged with
+     * @param reply - the future of the reply
+     * @param command - the encoded command
+     * @return the future of the reply line, without its tag
+     */
+    private CompletableFuture<String> send(long requestId, CompletableFuture<String> reply, byte[] command)
+    {
+        pending.put(requestId, reply);
+        if (closed) {
+            //the connection was closed meanwhile, and the pending requests may have been failed already
+            failPending(requestId);
+            return reply;
+        }
+        try {
+            write(command);
+        } catch (IOException e) {
+            connectionClosed(e);
+        }
+        return reply;
+    }
+
+    /**
+     * A method that write a command to the server, concurrent writers share a flush,
+     * the last writer that leaves flushes the commands of the writers that were waiting behind it
+     * @param command - the encoded command
+     * @throws IOException if the connection failed
+     */
+    private void write(byte[] command) throws IOException
+    {
+        writers.incrementAndGet();
+        writeLock.lock();
+        try {
+            boolean last;
+            try {
+                out.write(command);
+            } finally {
+                last = writers.decrementAndGet() == 0;
+            }
+            if (last) {
+                out.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * A method that the reader thread runs, it completes the futures of the tagged replies,
+     * and passes the published messages to the listener, until the connection is closed
+     */
+    private void readReplies()
+    {
+        IOException cause = null;
+        try (InputStream in = this.in) {
+            //a binary frame is converted to the line the text protocol would send
+            BufferedReader lines = binary ? null : new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            DataInputStream frames = binary ? new DataInputStream(new BufferedInputStream(in)) : null;
+            String line;
+            while ((line = binary ? BinaryCodec.readFrameAsLine(frames) : lines.readLine()) != null && !"CLOSE".equals(line.trim())) {
+                handleLine(line);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                cause = e;
+            }
+        } finally {
+            connectionClosed(cause);
+        }
+    }
+
+    /**
+     * A method that handle a single line from the server, a tagged reply "#id reply", or a published message
+     * @param line - the line
+     */
+    private void handleLine(String line)
+    {
+        if (line.startsWith("#")) {
+            int space = line.indexOf(' ');
+            CompletableFuture<String> reply;
+            try {
+                reply = space < 0 ? null : pending.remove(Long.parseLong(line.substring(1, space)));
+            } catch (NumberFormatException e) {
+                reply = null;
+            }
+            if (reply != null) {
+                String text = line.substring(space + 1);
+                if (text.startsWith("ERROR")) {
+                    reply.completeExceptionally(new ChatException(text));
+                } else {
+                    reply.complete(text);
+                }
+            }
+        } else if (line.startsWith("( ")) {
+            ChatMessage message = ChatMessage.parse(line);
+            if (message != null) {
+                try {
+                    listener.onMessage(message);
+                } catch (RuntimeException e) {
+                    //a failing listener must not stop the replies of the connection
+                    listener.onError(message, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A method that close the socket, fail the requests without a reply, and tell the listener once
+     * @param cause - the failure that closed the connection, null if it was closed by the client or the server
+     */
+    private void connectionClosed(IOException cause)
+    {
+        closed = true;
+        try { connection.close(); } catch (IOException ignored) { }
+        for (Long requestId : new ArrayList<>(pending.keySet())) {
+            failPending(requestId);
+        }
+        if (closeReported.compareAndSet(false, true)) {
+            listener.onClose(cause);
+        }
+    }
+
+    /**
+     * A method that fail a request without a reply, since the connection was closed
+     * @param requestId - the request id
+     */
+    private void failPending(long requestId)
+    {
+        CompletableFuture<String> reply = pending.remove(requestId);
+        if (reply != null) {
+            reply.completeExceptionally(new ChatException("the connection was closed before the reply"));
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable cause)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+}
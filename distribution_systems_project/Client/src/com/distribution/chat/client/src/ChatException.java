@@ -0,0 +1,19 @@
+package com.distribution.chat.client.src;
+
+/**
+ * A class represented a failed request of a ChatClient,
+ * the server replied ERROR to the request, or the connection was closed before the reply
+ */
+public class ChatException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor
+     * @param message - the reply of the server, or the reason the request failed
+     */
+    public ChatException(String message)
+    {
+        super(message);
+    }
+}
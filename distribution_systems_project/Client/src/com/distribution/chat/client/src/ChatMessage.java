@@ -0,0 +1,100 @@
+package com.distribution.chat.client.src;
+
+/**
+ * A class represented a message published to a topic, as a ChatClient receives it,
+ * the text protocol line "( topic ) ip:port time - content" (with "#sequence" after the time after a replaying REGISTER)
+ */
+public class ChatMessage {
+
+    private final String topic;
+    private final String sender;
+    private final String time;
+    private final long sequence;
+    private final String content;
+    private final String line;
+
+    private ChatMessage(String topic, String sender, String time, long sequence, String content, String line)
+    {
+        this.topic = topic;
+        this.sender = sender;
+        this.time = time;
+        this.sequence = sequence;
+        this.content = content;
+        this.line = line;
+    }
+
+    /**
+     * A method that parse a delivery line of the server
+     * @param line - the line, "( topic ) ip:port time - content"
+     * @return the message, or null if the line is not a delivery
+     */
+    static ChatMessage parse(String line)
+    {
+        int topicEnd = line.indexOf(" ) ");
+        int separator = topicEnd < 0 ? -1 : line.indexOf(" - ", topicEnd + 3);
+        if (!line.startsWith("( ") || separator < 0) {
+            return null;
+        }
+        String[] header = line.substring(topicEnd + 3, separator).split(" ");
+        long sequence = -1;
+        if (header.length > 2 && header[2].startsWith("#")) {
+            try {
+                sequence = Long.parseLong(header[2].substring(1));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        //the content is separated by two spaces, an empty content has none
+        String content = line.length() > separator + 4 ? line.substring(separator + 4) : "";
+        return new ChatMessage(line.substring(2, topicEnd), header[0], header.length > 1 ? header[1] : "", sequence, content, line);
+    }
+
+    /**
+     * @return the topic the message was published to
+     */
+    public String getTopic()
+    {
+        return topic;
+    }
+
+    /**
+     * @return the address of the publisher, ip:port
+     */
+    public String getSender()
+    {
+        return sender;
+    }
+
+    /**
+     * @return the time the server got the message at
+     */
+    public String getTime()
+    {
+        return time;
+    }
+
+    /**
+     * @return the sequence number of the message in its topic, -1 if the server did not send it
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * @return the content of the message
+     */
+    public String getContent()
+    {
+        return content;
+    }
+
+    /**
+     * A method that describe the message as the server line
+     * @return the line of the message
+     */
+    @Override
+    public String toString()
+    {
+        return line;
+    }
+}
@@ -1,16 +1,32 @@
 package com.distribution.chat.client.src;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 /**
  * A class represent client
+ * The console client is a thin wrapper of ChatClient, a connection per server node
  */
 public class Client {
     public static boolean connected = false;
-    private static PrintWriter printWriter = null;
+    private static final long REPLY_TIMEOUT_MILLIS = 5000;
+    private static final Map<String, ChatClient> connections = new ConcurrentHashMap<>(); //node (host:port) -> open connection
+    private static ShardRing ring = null; //the nodes the topics are spread over
+    private static boolean sharded = false; //true if the topics are spread over several nodes
+    private static boolean binary = false; //true if the connection speaks the binary protocol
+    private static Path socketPath = null; //the unix domain socket of the server, null to connect to its ip and port
 
     /**
      * The main method that run the main ui thread
@@ -37,7 +53,7 @@ public class Client {
                 case "D":
                 case "DISCONNECT":
                     if (connected) {
-                        stopConnection(printWriter);
+                        stopConnection();
                     } else {
                         System.out.println("You need to connect first");
                     }
@@ -47,10 +63,9 @@ public class Client {
                 case "QUIT":
                     if (connected)//close connection first
                     {
-                        stopConnection(printWriter);
+                        stopConnection();
                         //Close resources
                         try {
-                            printWriter.close();
                             sc.close();
                         }
                         catch (Exception e) {
@@ -65,17 +80,20 @@ public class Client {
                 case "REGISTER":
                     if (connected) {
                         //get registered topics from server
-                        printWriter.write("getRegisterTopics\n");
-                        printWriter.flush();
-                        waitForServerReply(0);
-                        System.out.println("Please insert a topic");
+                        printRegisteredTopics();
+                        System.out.println("Please insert a topic (followed by CONFLATE to get only the latest message of a topic,");
+                        System.out.println("or by WHERE and PREFIX text, CONTAINS text, REGEX pattern or key=value to filter the messages,");
+                        System.out.println("$share/group/topic shares the messages of the topic with the other clients of the group)");
                         System.out.println("topic : ");
                         String topic = "";
                         topic = isEmptyLoop(sc, topic, "topic cannot be empty");
-                        printWriter.write("REGISTER " + topic + "\n");
-                        printWriter.flush();
-                        ClientListener.action = ClientListener.ACTION.REGISTER; //setup action
-                        waitForServerReply(0);
+                        String[] topicFields = topic.trim().split("\\s+", 3);
+                        final String rTopic = topicFields[0];
+                        final boolean conflate = topicFields.length > 1 && "CONFLATE".equalsIgnoreCase(topicFields[1]);
+                        final String where = topicFields.length > 2 && "WHERE".equalsIgnoreCase(topicFields[1]) ? topicFields[2] : null;
+                        waitForServerReplies(sendCommand("REGISTER", rTopic, client -> conflate ? client.registerConflated(rTopic)
+                                        : where != null ? client.registerWhere(rTopic, where) : client.register(rTopic)),
+                                "OK - topic registered successfully", "ERROR - you tried to register topic twice");
                     } else {
                         System.out.println("You need to connect first");
                     }
@@ -85,17 +103,14 @@ public class Client {
                 case "LEAVE":
                     if (connected) {
                         //get registered topics from server
-                        printWriter.write("getRegisterTopics\n");
-                        printWriter.flush();
-                        waitForServerReply(0);
+                        printRegisteredTopics();
                         System.out.println("Please insert a topic");
                         System.out.println("topic : ");
                         String topic = "";
                         topic = isEmptyLoop(sc, topic, "topic cannot be empty");
-                        printWriter.write("LEAVE " + topic + "\n");
-                        printWriter.flush();
-                        ClientListener.action = ClientListener.ACTION.LEAVE; //setup action
-                        waitForServerReply(0);
+                        final String lTopic = topic.trim();
+                        waitForServerReplies(sendCommand("LEAVE", lTopic, client -> client.leave(lTopic)),
+                                "OK - topic unregistered successfully", "ERROR - you tried to leave unregistered topic");
                     } else {
                         System.out.println("You need to connect first");
                     }
@@ -112,9 +127,10 @@ public class Client {
                         System.out.println("sentence : ");
                         String sentence = "";
                         sentence = isEmptyLoop(sc, sentence, "message cannot be empty");
-                        printWriter.write("SEND " + topic + " " + sentence + "\n");
-                        printWriter.flush();
-                        waitForServerReply(100);
+                        final String sTopic = topic.trim();
+                        final String content = sentence;
+                        waitForServerReplies(sendCommand("SEND", sTopic, client -> client.send(sTopic, content)),
+                                null, "ERROR - An error occurred while executing the command");
                     } else {
                         System.out.println("You need to connect first");
                     }
@@ -127,8 +143,8 @@ public class Client {
     }
 
     /**
-     * A method that reads the server ip and port from the configuration file
-     * The method tries to connect to server
+     * A method that reads the server ip and port, or the server nodes, from the configuration file
+     * The method tries to connect to the server, with sharding a node is connected when a topic needs it
      * @param config - properties file object
      */
     private static void connect(Properties config) {
@@ -143,32 +159,115 @@ public class Client {
                 return;
             }
             //Read Server information configuration from properties file
-            String ip = config.getProperty("ip");
-            int port;
+            List<String> nodes = new ArrayList<>();
+            for (String node : config.getProperty("nodes", "").split(",")) {
+                if (!node.trim().isEmpty()) {
+                    nodes.add(node.trim());
+                }
+            }
+            sharded = !nodes.isEmpty();
+            String unixSocket = config.getProperty("unix.socket.path", "").trim();
+            socketPath = sharded || unixSocket.isEmpty() ? null : Paths.get(unixSocket);
+            if (socketPath != null) {
+                nodes.add(socketPath.toString());
+            } else if (!sharded) {
+                nodes.add(config.getProperty("ip") + ":" + config.getProperty("port"));
+            }
             try {
-                port = Integer.parseInt(config.getProperty("port"));
-            } catch (NumberFormatException e) {
-                System.out.println("\nPort must be a number!");
-                System.out.println("Please modify the port in the configuration file, and try to connect again");
+                //the unix socket node is a path, the other nodes are host:port
+                if (socketPath == null) {
+                    for (String node : nodes) {
+                        port(node);
+                    }
+                }
+                ring = new ShardRing(nodes, Integer.parseInt(config.getProperty("shard.virtual.nodes", "160").trim()));
+            } catch (IllegalArgumentException e) {
+                System.out.println("\nPort must be a number, the nodes must be host:port, and shard.virtual.nodes must be a positive number!");
+                System.out.println("Please modify the configuration file, and try to connect again");
                 return;
             }
-            try {
-                Socket socket = new Socket(ip, port);
+            binary = "binary".equalsIgnoreCase(config.getProperty("protocol", "text").trim());
+            if (sharded) {
                 connected = true;
-                printWriter = new PrintWriter(socket.getOutputStream());
-                System.out.println("Connecting successfully to " + ip + " on port " + port);
-                ClientListener.stop = false;
-                ClientListener listener = new ClientListener(socket);
-                listener.start();
-            } catch (IOException e) {
-                System.out.println("Can not connect to server - connection refused.");
-                System.out.println("The server may be disconnected, if not check the configuration file.");
+                System.out.println("Topics are spread over " + nodes.size() + " nodes, a node is connected when a topic needs it" + (binary ? " (binary protocol)" : ""));
+            } else {
+                connected = connection(nodes.get(0)) != null;
             }
         } else {
             System.out.println("You are already connected");
         }
     }
 
+    /**
+     * A method that retrieve the connection with a node, the connection is opened if it is not open yet
+     * @param node - the node, host:port (or the path of the unix socket of the server)
+     * @return the connection, or null if the node can not be connected
+     */
+    private static ChatClient connection(String node) {
+        ChatClient connection = connections.get(node);
+        if (connection != null) {
+            return connection;
+        }
+        try {
+            MessageListener listener = new MessageListener() {
+                @Override
+                public void onMessage(ChatMessage message) {
+                    System.out.println(message);
+                }
+
+                @Override
+                public void onClose(IOException cause) {
+                    if (cause != null) {
+                        System.out.println("The connection with server " + node + " failed - " + cause.getMessage());
+                    }
+                    connectionClosed(node);
+                    System.out.println("Connection closed with server " + node);
+                }
+            };
+            if (socketPath != null) {
+                connection = ChatClient.connect(socketPath, binary, listener);
+                connections.put(node, connection);
+                System.out.println("Connecting successfully to unix socket " + socketPath + (binary ? " (binary protocol)" : ""));
+                return connection;
+            }
+            String ip = node.substring(0, node.lastIndexOf(':'));
+            int port = port(node);
+            connection = ChatClient.connect(ip, port, binary, listener);
+            connections.put(node, connection);
+            System.out.println("Connecting successfully to " + ip + " on port " + port + (binary ? " (binary protocol)" : ""));
+            return connection;
+        } catch (IOException e) {
+            System.out.println("Can not connect to server " + node + " - connection refused.");
+            System.out.println("The server may be disconnected, if not check the configuration file.");
+            return null;
+        }
+    }
+
+    /**
+     * A method that called by the listener of a node when its connection is closed,
+     * without sharding the client is not connected anymore, with sharding the node is connected again when needed
+     * @param node - the node, host:port
+     */
+    private static void connectionClosed(String node) {
+        connections.remove(node);
+        if (!sharded) {
+            connected = false;
+        }
+    }
+
+    /**
+     * A method that read the port of a node
+     * @param node - the node, host:port
+     * @return the port
+     */
+    private static int port(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon < 1) {
+            throw new IllegalArgumentException("the node " + node + " is not host:port");
+        }
+        return Integer.parseInt(node.substring(colon + 1).trim());
+    }
+
     /**
      * A method that print the client menu
      */
@@ -185,14 +284,66 @@ public class Client {
 
     /**
      * A method that stops the connection with the server
-     * @param pw - the output stream to the sever
      */
-    private static void stopConnection(PrintWriter pw) {
+    private static void stopConnection() {
         connected = false;
-        pw.write("CLOSE" + "\n");
-        pw.flush();
-        ClientListener.stop = true;
-        waitForServerReply(0);
+        for (ChatClient connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    /**
+     * A method that print the topics the client registered to, on all the connected nodes
+     */
+    private static void printRegisteredTopics() {
+        List<String> topics = new ArrayList<>();
+        for (CompletableFuture<List<String>> reply : sendCommand("getRegisterTopics", null, ChatClient::topics)) {
+            try {
+                topics.addAll(reply.get(REPLY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            } catch (ExecutionException | TimeoutException e) {
+                //the topics of this node are not shown
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!topics.isEmpty()) {
+            System.out.println("registered topics: " + topics);
+        }
+    }
+
+    /**
+     * A method that send a command to the nodes it concerns,
+     * a topic goes to the node that owns it, a wildcard filter to every node, and a command without a topic to every connected node,
+     * a shared subscription goes where its topic filter goes
+     * @param action  - the action of the command (REGISTER, LEAVE, SEND or getRegisterTopics)
+     * @param topic   - the topic of the command, null if none
+     * @param command - the command to send on the connection of every such node
+     * @return the futures of the replies, one per node the command was sent to
+     */
+    private static <T> List<CompletableFuture<T>> sendCommand(String action, String topic, Function<ChatClient, CompletableFuture<T>> command) {
+        List<ChatClient> targets = new ArrayList<>();
+        String routed = ShardRing.routedTopic(topic);
+        if (routed == null || ("LEAVE".equals(action) && ShardRing.hasWildcard(routed))) {
+            targets.addAll(connections.values());
+        } else if ("REGISTER".equals(action) && ShardRing.hasWildcard(routed)) {
+            for (String node : ring.getNodes()) {
+                ChatClient connection = connection(node);
+                if (connection != null) {
+                    targets.add(connection);
+                }
+            }
+        } else {
+            ChatClient connection = connection(ring.nodeFor(routed));
+            if (connection != null) {
+                targets.add(connection);
+            }
+        }
+        List<CompletableFuture<T>> replies = new ArrayList<>();
+        for (ChatClient connection : targets) {
+            replies.add(command.apply(connection));
+        }
+        return replies;
     }
 
     /**
@@ -223,15 +374,27 @@ public class Client {
     }
 
     /**
-     * A method the cause the main ui thread to wait, until the server thread will reply
+     * A method the cause the main ui thread to wait for the replies of the nodes a command was sent to,
+     * every reply is awaited for a limited time, since a node may close its connection instead
+     * @param replies - the futures of the replies
+     * @param okMessage - the message to print for a successful reply, null to print nothing
+     * @param errorMessage - the message to print for an ERROR reply
      */
-    private static void waitForServerReply(int timeout) {
-        try {
-            synchronized (Client.class) {
-                Client.class.wait(timeout);
+    private static void waitForServerReplies(List<? extends CompletableFuture<?>> replies, String okMessage, String errorMessage) {
+        for (CompletableFuture<?> reply : replies) {
+            try {
+                reply.get(REPLY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (okMessage != null) {
+                    System.out.println(okMessage);
+                }
+            } catch (ExecutionException e) {
+                System.out.println(e.getCause() instanceof ChatException && e.getCause().getMessage().startsWith("ERROR")
+                        ? errorMessage : "ERROR - " + e.getCause().getMessage());
+            } catch (TimeoutException e) {
+                System.out.println("ERROR - The server did not reply in time");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
     }
 }
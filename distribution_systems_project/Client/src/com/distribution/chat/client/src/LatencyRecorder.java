@@ -0,0 +1,116 @@
+package com.distribution.chat.client.src;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class represented a histogram of latencies in nanoseconds, with log-linear buckets as in HdrHistogram,
+ * every power of two is split into 32 buckets, so a recorded value is off by at most about 3%,
+ * a recorder is owned by a single thread of the load generator, and the recorders are merged for the report
+ */
+public class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    /**
+     * A method that record a single latency
+     * @param nanos - the latency in nanoseconds, a negative latency is recorded as 0
+     */
+    void record(long nanos)
+    {
+        long value = Math.max(0, nanos);
+        counts[bucket(value)]++;
+        count++;
+        totalNanos += value;
+        maxNanos = Math.max(maxNanos, value);
+    }
+
+    /**
+     * A method that add the latencies of another recorder to this recorder
+     * @param other - the other recorder, its thread must not record anymore
+     */
+    void add(LatencyRecorder other)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        totalNanos += other.totalNanos;
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    /**
+     * A method that compute a percentile of the recorded latencies
+     * @param percentile - the percentile, between 0 and 100
+     * @return the latency in nanoseconds, 0 if nothing was recorded
+     */
+    long percentile(double percentile)
+    {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    /**
+     * A method that describe the recorded latencies in microseconds
+     * @return A string of the count, the mean, the main percentiles and the max
+     */
+    @Override
+    public String toString()
+    {
+        return "count=" + count + " mean=" + micros(count == 0 ? 0 : totalNanos / count) + " p50=" + micros(percentile(50))
+                + " p90=" + micros(percentile(90)) + " p99=" + micros(percentile(99)) + " p999=" + micros(percentile(99.9))
+                + " max=" + micros(maxNanos) + "us";
+    }
+
+    /**
+     * A method that find the bucket of a value
+     * @param value - a non negative value
+     * @return the index of the bucket
+     */
+    private static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * A method that retrieve the highest value of a bucket
+     * @param bucket - the index of the bucket
+     * @return the highest value that falls into the bucket
+     */
+    private static long highestValue(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private static String micros(long nanos)
+    {
+        long tenths = nanos / (TimeUnit.MICROSECONDS.toNanos(1) / 10);
+        return tenths / 10 + "." + tenths % 10;
+    }
+}
@@ -0,0 +1,675 @@
+package com.distribution.chat.client.src;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A class represented a headless load generator of the server,
+ * it opens many text protocol connections (to the port or to the unix domain socket of the server), some publish at a fixed total rate and the others subscribe to the topics,
+ * every payload carries the time it was due to be sent at, so a late publisher still shows up in the latencies,
+ * at the end of the run it reports the end to end latency percentiles, the throughput, the dropped deliveries
+ * and the cpu time the generator itself used
+ * Run - java -cp chat-client.jar com.distribution.chat.client.src.LoadGenerator [key=value ...]
+ * the settings are read from 'load-config.properties' in the working directory, and the arguments override them
+ */
+public class LoadGenerator {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long REGISTER_TIMEOUT_MILLIS = 30000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PAYLOAD_SIZE = 8 * 1024;
+    private static final int MIN_PAYLOAD_SIZE = 24; //"t=" and the longest stamp fit
+    private static final byte[] STAMP = " -  t=".getBytes(StandardCharsets.UTF_8); //the content of a delivery starts after " -  "
+
+    private final Settings settings;
+    private final long origin = System.nanoTime(); //the stamps are relative to the origin, so they are never negative
+    private final int[] subscribersOf; //topic index -> the number of its subscribers
+    private final AtomicInteger registered = new AtomicInteger();
+    private long measureFrom;
+    private long measureUntil;
+    private long measuredCpuNanos = -1; //the cpu time of the generator process while measuring, -1 if the jvm does not tell
+    private volatile long publishStart = -1; //-1 until all the subscribers are registered
+    private volatile boolean stopping = false;
+
+    /**
+     * Constructor
+     * @param settings - the settings of the run
+     */
+    LoadGenerator(Settings settings)
+    {
+        this.settings = settings;
+        subscribersOf = new int[settings.topics];
+        for (int subscriber = 0; subscriber < settings.connections - settings.publishers; subscriber++) {
+            subscribersOf[subscriber % settings.topics]++;
+        }
+    }
+
+    /**
+     * The main method that load the settings and run the load
+     */
+    public static void main(String[] args)
+    {
+        Properties config = new Properties();
+        try (FileInputStream in = new FileInputStream(System.getProperty("user.dir") + "/load-config.properties")) {
+            config.load(in);
+        } catch (IOException e) {
+            System.out.println("The configuration file 'load-config.properties' was not found in " + System.getProperty("user.dir")
+                    + ", the defaults and the arguments are used");
+        }
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 1) {
+                System.out.println("Usage: LoadGenerator [key=value ...], the keys are the keys of 'load-config.properties'");
+                return;
+            }
+            config.setProperty(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+        }
+        Settings settings;
+        try {
+            settings = new Settings(config);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Wrong load settings - " + e.getMessage());
+            return;
+        }
+        try {
+            new LoadGenerator(settings).run();
+        } catch (IOException e) {
+            System.out.println("The load run failed - " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("The load run was interrupted");
+        }
+    }
+
+    /**
+     * A method that connect, register the subscribers, publish for the warm up and the measured duration,
+     * wait for the last deliveries and print the report
+     * @throws IOException if a connection can not be opened
+     * @throws InterruptedException if the main thread is interrupted
+     */
+    void run() throws IOException, InterruptedException
+    {
+        int subscribers = settings.connections - settings.publishers;
+        String server = settings.socketPath != null ? "unix socket " + settings.socketPath : settings.ip + ":" + settings.port;
+        System.out.println("Opening " + settings.connections + " connections to " + server
+                + " (" + settings.publishers + " publishers, " + subscribers + " subscribers, " + settings.topics + " topics)");
+        EventLoop[] loops = new EventLoop[settings.eventLoops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        try {
+            InetSocketAddress address = new InetSocketAddress(settings.ip, settings.port);
+            for (int i = 0; i < settings.connections; i++) {
+                SocketChannel channel;
+                try {
+                    channel = connect(address);
+                } catch (IOException e) {
+                    throw new IOException("only " + i + " of " + settings.connections + " connections were opened - " + e.getMessage(), e);
+                }
+                channel.configureBlocking(false);
+                String topic = i < settings.publishers ? null : topic((i - settings.publishers) % settings.topics);
+                loops[i % loops.length].add(new LoadConnection(channel, topic));
+            }
+            for (EventLoop loop : loops) {
+                loop.start();
+            }
+            long registerDeadline = System.currentTimeMillis() + REGISTER_TIMEOUT_MILLIS;
+            while (registered.get() < subscribers && System.currentTimeMillis() < registerDeadline) {
+                Thread.sleep(10);
+            }
+            if (registered.get() < subscribers) {
+                System.out.println("Only " + registered.get() + " of " + subscribers + " subscribers were registered, the run is stopped");
+                return;
+            }
+            long start = System.nanoTime() - origin;
+            measureFrom = start + TimeUnit.SECONDS.toNanos(settings.warmupSeconds);
+            measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+            publishStart = start;
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+            System.out.println("Publishing " + settings.rate + " messages per second of " + settings.payloadSize + " bytes, warm up for "
+                    + settings.warmupSeconds + "s, measure for " + settings.durationSeconds + "s");
+            sleepUntil(measureFrom);
+            long cpuFrom = processCpuNanos();
+            sleepUntil(measureUntil);
+            long cpuUntil = processCpuNanos();
+            measuredCpuNanos = cpuFrom < 0 || cpuUntil < 0 ? -1 : cpuUntil - cpuFrom;
+            System.out.println("Waiting " + settings.drainSeconds + "s for the last deliveries");
+            sleepUntil(measureUntil + TimeUnit.SECONDS.toNanos(settings.drainSeconds));
+        } finally {
+            stopping = true;
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+                if (loop.isAlive()) {
+                    loop.join();
+                }
+                loop.close();
+            }
+        }
+        printReport(loops);
+    }
+
+    /**
+     * A method that open a blocking connection to the port or to the unix domain socket of the server
+     * @param address - the address of the port of the server
+     * @return the connected channel
+     * @throws IOException if the server can not be connected
+     */
+    private SocketChannel connect(InetSocketAddress address) throws IOException
+    {
+        if (settings.socketPath != null) {
+            return SocketChannel.open(UnixDomainSocketAddress.of(settings.socketPath));
+        }
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * A method that retrieve the cpu time the generator process used so far
+     * @return the cpu time in nanoseconds, -1 if the jvm does not tell
+     */
+    private static long processCpuNanos()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof com.sun.management.OperatingSystemMXBean ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : -1;
+    }
+
+    /**
+     * A method that merge the counters of the event loops and print the report of the run
+     * @param loops - the stopped event loops
+     */
+    private void printReport(EventLoop[] loops)
+    {
+        LatencyRecorder latency = new LatencyRecorder();
+        long published = 0, notSent = 0, expected = 0, delivered = 0, errors = 0, disconnects = 0;
+        for (EventLoop loop : loops) {
+            latency.add(loop.latency);
+            published += loop.measuredPublished;
+            notSent += loop.measuredNotSent;
+            expected += loop.expected;
+            delivered += loop.measuredDelivered;
+            errors += loop.errors;
+            disconnects += loop.disconnects;
+        }
+        double seconds = settings.durationSeconds;
+        long dropped = Math.max(0, expected - delivered);
+        System.out.println("\nLoad run - connections=" + settings.connections + " publishers=" + settings.publishers
+                + " subscribers=" + (settings.connections - settings.publishers) + " topics=" + settings.topics
+                + " rate=" + settings.rate + "/s payload=" + settings.payloadSize + " bytes duration=" + settings.durationSeconds + "s");
+        System.out.println("Published  " + published + " messages (" + String.format("%.1f", published / seconds) + "/s), "
+                + notSent + " were not sent because the publisher connection was full");
+        System.out.println("Delivered  " + delivered + " of " + expected + " expected deliveries (" + String.format("%.1f", delivered / seconds)
+                + "/s), dropped or still queued at the end " + dropped + " (" + String.format("%.3f", expected == 0 ? 0.0 : 100.0 * dropped / expected) + "%)");
+        System.out.println("Latency    " + latency);
+        System.out.println("Errors     " + errors + ", disconnected by the server " + disconnects);
+        if (measuredCpuNanos >= 0) {
+            System.out.println("CPU        the generator used " + String.format("%.1f", measuredCpuNanos / 1e6 / seconds) + "ms per second ("
+                    + String.format("%.1f", published + delivered == 0 ? 0.0 : measuredCpuNanos / 1e3 / (published + delivered)) + "us per published or delivered message)");
+        }
+    }
+
+    /**
+     * A method that sleep until a time of the run
+     * @param until - the time, relative to the origin
+     * @throws InterruptedException if the main thread is interrupted
+     */
+    private void sleepUntil(long until) throws InterruptedException
+    {
+        long left;
+        while ((left = until - (System.nanoTime() - origin)) > 0) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(left, TimeUnit.MILLISECONDS.toNanos(100)));
+        }
+    }
+
+    /**
+     * A method that retrieve the name of a topic of the run
+     * @param index - the index of the topic
+     * @return the topic
+     */
+    private static String topic(int index)
+    {
+        return "load/" + index;
+    }
+
+    /**
+     * A class represented a thread that drives a share of the connections with a selector,
+     * it publishes the share of the rate of its publishers, and records the deliveries of its subscribers,
+     * its counters are read by the main thread only after the thread ended
+     */
+    private final class EventLoop extends Thread {
+
+        private final Selector selector;
+        private final List<LoadConnection> connections = new ArrayList<>();
+        private final List<LoadConnection> publishers = new ArrayList<>();
+        private final LatencyRecorder latency = new LatencyRecorder();
+        private final byte[][] sendPrefixes; //topic index -> "SEND topic t="
+        private final byte[] padding;
+        private final byte[] digits = new byte[20];
+        private double intervalNanos; //the time between two messages of this loop
+        private long sent = 0; //the messages that were due so far, sent or not
+        private int nextPublisher = 0;
+        private int nextTopic;
+        private long measuredPublished = 0;
+        private long measuredNotSent = 0;
+        private long expected = 0;
+        private long measuredDelivered = 0;
+        private long errors = 0;
+        private long disconnects = 0;
+
+        /**
+         * Constructor
+         * @param index - the index of the loop, the loops start from different topics
+         * @throws IOException if the selector can not be opened
+         */
+        EventLoop(int index) throws IOException
+        {
+            super("load-loop-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+            nextTopic = index % settings.topics;
+            sendPrefixes = new byte[settings.topics][];
+            for (int i = 0; i < settings.topics; i++) {
+                sendPrefixes[i] = ("SEND " + topic(i) + " t=").getBytes(StandardCharsets.UTF_8);
+            }
+            padding = new byte[settings.payloadSize];
+            padding[0] = ' ';
+            for (int i = 1; i < padding.length; i++) {
+                padding[i] = 'x';
+            }
+        }
+
+        /**
+         * A method that add a connection to the loop, before the loop starts
+         * @param connection - the connection
+         * @throws IOException if the channel can not be registered
+         */
+        void add(LoadConnection connection) throws IOException
+        {
+            connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            if (connection.topic == null) {
+                publishers.add(connection);
+            }
+        }
+
+        /**
+         * A method that the thread will run when starts
+         * This method registers the subscribers, then publishes on schedule and reads until the run stops
+         */
+        @Override
+        public void run()
+        {
+            if (!publishers.isEmpty()) {
+                intervalNanos = (double) NANOS_PER_SECOND * settings.publishers / publishers.size() / settings.rate;
+            }
+            for (LoadConnection connection : connections) {
+                if (connection.topic != null) {
+                    connection.out.put(("REGISTER " + connection.topic + "\n").getBytes(StandardCharsets.UTF_8));
+                    flush(connection);
+                }
+            }
+            try {
+                while (!stopping) {
+                    long wait = publish();
+                    if (wait <= 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        LoadConnection connection = (LoadConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                System.out.println("The load loop " + getName() + " failed - " + e.getMessage());
+            }
+        }
+
+        /**
+         * A method that send the messages that are due by now, every message is stamped with the time it was due at
+         * @return the nanoseconds until the next message is due, or a long wait if this loop does not publish now
+         */
+        private long publish()
+        {
+            long start = publishStart;
+            if (start < 0 || publishers.isEmpty()) {
+                return NANOS_PER_SECOND;
+            }
+            long now = System.nanoTime() - origin;
+            long until = Math.min(now, measureUntil);
+            long due;
+            while ((due = start + (long) (sent * intervalNanos)) <= until) {
+                send(due);
+                sent++;
+            }
+            for (LoadConnection publisher : publishers) {
+                if (publisher.out.position() > 0 && !publisher.waitingForWrite) {
+                    flush(publisher);
+                }
+            }
+            return due >= measureUntil ? NANOS_PER_SECOND : due - now;
+        }
+
+        /**
+         * A method that write a single SEND line to the next publisher, "SEND topic t=stamp xxx..."
+         * @param due - the time the message was due at, relative to the origin
+         */
+        private void send(long due)
+        {
+            LoadConnection publisher = publishers.get(nextPublisher);
+            nextPublisher = nextPublisher + 1 == publishers.size() ? 0 : nextPublisher + 1;
+            int topic = nextTopic;
+            nextTopic = nextTopic + 1 == settings.topics ? 0 : nextTopic + 1;
+            boolean measured = due >= measureFrom && due < measureUntil;
+            int length = toDigits(due);
+            int paddingLength = Math.max(1, settings.payloadSize - 2 - length);
+            ByteBuffer out = publisher.out;
+            if (publisher.closed || out.remaining() < sendPrefixes[topic].length + length + paddingLength + 1) {
+                if (measured) {
+                    measuredNotSent++;
+                }
+                return;
+            }
+            out.put(sendPrefixes[topic]).put(digits, digits.length - length, length).put(padding, 0, paddingLength).put((byte) '\n');
+            if (measured) {
+                measuredPublished++;
+                expected += subscribersOf[topic];
+            }
+        }
+
+        /**
+         * A method that write the decimal digits of a non negative number at the end of the digits array
+         * @param value - the number
+         * @return the number of digits
+         */
+        private int toDigits(long value)
+        {
+            int position = digits.length;
+            do {
+                digits[--position] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            return digits.length - position;
+        }
+
+        /**
+         * A method that read the available bytes of a connection and handle its complete lines
+         * @param connection - the readable connection
+         */
+        private void read(LoadConnection connection)
+        {
+            ByteBuffer in = connection.in;
+            try {
+                if (connection.channel.read(in) < 0) {
+                    disconnected(connection);
+                    return;
+                }
+            } catch (IOException e) {
+                disconnected(connection);
+                return;
+            }
+            long receivedAt = System.nanoTime() - origin;
+            byte[] bytes = in.array();
+            int lineStart = 0;
+            for (int i = 0; i < in.position(); i++) {
+                if (bytes[i] == '\n') {
+                    handleLine(connection, bytes, lineStart, i, receivedAt);
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart == 0 && !in.hasRemaining()) {
+                in.clear(); //a line longer than the buffer is not a line of the run
+                return;
+            }
+            in.limit(in.position()).position(lineStart);
+            in.compact();
+        }
+
+        /**
+         * A method that handle a single line from the server, a delivery, OK, ERROR or CLOSE
+         * @param connection - the connection of the line
+         * @param bytes - the received bytes
+         * @param start - the offset of the line
+         * @param end - the offset of the line terminator
+         * @param receivedAt - the time the line was read at, relative to the origin
+         */
+        private void handleLine(LoadConnection connection, byte[] bytes, int start, int end, long receivedAt)
+        {
+            if (end > start && bytes[start] == '(') {
+                long stamp = stamp(bytes, start, end);
+                if (stamp >= measureFrom && stamp < measureUntil) {
+                    measuredDelivered++;
+                    latency.record(receivedAt - stamp);
+                }
+            } else if (startsWith(bytes, start, end, "OK")) {
+                if (connection.topic != null && !connection.registered) {
+                    connection.registered = true;
+                    registered.incrementAndGet();
+                }
+            } else if (startsWith(bytes, start, end, "ERROR")) {
+                errors++;
+            } else if (startsWith(bytes, start, end, "CLOSE")) {
+                disconnected(connection);
+            }
+        }
+
+        /**
+         * A method that find the stamp in the content of a delivery, "( topic ) ip:port time -  t=stamp xxx..."
+         * @param bytes - the received bytes
+         * @param start - the offset of the line
+         * @param end - the offset of the line terminator
+         * @return the stamp, or -1 if the delivery has no stamp
+         */
+        private long stamp(byte[] bytes, int start, int end)
+        {
+            for (int i = start; i + STAMP.length <= end; i++) {
+                int matched = 0;
+                while (matched < STAMP.length && bytes[i + matched] == STAMP[matched]) {
+                    matched++;
+                }
+                if (matched == STAMP.length) {
+                    long stamp = 0;
+                    int position = i + STAMP.length;
+                    if (position == end || bytes[position] < '0' || bytes[position] > '9') {
+                        return -1;
+                    }
+                    while (position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+                        stamp = stamp * 10 + (bytes[position++] - '0');
+                    }
+                    return stamp;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * A method that write the pending bytes of a connection, the rest waits until the channel is writable
+         * @param connection - the connection
+         */
+        private void flush(LoadConnection connection)
+        {
+            if (connection.closed) {
+                return;
+            }
+            ByteBuffer out = connection.out;
+            out.flip();
+            try {
+                connection.channel.write(out);
+            } catch (IOException e) {
+                out.clear();
+                disconnected(connection);
+                return;
+            }
+            out.compact();
+            boolean waiting = out.position() > 0;
+            if (waiting != connection.waitingForWrite) {
+                connection.waitingForWrite = waiting;
+                connection.key.interestOps(waiting ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * A method that close a connection the server closed
+         * @param connection - the connection
+         */
+        private void disconnected(LoadConnection connection)
+        {
+            if (!connection.closed) {
+                connection.closed = true;
+                disconnects++;
+                connection.key.cancel();
+                try { connection.channel.close(); } catch (IOException ignored) { }
+            }
+        }
+
+        /**
+         * A method that close the selector and all the connections of the loop, after the thread ended
+         */
+        void close()
+        {
+            for (LoadConnection connection : connections) {
+                try { connection.channel.close(); } catch (IOException ignored) { }
+            }
+            try { selector.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * A method that checks if a line starts with an ascii word
+     * @param bytes - the received bytes
+     * @param start - the offset of the line
+     * @param end - the offset of the line terminator
+     * @param word - the word
+     * @return true if the line starts with the word
+     */
+    private static boolean startsWith(byte[] bytes, int start, int end, String word)
+    {
+        if (end - start < word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (bytes[start + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A class represented a single connection of the run, a publisher or a subscriber of one topic
+     */
+    private static final class LoadConnection {
+
+        private final SocketChannel channel;
+        private final String topic; //the topic of a subscriber, null for a publisher
+        private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteBuffer out; //a subscriber only writes its REGISTER line
+        private SelectionKey key;
+        private boolean registered = false;
+        private boolean waitingForWrite = false;
+        private boolean closed = false;
+
+        LoadConnection(SocketChannel channel, String topic)
+        {
+            this.channel = channel;
+            this.topic = topic;
+            out = ByteBuffer.allocate(topic == null ? WRITE_BUFFER_SIZE : 256);
+        }
+    }
+
+    /**
+     * A class represented the settings of a run, read from the configuration file and the arguments
+     */
+    static final class Settings {
+
+        final String ip;
+        final int port;
+        final Path socketPath; //null to connect to the ip and port
+        final int connections;
+        final int publishers;
+        final int topics;
+        final int rate;
+        final int payloadSize;
+        final int warmupSeconds;
+        final int durationSeconds;
+        final int drainSeconds;
+        final int eventLoops;
+
+        /**
+         * Constructor
+         * @param config - the properties of the run
+         */
+        Settings(Properties config)
+        {
+            ip = config.getProperty("ip", "localhost").trim();
+            port = number(config, "port", "2019", 1);
+            String unixSocket = config.getProperty("unix.socket.path", "").trim();
+            socketPath = unixSocket.isEmpty() ? null : Paths.get(unixSocket);
+            connections = number(config, "connections", "1000", 2);
+            publishers = number(config, "publishers", "10", 1);
+            topics = number(config, "topics", "10", 1);
+            rate = number(config, "rate", "1000", 1);
+            payloadSize = number(config, "payload.size", "64", MIN_PAYLOAD_SIZE);
+            warmupSeconds = number(config, "warmup.seconds", "5", 0);
+            durationSeconds = number(config, "duration.seconds", "30", 1);
+            drainSeconds = number(config, "drain.seconds", "5", 0);
+            eventLoops = Math.min(number(config, "event.loops", String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)), 1), connections);
+            if (publishers >= connections) {
+                throw new IllegalArgumentException("publishers must be less than connections, the rest of the connections subscribe");
+            }
+            if (payloadSize > MAX_PAYLOAD_SIZE) {
+                throw new IllegalArgumentException("payload.size must be at most " + MAX_PAYLOAD_SIZE);
+            }
+        }
+
+        private static int number(Properties config, String key, String defaultValue, int min)
+        {
+            String value = config.getProperty(key, "").trim();
+            if (value.isEmpty()) {
+                value = defaultValue;
+            }
+            try {
+                int number = Integer.parseInt(value);
+                if (number >= min) {
+                    return number;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            throw new IllegalArgumentException(key + " must be a number of at least " + min + ", not '" + value + "'");
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.distribution.chat.client.src;
+
+import java.io.IOException;
+
+/**
+ * An interface represented the callbacks of a ChatClient,
+ * the callbacks are called by the reader thread of the connection, in the order the server sent the messages
+ */
+public interface MessageListener {
+
+    /**
+     * A method that called for every message published to a topic the client registered to
+     * @param message - the published message
+     */
+    void onMessage(ChatMessage message);
+
+    /**
+     * A method that called when onMessage threw, the next messages are still passed to the listener,
+     * by default the failure is logged with the platform logger of the client library
+     * @param message - the message onMessage failed on
+     * @param error - the exception onMessage threw
+     */
+    default void onError(ChatMessage message, RuntimeException error)
+    {
+        System.getLogger(ChatClient.class.getName()).log(System.Logger.Level.WARNING, "The listener failed on a message of topic " + message.getTopic(), error);
+    }
+
+    /**
+     * A method that called once, when the connection is closed by the client, by the server or by a failure
+     * @param cause - the failure that closed the connection, null if it was closed by the client or the server
+     */
+    default void onClose(IOException cause)
+    {
+    }
+}
@@ -0,0 +1,110 @@
+package com.distribution.chat.client.src;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A class represented a consistent hash ring of the server nodes, that decides which node owns a topic,
+ * every node is placed on the ring many times (virtual nodes), and a topic is owned by the first node after its hash,
+ * so adding or removing one of N nodes moves only about 1/N of the topics
+ */
+public class ShardRing {
+
+    private static final String SHARED_PREFIX = "$share/"; //the prefix of the shared subscriptions
+
+    private final TreeMap<Long, String> ring = new TreeMap<>(); //hash -> node (host:port)
+    private final List<String> nodes;
+
+    /**
+     * Constructor
+     * @param nodes - the server nodes, host:port
+     * @param virtualNodes - the number of places of every node on the ring
+     */
+    ShardRing(List<String> nodes, int virtualNodes)
+    {
+        if (nodes.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("the ring needs at least one node and one virtual node per node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * A method that find the node that owns a topic
+     * @param topic - the topic
+     * @return the node, host:port
+     */
+    String nodeFor(String topic)
+    {
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(topic));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * A method that retrieve all the nodes of the ring
+     * @return A list of the nodes, host:port
+     */
+    List<String> getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * A method that checks if a topic filter has a wildcard level, such a filter matches topics of every node
+     * @param topic - the topic filter
+     * @return true if the filter has a + or # level
+     */
+    static boolean hasWildcard(String topic)
+    {
+        for (String level : topic.split("/", -1)) {
+            if ("+".equals(level) || "#".equals(level)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A method that retrieve the topic filter a command is routed by, a shared subscription "$share/group/filter" is routed by its filter
+     * @param topic - the topic or the topic filter of the command, may be null
+     * @return the filter of a shared subscription, or the topic itself
+     */
+    static String routedTopic(String topic)
+    {
+        if (topic == null || !topic.startsWith(SHARED_PREFIX)) {
+            return topic;
+        }
+        int groupEnd = topic.indexOf('/', SHARED_PREFIX.length());
+        return groupEnd < 0 ? topic : topic.substring(groupEnd + 1);
+    }
+
+    /**
+     * A method that hash a key to a position on the ring, the first 8 bytes of its MD5 digest
+     * @param key - the key
+     * @return the position on the ring
+     */
+    private static long hash(String key)
+    {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e); //every java platform supports MD5
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,314 @@
+package com.distribution.chat.server.src;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class represented a thread that writes the log and the console output of the server,
+ * the callers only enqueue records into a bounded queue, and this single thread writes them in batches
+ * into one open file channel, so no disk call is made on the thread that serves a client
+ */
+public class AsyncLogWriter extends Thread {
+
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter ROTATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * An enum that contains the policies when the queue is full
+     */
+    public enum OverflowPolicy {
+        BLOCK, //the caller waits for a free slot
+        DROP //the record is dropped and counted
+    }
+
+    /**
+     * An enum that contains the modes of the console output
+     */
+    public enum ConsoleMode {
+        ALL, //every console line is printed
+        SAMPLED, //one of every console.sample.rate lines is printed
+        QUIET //nothing is printed
+    }
+
+    /**
+     * A class represented a single record in the queue
+     */
+    private static final class LogRecord {
+        final long time;
+        final String tag; //null for a console record
+        final String line;
+
+        LogRecord(long time, String tag, String line) {
+            this.time = time;
+            this.tag = tag;
+            this.line = line;
+        }
+    }
+
+    private final File logFile;
+    private final BlockingQueue<LogRecord> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final ConsoleMode consoleMode;
+    private final int sampleRate;
+    private final long maxFileSize;
+    private final long rotateIntervalMillis;
+    private final long flushIntervalMillis;
+
+    private final LongAdder droppedRecords = new LongAdder();
+    private final AtomicLong consoleCounter = new AtomicLong();
+    private long reportedDrops = 0;
+    private volatile boolean stop = false;
+
+    private FileChannel channel;
+    private long fileSize;
+    private long nextRotation;
+    private final StringBuilder fileBatch = new StringBuilder(16 * 1024);
+    private final StringBuilder consoleBatch = new StringBuilder(4 * 1024);
+    private long cachedSecond = -1;
+    private String cachedTimeStamp;
+
+    /**
+     * Constructor
+     * @param logFile - the log file to write into
+     * @param config - properties file object with the log settings, missing settings get default values
+     */
+    AsyncLogWriter(File logFile, Properties config)
+    {
+        super("async-log-writer");
+        setDaemon(true);
+        this.logFile = logFile;
+        this.queue = new ArrayBlockingQueue<>(Integer.parseInt(config.getProperty("log.queue.size", "65536").trim()));
+        this.overflowPolicy = OverflowPolicy.valueOf(config.getProperty("log.overflow", "block").trim().toUpperCase());
+        this.consoleMode = ConsoleMode.valueOf(config.getProperty("console.mode", "all").trim().toUpperCase());
+        this.sampleRate = Math.max(1, Integer.parseInt(config.getProperty("console.sample.rate", "100").trim()));
+        this.maxFileSize = Long.parseLong(config.getProperty("log.max.size", "10485760").trim());
+        this.rotateIntervalMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(config.getProperty("log.rotate.minutes", "0").trim()));
+        this.flushIntervalMillis = Long.parseLong(config.getProperty("log.flush.millis", "100").trim());
+    }
+
+    /**
+     * A method that enqueue a line to the log file
+     * @param tag - the level of the log
+     * @param line - content to write to the log
+     */
+    void log(String tag, String line)
+    {
+        enqueue(new LogRecord(System.currentTimeMillis(), tag, line));
+    }
+
+    /**
+     * A method that enqueue a line to the console, according to the console mode
+     * @param line - content to print on the console
+     */
+    void console(String line)
+    {
+        if (consoleMode == ConsoleMode.QUIET) {
+            return;
+        }
+        if (consoleMode == ConsoleMode.SAMPLED && consoleCounter.getAndIncrement() % sampleRate != 0) {
+            return;
+        }
+        enqueue(new LogRecord(System.currentTimeMillis(), null, line));
+    }
+
+    /**
+     * A method that retrieve the number of records that were dropped since the queue was full
+     * @return the number of dropped records
+     */
+    long getDroppedRecords()
+    {
+        return droppedRecords.sum();
+    }
+
+    /**
+     * A method that put a record in the queue according to the overflow policy
+     * @param record - the record to enqueue
+     */
+    private void enqueue(LogRecord record)
+    {
+        if (overflowPolicy == OverflowPolicy.DROP) {
+            if (!queue.offer(record)) {
+                droppedRecords.increment();
+            }
+            return;
+        }
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            droppedRecords.increment();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A method that stop the writer after all the queued records were written
+     */
+    void shutdown()
+    {
+        stop = true;
+        try {
+            join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A method that the thread will run when starts
+     * This method takes the queued records in batches and writes every batch at once
+     */
+    @Override
+    public void run()
+    {
+        List<LogRecord> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            openLogFile();
+            while (!stop || !queue.isEmpty()) {
+                try {
+                    LogRecord first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                    }
+                } catch (InterruptedException e) {
+                    queue.drainTo(batch, MAX_BATCH);
+                }
+                reportDrops(batch);
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                rotateIfNeeded();
+            }
+        } catch (IOException e) {
+            System.out.println("Error while writing to log");
+        } finally {
+            closeLogFile();
+        }
+    }
+
+    /**
+     * A method that add a record about the records that were dropped since the last report
+     * @param batch - the batch to add the report to
+     */
+    private void reportDrops(List<LogRecord> batch)
+    {
+        long dropped = droppedRecords.sum();
+        if (dropped != reportedDrops) {
+            batch.add(new LogRecord(System.currentTimeMillis(), Server.LOG_LEVEL.ERROR.toString(),
+                    (dropped - reportedDrops) + " log records were dropped, the log queue was full"));
+            reportedDrops = dropped;
+        }
+    }
+
+    /**
+     * A method that format a batch of records, and write it with a single call to the file and to the console
+     * @param batch - the records to write
+     */
+    private void writeBatch(List<LogRecord> batch) throws IOException
+    {
+        for (LogRecord record : batch) {
+            String timeStamp = formatTime(record.time);
+            if (record.tag == null) {
+                consoleBatch.append('[').append(timeStamp).append("] ").append(record.line).append('\n');
+            } else {
+                fileBatch.append('[').append(timeStamp).append("] ").append(record.tag).append(" - ").append(record.line).append("\n\n");
+            }
+        }
+        if (consoleBatch.length() > 0) {
+            System.out.print(consoleBatch);
+            System.out.flush();
+            consoleBatch.setLength(0);
+        }
+        if (fileBatch.length() > 0) {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(fileBatch.toString());
+            fileSize += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            fileBatch.setLength(0);
+        }
+    }
+
+    /**
+     * A method that format the time of a record, the formatted second is reused by the following records
+     * @param time - the time of the record in milliseconds
+     * @return A string of the date and time
+     */
+    private String formatTime(long time)
+    {
+        long second = time / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimeStamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).format(DATE_TIME_FORMATTER);
+        }
+        return cachedTimeStamp;
+    }
+
+    /**
+     * A method that rotate the log file when it passed its maximum size or its rotation interval
+     */
+    private void rotateIfNeeded() throws IOException
+    {
+        boolean bySize = maxFileSize > 0 && fileSize >= maxFileSize;
+        boolean byTime = rotateIntervalMillis > 0 && System.currentTimeMillis() >= nextRotation;
+        if (!bySize && !byTime) {
+            return;
+        }
+        closeLogFile();
+        String name = logFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        String extension = dot < 0 ? "" : name.substring(dot);
+        String suffix = LocalDateTime.now().format(ROTATE_FORMATTER);
+        File rotated = new File(logFile.getAbsoluteFile().getParentFile(), base + "-" + suffix + extension);
+        for (int i = 1; rotated.exists(); i++) {
+            rotated = new File(logFile.getAbsoluteFile().getParentFile(), base + "-" + suffix + "-" + i + extension);
+        }
+        if (!logFile.renameTo(rotated)) {
+            System.out.println("Error while rotating the log file " + logFile);
+        }
+        openLogFile();
+    }
+
+    /**
+     * A method that create or open the log file for appending
+     */
+    private void openLogFile() throws IOException
+    {
+        channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        nextRotation = System.currentTimeMillis() + rotateIntervalMillis;
+    }
+
+    /**
+     * A method that close the log file channel
+     */
+    private void closeLogFile()
+    {
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error while closing the log file");
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.distribution.chat.server.src;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A class represented the length prefixed binary protocol of the server,
+ * a client chooses it by sending MAGIC and VERSION as its first bytes, and then every message is a frame:
+ * a fixed header of opcode (1 byte), meta length (1 byte), topic length (2 bytes) and payload length (4 bytes),
+ * followed by the meta, the topic and the raw payload,
+ * a command may start its meta with "#id", and then its reply carries the same "#id" meta,
+ * the payload of a REGISTER is the content filter expression of the subscription (empty - no filter),
+ * the payload of a published message is forwarded to the binary subscribers without decoding it
+ */
+public class BinaryProtocol implements WireProtocol {
+
+    static final BinaryProtocol INSTANCE = new BinaryProtocol(false);
+    static final BinaryProtocol SEQUENCED = new BinaryProtocol(true);
+
+    static final byte MAGIC = 0x00; //a text client never starts with this byte
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    //client to server opcodes
+    static final byte REGISTER = 0x01;
+    static final byte LEAVE = 0x02;
+    static final byte SEND = 0x03;
+    static final byte CLOSE = 0x04;
+    static final byte TOPICS = 0x05;
+    static final byte STATS = 0x06;
+    static final byte BATCH = 0x07; //a payload of many (topic, content) entries
+    //server to client opcodes (CLOSE is used by both sides)
+    static final byte OK = 0x10;
+    static final byte ERROR = 0x11;
+    static final byte DELIVER = 0x12;
+    static final byte TOPICS_REPLY = 0x13;
+    static final byte STATS_REPLY = 0x14;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final boolean sequenced;
+
+    private BinaryProtocol(boolean sequenced)
+    {
+        this.sequenced = sequenced;
+    }
+
+    @Override
+    public ByteBuffer ok()
+    {
+        return frame(OK, EMPTY, EMPTY, EMPTY);
+    }
+
+    @Override
+    public ByteBuffer error()
+    {
+        return frame(ERROR, EMPTY, EMPTY, EMPTY);
+    }
+
+    @Override
+    public ByteBuffer error(String reason)
+    {
+        return frame(ERROR, EMPTY, EMPTY, reason.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public ByteBuffer close()
+    {
+        return frame(CLOSE, EMPTY, EMPTY, EMPTY);
+    }
+
+    /**
+     * A method that encode the registered topics as a payload of topics separated by new lines
+     * @param topics - the registered topics (may be empty)
+     * @return the encoded reply
+     */
+    @Override
+    public ByteBuffer topics(Collection<String> topics)
+    {
+        return frame(TOPICS_REPLY, EMPTY, EMPTY, String.join("\n", topics).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A method that encode the metrics of the broker as the payload of the reply
+     * @param report - the metrics in a single line
+     * @return the encoded reply
+     */
+    @Override
+    public ByteBuffer stats(String report)
+    {
+        return frame(STATS_REPLY, EMPTY, EMPTY, report.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A method that encode a published message, the meta holds the publisher address and the publish time,
+     * and for the sequenced variant also the sequence number of the message in its topic
+     * @param delivery - the published message
+     * @return the encoded message
+     */
+    @Override
+    public ByteBuffer deliver(Delivery delivery)
+    {
+        String meta = delivery.sender + " " + delivery.time + (sequenced ? " " + delivery.sequence : "");
+        return frame(DELIVER, meta.getBytes(StandardCharsets.UTF_8), delivery.topic.getBytes(StandardCharsets.UTF_8), delivery.getPayload());
+    }
+
+    @Override
+    public WireProtocol withSequences()
+    {
+        return SEQUENCED;
+    }
+
+    /**
+     * A method that tag a reply frame with the request id, as a "#id" meta before the meta of the reply
+     * @param requestId - the request id the client tagged the command with
+     * @param reply - the encoded reply frame
+     * @return the tagged reply
+     */
+    @Override
+    public ByteBuffer tag(long requestId, ByteBuffer reply)
+    {
+        byte[] frame = new byte[reply.remaining()];
+        reply.duplicate().get(frame);
+        int metaLength = frame[1] & 0xFF;
+        String meta = "#" + requestId + (metaLength > 0 ? " " + new String(frame, HEADER_SIZE, metaLength, StandardCharsets.UTF_8) : "");
+        int topicLength = ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+        byte[] topic = new byte[topicLength];
+        System.arraycopy(frame, HEADER_SIZE + metaLength, topic, 0, topicLength);
+        return frame(frame[0], meta.getBytes(StandardCharsets.UTF_8), topic, payload(frame, 0, frame.length));
+    }
+
+    /**
+     * A method that decode the request id of a complete frame, the "#id" the meta starts with
+     * @param frame - an array that holds the frame
+     * @param offset - the offset of the frame in the array
+     * @return the request id, or NO_REQUEST_ID if the frame was not tagged
+     */
+    static long requestId(byte[] frame, int offset)
+    {
+        int metaStart = offset + HEADER_SIZE;
+        int metaEnd = metaStart + (frame[offset + 1] & 0xFF);
+        if (metaStart == metaEnd || frame[metaStart] != '#') {
+            return NO_REQUEST_ID;
+        }
+        long requestId = 0;
+        int digits = 0;
+        for (int i = metaStart + 1; i < metaEnd && frame[i] != ' '; i++, digits++) {
+            if (frame[i] < '0' || frame[i] > '9' || digits == 18) {
+                return NO_REQUEST_ID;
+            }
+            requestId = requestId * 10 + (frame[i] - '0');
+        }
+        return digits == 0 ? NO_REQUEST_ID : requestId;
+    }
+
+    /**
+     * A method that decode the entries of a complete BATCH frame, every entry of the payload is
+     * topic length (2 bytes), topic, content length (4 bytes) and the raw content
+     * @param frame - an array that holds the frame
+     * @param offset - the offset of the frame in the array
+     * @param frameSize - the size of the frame
+     * @param sender - the ip and port of the publisher
+     * @param time - the time the batch was published
+     * @return the published messages in the order of the entries, or null if the entries are not valid
+     */
+    static List<Delivery> batch(byte[] frame, int offset, int frameSize, String sender, String time)
+    {
+        int metaLength = frame[offset + 1] & 0xFF;
+        int topicLength = ((frame[offset + 2] & 0xFF) << 8) | (frame[offset + 3] & 0xFF);
+        int position = offset + HEADER_SIZE + metaLength + topicLength;
+        int end = offset + frameSize;
+        List<Delivery> batch = new ArrayList<>();
+        while (position < end) {
+            if (end - position < 2) {
+                return null;
+            }
+            int entryTopicLength = ((frame[position] & 0xFF) << 8) | (frame[position + 1] & 0xFF);
+            position += 2;
+            if (entryTopicLength == 0 || end - position < entryTopicLength + 4) {
+                return null;
+            }
+            String topic = new String(frame, position, entryTopicLength, StandardCharsets.UTF_8);
+            position += entryTopicLength;
+            int contentLength = ((frame[position] & 0xFF) << 24) | ((frame[position + 1] & 0xFF) << 16)
+                    | ((frame[position + 2] & 0xFF) << 8) | (frame[position + 3] & 0xFF);
+            position += 4;
+            if (contentLength < 0 || end - position < contentLength) {
+                return null;
+            }
+            batch.add(new Delivery(topic, sender, time, Arrays.copyOfRange(frame, position, position + contentLength)));
+            position += contentLength;
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    /**
+     * A method that decode the meta of a complete frame, a REGISTER may hold its replay request in the meta,
+     * after the "#id" of a tagged frame
+     * @param frame - an array that holds the frame
+     * @param offset - the offset of the frame in the array
+     * @return the replay request, NONE if there is no meta, or null if it is not valid
+     */
+    static TopicHistory.ReplayRequest replay(byte[] frame, int offset)
+    {
+        int metaStart = offset + HEADER_SIZE;
+        int metaEnd = metaStart + (frame[offset + 1] & 0xFF);
+        if (metaStart < metaEnd && frame[metaStart] == '#') {
+            while (metaStart < metaEnd && frame[metaStart] != ' ') {
+                metaStart++;
+            }
+        }
+        return TopicHistory.ReplayRequest.parse(frame, metaStart, metaEnd);
+    }
+
+    /**
+     * A method that encode a single frame
+     * @param opcode - the opcode of the frame
+     * @param meta - the meta bytes (up to 255 bytes)
+     * @param topic - the topic bytes (up to 65535 bytes)
+     * @param payload - the payload bytes
+     * @return the encoded frame
+     */
+    static ByteBuffer frame(byte opcode, byte[] meta, byte[] topic, byte[] payload)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + meta.length + topic.length + payload.length);
+        buffer.put(opcode)
+                .put((byte) meta.length)
+                .putShort((short) topic.length)
+                .putInt(payload.length)
+                .put(meta)
+                .put(topic)
+                .put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A method that retrieve the total size of a frame from its header
+     * @param header - an array that holds the header
+     * @param offset - the offset of the header in the array
+     * @return the size of the frame including the header, or -1 if the payload is too large
+     */
+    static int frameSize(byte[] header, int offset)
+    {
+        int metaLength = header[offset + 1] & 0xFF;
+        int topicLength = ((header[offset + 2] & 0xFF) << 8) | (header[offset + 3] & 0xFF);
+        int payloadLength = ((header[offset + 4] & 0xFF) << 24) | ((header[offset + 5] & 0xFF) << 16)
+                | ((header[offset + 6] & 0xFF) << 8) | (header[offset + 7] & 0xFF);
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+            return -1;
+        }
+        return HEADER_SIZE + metaLength + topicLength + payloadLength;
+    }
+
+    /**
+     * A method that decode the topic of a complete frame
+     * @param frame - an array that holds the frame
+     * @param offset - the offset of the frame in the array
+     * @return the topic of the frame
+     */
+    static String topic(byte[] frame, int offset)
+    {
+        int metaLength = frame[offset + 1] & 0xFF;
+        int topicLength = ((frame[offset + 2] & 0xFF) << 8) | (frame[offset + 3] & 0xFF);
+        return new String(frame, offset + HEADER_SIZE + metaLength, topicLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A method that decode the content filter of a REGISTER frame, the expression is the payload of the frame
+     * @param frame - an array that holds the frame
+     * @param offset - the offset of the frame in the array
+     * @param frameSize - the size of the frame
+     * @return the content filter expression, or null if the payload is empty
+     */
+    static String where(byte[] frame, int offset, int frameSize)
+    {
+        byte[] payload = payload(frame, offset, frameSize);
+        return payload.length == 0 ? null : new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A method that copy the payload of a complete frame
+     * @param frame - an array that holds the frame
+     * @param offset - the offset of the frame in the array
+     * @param frameSize - the size of the frame
+     * @return the raw payload of the frame
+     */
+    static byte[] payload(byte[] frame, int offset, int frameSize)
+    {
+        int metaLength = frame[offset + 1] & 0xFF;
+        int topicLength = ((frame[offset + 2] & 0xFF) << 8) | (frame[offset + 3] & 0xFF);
+        int start = offset + HEADER_SIZE + metaLength + topicLength;
+        byte[] payload = new byte[offset + frameSize - start];
+        System.arraycopy(frame, start, payload, 0, payload.length);
+        return payload;
+    }
+}
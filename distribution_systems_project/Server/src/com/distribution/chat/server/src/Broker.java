@@ -0,0 +1,1405 @@
+package com.distribution.chat.server.src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented the message broker,
+ * that process the clients messages and forward them to the subscribers of the topic,
+ * regardless of the engine that serves the client connection
+ */
+public class Broker {
+
+    /**
+     * The reason a client gets before it is disconnected for falling behind
+     */
+    static final String SLOW_CONSUMER_REASON = "disconnected by the server, too slow to receive the messages";
+    /**
+     * The seconds a disconnected slow client has to read its last line, before its connection is closed
+     */
+    static final long DISCONNECT_GRACE_SECONDS = 5;
+
+    /**
+     * A set that hold all the connections the broker serves, with every engine, in order to close them when the broker stops
+     */
+    final Set<ClientConnection> handleClients = ConcurrentHashMap.newKeySet();
+    /**
+     * A lock that guards the removal of clients while the broker stops the connections,
+     * a ReentrantLock does not pin the carrier thread of a virtual thread as a synchronized block does
+     */
+    final ReentrantLock clientsLock = new ReentrantLock();
+
+    private final Map<ClientConnection,Set<String>> clientTopicsTable = new ConcurrentHashMap<>(); //table holds topics per client
+    private final TopicRegistry<ClientConnection> topicRegistry = new TopicRegistry<>(); //trie holds subscribers per topic filter
+    private final TopicRegistry<ClientConnection> conflatedSubscriptions = new TopicRegistry<>(); //the filters the clients registered to with CONFLATE
+    private final TopicRegistry<ClientConnection> filteredSubscriptions = new TopicRegistry<>(); //the filters the clients registered to with a content filter
+    private final TopicRegistry<SharedSubscription> sharedRegistry = new TopicRegistry<>(); //trie holds the shared subscriptions per topic filter
+    private final ConcurrentHashMap<String, SharedSubscription> sharedSubscriptions = new ConcurrentHashMap<>(); //the shared subscriptions by name
+    private volatile SharedSubscription.Strategy shareStrategy = SharedSubscription.Strategy.ROUND_ROBIN;
+    private final Map<ClientConnection, Map<String, ContentFilter>> clientContentFilters = new ConcurrentHashMap<>(); //content filter per topic filter per client
+    private final ConcurrentHashMap<String, ContentFilter> contentFilters = new ConcurrentHashMap<>(); //the compiled content filters by expression, shared by the subscriptions
+    private volatile List<String> conflatedFilters = Collections.emptyList(); //the filters of the topics conflated for every subscriber
+    private final ConcurrentHashMap<String, TopicOptions> topicOptions = new ConcurrentHashMap<>(); //the options of the subscriptions per topic
+    private final AtomicLong subscriptionsGeneration = new AtomicLong(); //changes on every REGISTER and LEAVE
+    private final ConcurrentHashMap<String,TopicHistory> topicHistories = new ConcurrentHashMap<>(); //sequence and replay ring per topic
+    private volatile int replaySize = 100;
+    private volatile long replaySeconds = 0;
+    private volatile MessageStore store; //null when the durable topic logs are not enabled
+    private volatile Federation federation; //null when the server is not federated
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.fromConfig(new Properties());
+    private volatile FanOutExecutor fanOutExecutor = FanOutExecutor.fromConfig(new Properties());
+    private final Metrics metrics = new Metrics(this);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "broker-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A method that apply the broker settings of the configuration file
+     * @param config - properties file object
+     */
+    void configure(Properties config)
+    {
+        slowConsumerPolicy = SlowConsumerPolicy.fromConfig(config);
+        replaySize = Integer.parseInt(config.getProperty("replay.size", "100").trim());
+        replaySeconds = Long.parseLong(config.getProperty("replay.seconds", "0").trim());
+        if (replaySize < 0 || replaySeconds < 0) {
+            throw new IllegalArgumentException("replay.size and replay.seconds must not be negative");
+        }
+        List<String> filters = new ArrayList<>();
+        for (String filter : config.getProperty("conflate.topics", "").split(",")) {
+            if (!filter.trim().isEmpty()) {
+                if (!TopicRegistry.isValidFilter(filter.trim())) {
+                    throw new IllegalArgumentException("conflate.topics has an invalid topic filter - " + filter.trim());
+                }
+                filters.add(filter.trim());
+            }
+        }
+        conflatedFilters = filters;
+        shareStrategy = SharedSubscription.Strategy.valueOf(config.getProperty("share.strategy", "round_robin").trim().toUpperCase());
+        for (Map.Entry<String, TopicHistory> history : topicHistories.entrySet()) {
+            history.getValue().conflated = isConflatedTopic(history.getKey());
+        }
+        FanOutExecutor previous = fanOutExecutor;
+        fanOutExecutor = FanOutExecutor.fromConfig(config);
+        previous.shutdown();
+    }
+
+    /**
+     * A method that checks if a topic is conflated for every subscriber by the configuration file
+     * @param topic - the topic
+     * @return true if a filter of conflate.topics matches the topic
+     */
+    private boolean isConflatedTopic(String topic)
+    {
+        for (String filter : conflatedFilters) {
+            if (TopicRegistry.matches(filter, topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A method that open the durable topic logs, if they are enabled in the configuration file
+     * @param config - properties file object
+     */
+    void openStore(Properties config) throws IOException
+    {
+        closeStore();
+        store = MessageStore.fromConfig(config);
+    }
+
+    /**
+     * A method that close the durable topic logs after the queued messages were written to the disk
+     */
+    void closeStore()
+    {
+        MessageStore current = store;
+        if (current != null) {
+            store = null;
+            current.shutdown();
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Message store closed, messages not stored - " + current.getDroppedMessages());
+        }
+    }
+
+    /**
+     * A method that set the federation of the server with its peers
+     * @param federation - the started federation, or null when the server stops
+     */
+    void setFederation(Federation federation)
+    {
+        this.federation = federation;
+    }
+
+    /**
+     * A method that stop the federation of the server, the links with the peers are closed
+     */
+    void closeFederation()
+    {
+        Federation currentFederation = federation;
+        federation = null;
+        if (currentFederation != null) {
+            currentFederation.shutdown();
+        }
+    }
+
+    /**
+     * A method that subscribe a federation link to a filter, on behalf of the remote servers it leads to
+     * @param link - the federation link
+     * @param filter - the topic filter
+     */
+    void addPeerInterest(PeerLink link, String filter)
+    {
+        topicRegistry.subscribe(filter, link);
+    }
+
+    /**
+     * A method that unsubscribe a federation link from a filter
+     * @param link - the federation link
+     * @param filter - the topic filter
+     */
+    void removePeerInterest(PeerLink link, String filter)
+    {
+        topicRegistry.unsubscribe(filter, link);
+    }
+
+    /**
+     * A method that publish a message a federation link forwarded, to the local clients and to the other links
+     * @param link - the link the message came through
+     * @param delivery - the forwarded message
+     */
+    void publishFromPeer(PeerLink link, Delivery delivery)
+    {
+        publish(link, delivery, WireProtocol.NO_REQUEST_ID);
+    }
+
+    /**
+     * A method that retrieve the durable topic logs
+     * @return the message store, or null if it is not enabled
+     */
+    MessageStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * A method that retrieve the metrics of the broker
+     * @return the metrics
+     */
+    Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * A method that retrieve the connected clients, for the gauges of the metrics
+     * @return A set of the client connections
+     */
+    Set<ClientConnection> getClients()
+    {
+        return clientTopicsTable.keySet();
+    }
+
+    /**
+     * A method that count the subscribers of every topic filter, for the gauges of the metrics
+     * @return A map of topic filter to the number of its subscribers
+     */
+    Map<String, Integer> getSubscriberCounts()
+    {
+        return topicRegistry.subscriberCounts();
+    }
+
+    /**
+     * A method that create the queue of the messages waiting to be written to a new client
+     * @return A new outbound queue with the configured limits
+     */
+    OutboundQueue newOutboundQueue()
+    {
+        return new OutboundQueue(slowConsumerPolicy);
+    }
+
+    /**
+     * A method that retrieve the slow consumer policy and its counters
+     * @return the current slow consumer policy
+     */
+    SlowConsumerPolicy getSlowConsumerPolicy()
+    {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * A method that run a task once after a delay, on the timer thread of the broker
+     * @param task - the task to run
+     * @param delay - the delay before running the task
+     * @param unit - the unit of the delay
+     */
+    void schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        timer.schedule(task, delay, unit);
+    }
+
+    /**
+     * A method that add a new client to the broker
+     * @param client - instance of the client connection
+     */
+    void addClient(ClientConnection client)
+    {
+        clientTopicsTable.put(client, ConcurrentHashMap.newKeySet());
+        metrics.connectionsOpened.increment();
+    }
+
+    /**
+     * A method that remove a client and all its subscriptions from the broker
+     * @param client - instance of the client connection
+     */
+    void removeClient(ClientConnection client)
+    {
+        Set<String> topics = clientTopicsTable.remove(client);
+        if (topics != null) {
+            metrics.connectionsClosed.increment();
+            Federation currentFederation = federation;
+            for (String topic : topics) {
+                unsubscribe(client, topic, true);
+                if (currentFederation != null) {
+                    currentFederation.localUnsubscribed(SharedSubscription.filterOf(topic));
+                }
+            }
+            clientContentFilters.remove(client);
+        }
+    }
+
+    /**
+     * A method that register an in-process client to a topic filter, the client reads the result from the tagged reply
+     * @param client - the in-process client
+     * @param filter - the topic filter
+     * @param where - the content filter expression of the subscription, null if none
+     * @param requestId - the request id the reply is tagged with
+     */
+    void registerLocal(LocalClient client, String filter, String where, long requestId)
+    {
+        register(client, filter, TopicHistory.ReplayRequest.NONE, where, requestId);
+    }
+
+    /**
+     * A method that register an in-process client to a topic filter, and keep only the latest message of each of its topics
+     * waiting for the client, the client reads the result from the tagged reply
+     * @param client - the in-process client
+     * @param filter - the topic filter
+     * @param requestId - the request id the reply is tagged with
+     */
+    void registerLocalConflated(LocalClient client, String filter, long requestId)
+    {
+        register(client, filter, TopicHistory.ReplayRequest.CONFLATE, null, requestId);
+    }
+
+    /**
+     * A method that unregister an in-process client from a topic filter, the client reads the result from the tagged reply
+     * @param client - the in-process client
+     * @param filter - the topic filter
+     * @param requestId - the request id the reply is tagged with
+     */
+    void leaveLocal(LocalClient client, String filter, long requestId)
+    {
+        leave(client, filter, requestId);
+    }
+
+    /**
+     * A method that publish the message object of an in-process client, nothing is parsed or copied,
+     * the client reads the result from the tagged reply
+     * @param client - the in-process client
+     * @param delivery - the published message
+     * @param requestId - the request id the reply is tagged with
+     */
+    void publishLocal(LocalClient client, Delivery delivery, long requestId)
+    {
+        publish(client, delivery, requestId);
+    }
+
+    /**
+     * A method that process a parsed command from a text client
+     * @param client - instance of the client connection
+     * @param command - the command view filled by the parser of the connection
+     * @return A string with the result of the process
+     */
+    String processCommand(ClientConnection client, TextCommand command)
+    {
+        long requestId = command.requestId;
+        switch (command.opcode)
+        {
+            case REGISTER:
+                return register(client, command.topic, command.replay, command.where, requestId);
+            case LEAVE:
+                return leave(client, command.topic, requestId);
+            case SEND:
+                return publish(client, new Delivery(command.topic, client.getIpPort(), Server.getCurrentTimeStamp(),
+                        command.copyContent(), true), requestId);
+            case CLOSE:
+                return close(client);
+            case TOPICS:
+                sendRegisterTopics(client, requestId);
+                return "OK";
+            case STATS:
+                reply(client, requestId, client.getProtocol().stats(metrics.getReport()));
+                return "OK";
+            case EMPTY:
+                return "OK";
+            default:
+                return badRequest(client, command.toString(), requestId);
+        }
+    }
+
+    /**
+     * A method that process a complete frame from a binary client
+     * @param client - instance of the client connection
+     * @param frame - an array that holds the frame
+     * @param offset - the offset of the frame in the array
+     * @param frameSize - the size of the frame including the header
+     * @return A string with the result of the process
+     */
+    String processFrame(ClientConnection client, byte[] frame, int offset, int frameSize)
+    {
+        long requestId = BinaryProtocol.requestId(frame, offset);
+        switch (frame[offset])
+        {
+            case BinaryProtocol.REGISTER:
+                TopicHistory.ReplayRequest replay = BinaryProtocol.replay(frame, offset);
+                if (replay == null) {
+                    return badRequest(client, "binary REGISTER with an invalid replay request", requestId);
+                }
+                return register(client, BinaryProtocol.topic(frame, offset), replay, BinaryProtocol.where(frame, offset, frameSize), requestId);
+            case BinaryProtocol.LEAVE:
+                return leave(client, BinaryProtocol.topic(frame, offset), requestId);
+            case BinaryProtocol.SEND:
+                String topic = BinaryProtocol.topic(frame, offset);
+                if (!TopicRegistry.isValidTopic(topic)) {
+                    return badRequest(client, "binary SEND with an empty topic, or a topic with a space or a line break", requestId);
+                }
+                return publish(client, new Delivery(topic, client.getIpPort(),
+                        Server.getCurrentTimeStamp(), BinaryProtocol.payload(frame, offset, frameSize)), requestId);
+            case BinaryProtocol.BATCH:
+                List<Delivery> batch = BinaryProtocol.batch(frame, offset, frameSize, client.getIpPort(), Server.getCurrentTimeStamp());
+                if (batch == null) {
+                    return badRequest(client, "binary BATCH with invalid entries", requestId);
+                }
+                for (Delivery delivery : batch) {
+                    if (!TopicRegistry.isValidTopic(delivery.topic)) {
+                        return badRequest(client, "binary BATCH with an empty topic, or a topic with a space or a line break", requestId);
+                    }
+                }
+                return publishBatch(client, batch, requestId);
+            case BinaryProtocol.CLOSE:
+                return close(client);
+            case BinaryProtocol.TOPICS:
+                sendRegisterTopics(client, requestId);
+                return "OK";
+            case BinaryProtocol.STATS:
+                reply(client, requestId, client.getProtocol().stats(metrics.getReport()));
+                return "OK";
+            default:
+                return badRequest(client, "binary opcode " + frame[offset], requestId);
+        }
+    }
+
+    /**
+     * A method that register a client to a topic
+     * @param client - instance of the client connection
+     * @param rTopic - the topic to register to
+     * @param replay - the history of the topic the client asked to get before the live messages
+     * @param where - the content filter expression of the subscription, null if none
+     * @param requestId - the request id the reply is tagged with, NO_REQUEST_ID if none
+     * @return A string with the result of the process
+     */
+    private String register(ClientConnection client, String rTopic, TopicHistory.ReplayRequest replay, String where, long requestId)
+    {
+        if(SharedSubscription.isShared(rTopic))
+        {
+            return registerShared(client, rTopic, replay, where, requestId);
+        }
+        ContentFilter contentFilter = null;
+        if(where != null)
+        {
+            contentFilter = acquireContentFilter(where);
+            if(contentFilter == null)
+            {
+                reply(client, requestId, client.getProtocol().error());
+                //print on server
+                Server.printToConsole("ERROR - Client " + client + " REGISTER with an invalid content filter - " + where);
+                //write to log
+                writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER with an invalid content filter - " + where);
+                return "OK";
+            }
+        }
+        boolean registered;
+        if(replay.replay != TopicHistory.Replay.NONE)
+        {
+            registered = registerWithReplay(client, rTopic, replay, contentFilter, requestId);
+        }
+        else
+        {
+            registered = registerTopic(client, rTopic, replay, contentFilter, requestId);
+        }
+        if(!registered)
+        {
+            releaseContentFilter(contentFilter);
+        }
+        return "OK";
+    }
+
+    /**
+     * A method that add a client to the group of a shared subscription, "$share/group/filter",
+     * every message of the filter goes to a single member of the group, the group is created with its first member
+     * @param client - instance of the client connection
+     * @param name - the name of the shared subscription
+     * @param replay - the REGISTER options, a shared subscription takes none
+     * @param where - the content filter expression, a shared subscription takes none
+     * @param requestId - the request id the reply is tagged with, NO_REQUEST_ID if none
+     * @return A string with the result of the process
+     */
+    private String registerShared(ClientConnection client, String name, TopicHistory.ReplayRequest replay, String where, long requestId)
+    {
+        SharedSubscription created = SharedSubscription.parse(name, this::redispatchEvicted);
+        if(created == null || replay.replay != TopicHistory.Replay.NONE || replay.conflate || where != null)
+        {
+            reply(client, requestId, client.getProtocol().error());
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " REGISTER to an invalid shared subscription - " + name);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER to an invalid shared subscription - " + name);
+            return "OK";
+        }
+        if(!clientTopicsTable.get(client).add(name))
+        {
+            reply(client, requestId, client.getProtocol().error());
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " REGISTER to existing topic - " + name);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER to existing topic - " + name);
+            return "OK";
+        }
+        //the member joins before a new group is registered, so no message reaches a group without members
+        SharedSubscription group = sharedSubscriptions.compute(name, (key, current) -> {
+            SharedSubscription joined = current != null ? current : created;
+            joined.addMember(client);
+            if (current == null) {
+                sharedRegistry.subscribe(joined.filter, joined);
+            }
+            return joined;
+        });
+        localSubscribed(group.filter);
+        reply(client, requestId, client.getProtocol().ok());
+        //print on server
+        Server.printToConsole("Client " + client + " REGISTER " + name + " - shares the topics of " + group.filter);
+        //write to log
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + client + " REGISTER " + name + " - shares the topics of " + group.filter);
+        return "OK";
+    }
+
+    /**
+     * A method that remove a client from the group of a shared subscription, the group is removed with its last member,
+     * the messages in flight to a client that disconnected are dispatched again to the other members,
+     * since its queue already dropped them, the messages in flight to a client that sent a LEAVE are still in its queue,
+     * so they are written to it, and each message still reaches a single member
+     * @param client - instance of the client connection
+     * @param name - the name of the shared subscription
+     * @param disconnected - true if the client disconnected, false if it sent a LEAVE
+     */
+    private void leaveShared(ClientConnection client, String name, boolean disconnected)
+    {
+        List<SharedSubscription.Dispatch> inFlight = new ArrayList<>();
+        SharedSubscription group = sharedSubscriptions.get(name);
+        sharedSubscriptions.computeIfPresent(name, (key, current) -> {
+            inFlight.addAll(current.removeMember(client, disconnected));
+            if (current.isEmpty()) {
+                sharedRegistry.unsubscribe(current.filter, current);
+                return null;
+            }
+            return current;
+        });
+        if (group == null || inFlight.isEmpty()) {
+            return;
+        }
+        if (group.isEmpty()) {
+            //print on server
+            Server.printToConsole("ERROR - " + inFlight.size() + " messages in flight to client " + client + " were dropped, no member is left in " + name);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), inFlight.size() + " messages in flight to client " + client + " were dropped, no member is left in " + name);
+            return;
+        }
+        //print on server
+        Server.printToConsole(inFlight.size() + " messages in flight to client " + client + " are dispatched again to the members of " + name);
+        //write to log
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), inFlight.size() + " messages in flight to client " + client + " are dispatched again to the members of " + name);
+        for (SharedSubscription.Dispatch dispatch : inFlight) {
+            forwardShared(group, dispatch.delivery, dispatch.publishedAt, null);
+        }
+    }
+
+    /**
+     * A method that forward a published message to a single member of a shared subscription,
+     * the message is in flight to the member until it was written to it
+     * @param group - the shared subscription
+     * @param delivery - the published message
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param encoded - the messages the fan-out encoded by protocol, null to encode the message for the member alone
+     */
+    private void forwardShared(SharedSubscription group, Delivery delivery, long publishedAt, Map<WireProtocol, ByteBuffer> encoded)
+    {
+        SharedSubscription.Dispatch dispatch = group.dispatch(delivery, publishedAt, shareStrategy);
+        if (dispatch == null) {
+            //the last member left while the message was published
+            return;
+        }
+        sendDispatched(dispatch, encoded);
+    }
+
+    /**
+     * A method that dispatch a message the slow consumer policy evicted from the queue of a member to another member of its group,
+     * the message is dropped if the group has no other member
+     * @param evicted - the dispatch of the evicted message
+     */
+    private void redispatchEvicted(SharedSubscription.Dispatch evicted)
+    {
+        SharedSubscription.Dispatch dispatch = evicted.group.redispatch(evicted, shareStrategy);
+        if (dispatch == null) {
+            slowConsumerPolicy.droppedOldest.increment();
+            return;
+        }
+        sendDispatched(dispatch, null);
+    }
+
+    /**
+     * A method that send a message a shared subscription dispatched to the member it chose
+     * @param dispatch - the dispatch of the message
+     * @param encoded - the messages the fan-out encoded by protocol, null to encode the message for the member alone
+     */
+    private void sendDispatched(SharedSubscription.Dispatch dispatch, Map<WireProtocol, ByteBuffer> encoded)
+    {
+        Delivery delivery = dispatch.delivery;
+        long publishedAt = dispatch.publishedAt;
+        SharedSubscription group = dispatch.group;
+        ClientConnection member = dispatch.member.client;
+        if (member instanceof LocalClient) {
+            //an in-process client gets the message object itself, nothing is encoded for it
+            ((LocalClient) member).deliverDispatched(delivery, publishedAt, dispatch);
+        } else {
+            ByteBuffer message = encoded != null
+                    ? encoded.computeIfAbsent(member.getProtocol(), protocol -> protocol.deliver(delivery).asReadOnlyBuffer()).duplicate()
+                    : member.getProtocol().deliver(delivery);
+            member.sendDispatched(message, publishedAt, dispatch);
+        }
+        metrics.deliveries.increment();
+
+        //print on server
+        Server.printToConsole("FORWARD ( " + delivery.topic + " ) " + delivery.sender + " " + delivery.time + " - " + delivery.describeContent() + " to client - " + member + " of " + group);
+        //write to log
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "FORWARD ( " + delivery.topic + " ) " + delivery.sender + " " + delivery.time + " - " + delivery.describeContent() + " to client - " + member + " of " + group);
+    }
+
+    /**
+     * A method that register a client to a topic, without a replay
+     * @param client - instance of the client connection
+     * @param rTopic - the topic to register to
+     * @param replay - the REGISTER options, without a replay
+     * @param contentFilter - the content filter of the subscription, null if none
+     * @param requestId - the request id the reply is tagged with, NO_REQUEST_ID if none
+     * @return true if the client registered
+     */
+    private boolean registerTopic(ClientConnection client, String rTopic, TopicHistory.ReplayRequest replay, ContentFilter contentFilter, long requestId)
+    {
+        if(!TopicRegistry.isValidFilter(rTopic))
+        {
+            reply(client, requestId, client.getProtocol().error());
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " REGISTER to an invalid topic filter - " + rTopic);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER to an invalid topic filter - " + rTopic);
+            return false;
+        }
+        else if(!TopicRegistry.hasWildcard(rTopic) && (replay.conflate || isConflatedTopic(rTopic)))
+        {
+            //the topic is locked from the subscription to the last value, so no newer message reaches the client before it
+            TopicHistory history = topicHistory(rTopic);
+            history.lock.lock();
+            try {
+                return registerConflated(client, rTopic, replay, contentFilter, requestId);
+            } finally {
+                history.lock.unlock();
+            }
+        }
+        else if(clientTopicsTable.get(client).add(rTopic))
+        {
+            subscribe(client, rTopic, replay.conflate, contentFilter);
+            reply(client, requestId, client.getProtocol().ok());
+            if (TopicRegistry.hasWildcard(rTopic)) {
+                sendLastValues(client, rTopic, replay.conflate, contentFilter);
+            }
+            //print on server
+            Server.printToConsole("Client " + client + " REGISTER " + rTopic + describeOptions(replay, contentFilter));
+            //write to log
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + client + " REGISTER " + rTopic + describeOptions(replay, contentFilter));
+            return true;
+        }
+        else
+        {
+            reply(client, requestId, client.getProtocol().error());
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " REGISTER to existing topic - " + rTopic);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER to existing topic - " + rTopic);
+            return false;
+        }
+    }
+
+    /**
+     * A method that describe the options of a REGISTER, for the log
+     * @param replay - the REGISTER options
+     * @param contentFilter - the content filter of the subscription, null if none
+     * @return A string of the options, empty if none
+     */
+    private static String describeOptions(TopicHistory.ReplayRequest replay, ContentFilter contentFilter)
+    {
+        return (replay.conflate ? " " + TopicHistory.ReplayRequest.CONFLATE_OPTION : "") + (contentFilter != null ? " WHERE " + contentFilter : "");
+    }
+
+    /**
+     * A method that add a subscription of a client to the registries of the broker, and tell the federation
+     * @param client - instance of the client connection
+     * @param filter - the topic filter
+     * @param conflate - true if the client asked to conflate the topics of the filter
+     * @param contentFilter - the content filter of the subscription, null if none
+     */
+    private void subscribe(ClientConnection client, String filter, boolean conflate, ContentFilter contentFilter)
+    {
+        //the content filter is in place before the subscription, so no message passes it unfiltered
+        if (contentFilter != null) {
+            clientContentFilters.computeIfAbsent(client, c -> new ConcurrentHashMap<>()).put(filter, contentFilter);
+            filteredSubscriptions.subscribe(filter, client);
+        }
+        if (conflate) {
+            conflatedSubscriptions.subscribe(filter, client);
+        }
+        //the resolved options are dropped before the client joins the subscribers, so no fan-out sees the client with older options
+        invalidateTopicOptions();
+        topicRegistry.subscribe(filter, client);
+        localSubscribed(filter);
+    }
+
+    /**
+     * A method that remove a subscription of a client from the registries of the broker
+     * @param client - instance of the client connection
+     * @param filter - the topic filter
+     * @param disconnected - true if the client disconnected, false if it sent a LEAVE
+     */
+    private void unsubscribe(ClientConnection client, String filter, boolean disconnected)
+    {
+        if (SharedSubscription.isShared(filter)) {
+            leaveShared(client, filter, disconnected);
+            return;
+        }
+        topicRegistry.unsubscribe(filter, client);
+        conflatedSubscriptions.unsubscribe(filter, client);
+        if (filteredSubscriptions.unsubscribe(filter, client)) {
+            Map<String, ContentFilter> filters = clientContentFilters.get(client);
+            if (filters != null) {
+                releaseContentFilter(filters.remove(filter));
+            }
+        }
+        invalidateTopicOptions();
+    }
+
+    /**
+     * A method that retrieve the options of the subscriptions that match a topic, they are resolved once per topic
+     * and kept until the next REGISTER or LEAVE, so the fan-out does not match the subscriptions of every subscriber again,
+     * must be called after the subscribers of the topic were retrieved
+     * @param topic - the topic of the published message
+     * @return the options of the topic
+     */
+    private TopicOptions topicOptions(String topic)
+    {
+        long generation = subscriptionsGeneration.get();
+        TopicOptions cached = topicOptions.get(topic);
+        //options of an older generation may be put by a fan-out that resolved them while the subscriptions changed
+        if (cached != null && cached.generation == generation) {
+            return cached;
+        }
+        Map<ClientConnection, ContentFilter[]> contentFilters = Collections.emptyMap();
+        for (ClientConnection subscriber : filteredSubscriptions.getSubscribers(topic)) {
+            ContentFilter[] filters = contentFiltersOf(subscriber, topic);
+            if (filters != null) {
+                if (contentFilters.isEmpty()) {
+                    contentFilters = new IdentityHashMap<>();
+                }
+                contentFilters.put(subscriber, filters);
+            }
+        }
+        TopicOptions resolved = new TopicOptions(generation, conflatedSubscriptions.getSubscribers(topic), contentFilters);
+        if (topicOptions.size() >= TopicRegistry.MAX_CACHED_TOPICS) {
+            topicOptions.clear();
+        }
+        topicOptions.put(topic, resolved);
+        return resolved;
+    }
+
+    /**
+     * A method that drop the resolved options of the topics after the subscriptions changed
+     */
+    private void invalidateTopicOptions()
+    {
+        subscriptionsGeneration.incrementAndGet();
+        topicOptions.clear();
+    }
+
+    /**
+     * A method that retrieve the compiled content filter of an expression, the subscriptions with the same expression share it,
+     * so it is compiled once and evaluated once per message for all of them
+     * @param where - the content filter expression
+     * @return the shared content filter, or null if the expression is not valid
+     */
+    private ContentFilter acquireContentFilter(String where)
+    {
+        return contentFilters.compute(where.trim(), (expression, shared) -> {
+            ContentFilter contentFilter = shared != null ? shared : ContentFilter.compile(expression);
+            if (contentFilter != null) {
+                contentFilter.subscriptions++;
+            }
+            return contentFilter;
+        });
+    }
+
+    /**
+     * A method that release a subscription of a content filter, the filter is forgotten with its last subscription
+     * @param contentFilter - the content filter, may be null
+     */
+    private void releaseContentFilter(ContentFilter contentFilter)
+    {
+        if (contentFilter != null) {
+            contentFilters.computeIfPresent(contentFilter.expression, (expression, shared) -> --shared.subscriptions == 0 ? null : shared);
+        }
+    }
+
+    /**
+     * A method that register a client to a conflated topic, and send it the last message of the topic at once,
+     * must be called while holding the lock of the topic
+     * @param client - instance of the client connection
+     * @param rTopic - the topic to register to, without wildcards
+     * @param replay - the REGISTER options, without a replay
+     * @param contentFilter - the content filter of the subscription, null if none
+     * @param requestId - the request id the reply is tagged with, NO_REQUEST_ID if none
+     * @return true if the client registered
+     */
+    private boolean registerConflated(ClientConnection client, String rTopic, TopicHistory.ReplayRequest replay, ContentFilter contentFilter, long requestId)
+    {
+        if(!clientTopicsTable.get(client).add(rTopic))
+        {
+            reply(client, requestId, client.getProtocol().error());
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " REGISTER to existing topic - " + rTopic);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER to existing topic - " + rTopic);
+            return false;
+        }
+        subscribe(client, rTopic, replay.conflate, contentFilter);
+        reply(client, requestId, client.getProtocol().ok());
+        Delivery last = topicHistory(rTopic).last();
+        boolean sent = last != null && (contentFilter == null || contentFilter.accepts(last.getContent()));
+        if (sent) {
+            sendConflated(client, last, System.nanoTime());
+        }
+        //print on server
+        Server.printToConsole("Client " + client + " REGISTER " + rTopic + describeOptions(TopicHistory.ReplayRequest.CONFLATE, contentFilter) + (sent ? " - sent the last message" : ""));
+        //write to log
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + client + " REGISTER " + rTopic + describeOptions(TopicHistory.ReplayRequest.CONFLATE, contentFilter) + (sent ? " - sent the last message" : ""));
+        return true;
+    }
+
+    /**
+     * A method that send a client that registered to a wildcard filter the last message of every conflated topic the filter matches,
+     * a message published meanwhile may reach the client twice, but it replaces itself if it still waits for the client
+     * @param client - instance of the client connection
+     * @param filter - the wildcard filter the client registered to
+     * @param conflate - true if the client asked to conflate all the topics of the filter
+     * @param contentFilter - the content filter of the subscription, null if none
+     */
+    private void sendLastValues(ClientConnection client, String filter, boolean conflate, ContentFilter contentFilter)
+    {
+        for (Map.Entry<String, TopicHistory> entry : topicHistories.entrySet()) {
+            TopicHistory history = entry.getValue();
+            if ((conflate || history.conflated) && TopicRegistry.matches(filter, entry.getKey())) {
+                history.lock.lock();
+                try {
+                    Delivery last = history.last();
+                    if (last != null && (contentFilter == null || contentFilter.accepts(last.getContent()))) {
+                        sendConflated(client, last, System.nanoTime());
+                    }
+                } finally {
+                    history.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * A method that send a message of a conflated topic to a client, the message replaces the one of the topic that waits for the client
+     * @param client - instance of the client connection
+     * @param delivery - the message
+     * @param publishedAt - the System.nanoTime the message was published at
+     */
+    private static void sendConflated(ClientConnection client, Delivery delivery, long publishedAt)
+    {
+        if (client instanceof LocalClient) {
+            ((LocalClient) client).deliver(delivery, publishedAt, delivery.topic);
+        } else {
+            client.send(client.getProtocol().deliver(delivery), publishedAt, delivery.topic);
+        }
+    }
+
+    /**
+     * A method that register a client to a topic, and replay the kept history of the topic before the live messages,
+     * the topic is locked against publishers meanwhile, so no message is missed or sent twice,
+     * from now on the messages to the client carry their sequence numbers
+     * @param client - instance of the client connection
+     * @param rTopic - the topic to register to, must not be a wildcard filter
+     * @param replay - the history of the topic to replay
+     * @param contentFilter - the content filter of the subscription, that applies to the replayed messages as well, null if none
+     * @param requestId - the request id the reply is tagged with, NO_REQUEST_ID if none
+     * @return true if the client registered
+     */
+    private boolean registerWithReplay(ClientConnection client, String rTopic, TopicHistory.ReplayRequest replay, ContentFilter contentFilter, long requestId)
+    {
+        if(!TopicRegistry.isValidFilter(rTopic) || TopicRegistry.hasWildcard(rTopic))
+        {
+            reply(client, requestId, client.getProtocol().error());
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " REGISTER with replay to an invalid topic - " + rTopic);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER with replay to an invalid topic - " + rTopic);
+            return false;
+        }
+        TopicHistory history = topicHistory(rTopic);
+        history.lock.lock();
+        try {
+            if(!clientTopicsTable.get(client).add(rTopic))
+            {
+                reply(client, requestId, client.getProtocol().error());
+                //print on server
+                Server.printToConsole("ERROR - Client " + client + " REGISTER to existing topic - " + rTopic);
+                //write to log
+                writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER to existing topic - " + rTopic);
+                return false;
+            }
+            client.setProtocol(client.getProtocol().withSequences());
+            subscribe(client, rTopic, replay.conflate, contentFilter);
+            reply(client, requestId, client.getProtocol().ok());
+            List<Delivery> replayed = history.replay(replay);
+            if (replay.replay == TopicHistory.Replay.FROM && replay.value < history.oldestSequence()) {
+                replayed.addAll(0, storedHistory(client, rTopic, history, replay.value));
+            }
+            if (contentFilter != null) {
+                replayed.removeIf(delivery -> !contentFilter.accepts(delivery.getContent()));
+            }
+            for (Delivery delivery : replayed) {
+                client.send(client.getProtocol().deliver(delivery));
+            }
+            //print on server
+            Server.printToConsole("Client " + client + " REGISTER " + rTopic + " " + replay.replay + " " + replay.value + " - replayed " + replayed.size() + " messages");
+            //write to log
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + client + " REGISTER " + rTopic + " " + replay.replay + " " + replay.value + " - replayed " + replayed.size() + " messages");
+        } finally {
+            history.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * A method that read the messages of a topic that are older than its history from the store,
+     * must be called while holding the lock of the history, so the publishers of the topic wait
+     * and the read messages end right where the kept ones start
+     * @param client - instance of the client connection that registered
+     * @param topic - the topic
+     * @param history - the history of the topic
+     * @param fromSequence - the sequence number of the first message to read
+     * @return A list of the stored messages, oldest first, empty if the store is not enabled or can not tell them apart
+     */
+    private List<Delivery> storedHistory(ClientConnection client, String topic, TopicHistory history, long fromSequence)
+    {
+        MessageStore currentStore = store;
+        if (currentStore == null) {
+            return Collections.emptyList();
+        }
+        try {
+            List<Delivery> stored = currentStore.read(topic, fromSequence, history.oldestSequence(), history.minPublishedAt());
+            if (stored != null) {
+                return stored;
+            }
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " REGISTER " + topic + " FROM " + fromSequence + " - the store dropped messages of the topic, replayed the kept history only");
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER " + topic + " FROM " + fromSequence + " - the store dropped messages of the topic, replayed the kept history only");
+        } catch (IOException e) {
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " REGISTER " + topic + " FROM " + fromSequence + " - can not read the store, replayed the kept history only");
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " REGISTER " + topic + " FROM " + fromSequence + " - can not read the store, replayed the kept history only");
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), HandleClientThread.getStackTraceAsString(e));
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * A method that tell the federation a local client registered to a filter
+     * @param filter - the topic filter
+     */
+    private void localSubscribed(String filter)
+    {
+        Federation currentFederation = federation;
+        if (currentFederation != null) {
+            currentFederation.localSubscribed(filter);
+        }
+    }
+
+    /**
+     * A method that retrieve the history of a topic, the history is created on the first use of the topic,
+     * its sequence numbers continue the durable log of the topic, if the store is enabled
+     * @param topic - the topic
+     * @return the history of the topic
+     */
+    private TopicHistory topicHistory(String topic)
+    {
+        TopicHistory history = topicHistories.get(topic);
+        if (history == null) {
+            history = topicHistories.computeIfAbsent(topic, t -> {
+                MessageStore currentStore = store;
+                TopicHistory created = new TopicHistory(replaySize, replaySeconds, currentStore != null ? currentStore.nextOffset(t) : 0);
+                created.conflated = isConflatedTopic(t);
+                return created;
+            });
+        }
+        return history;
+    }
+
+    /**
+     * A method that unregister a client from a topic
+     * @param client - instance of the client connection
+     * @param lTopic - the topic to leave
+     * @param requestId - the request id the reply is tagged with, NO_REQUEST_ID if none
+     * @return A string with the result of the process
+     */
+    private String leave(ClientConnection client, String lTopic, long requestId)
+    {
+        if(clientTopicsTable.get(client).remove(lTopic))
+        {
+            unsubscribe(client, lTopic, false);
+            Federation currentFederation = federation;
+            if (currentFederation != null) {
+                currentFederation.localUnsubscribed(SharedSubscription.filterOf(lTopic));
+            }
+            reply(client, requestId, client.getProtocol().ok());
+            //print on server
+            Server.printToConsole("Client " + client + " LEAVE " + lTopic);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + client + " LEAVE " + lTopic);
+        }
+        else
+        {
+            reply(client, requestId, client.getProtocol().error());
+
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " LEAVE an unregistered topic - " + lTopic);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " LEAVE an unregistered topic - " + lTopic);
+        }
+        return "OK";
+    }
+
+    /**
+     * A method that forward a published message to the subscribers of its topic
+     * @param client - instance of the publisher connection
+     * @param delivery - the published message
+     * @param requestId - the request id of the publish, a tagged publish is acknowledged with a tagged OK
+     * @return A string with the result of the process
+     */
+    private String publish(ClientConnection client, Delivery delivery, long requestId)
+    {
+        long publishedAt = System.nanoTime();
+        String topic = delivery.topic;
+        if (TopicRegistry.hasWildcard(topic)) {
+            reply(client, requestId, client.getProtocol().error());
+            //print on server
+            Server.printToConsole("ERROR - Client " + client + " sent to a wildcard topic - " + topic);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " sent to a wildcard topic - " + topic);
+            return "ERROR";
+        }
+        //the topic is locked from the sequence number to the fan-out, so a replaying REGISTER sees every message once
+        metrics.publishes.increment();
+        TopicHistory history = topicHistory(topic);
+        history.lock.lock();
+        try {
+            history.append(delivery);
+            Federation currentFederation = federation;
+            if (currentFederation != null && delivery.origin == null) {
+                currentFederation.stamp(delivery);
+            }
+            MessageStore currentStore = store;
+            if (currentStore != null) {
+                currentStore.append(delivery);
+            }
+            //print on server
+            Server.printToConsole("Client " + client + " sent " + delivery.describeContent() + " on topic " + topic);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + client + " sent " + delivery.describeContent() + " on topic " + topic);
+            //Send the message to the subscribers of the filters that match the topic only
+            long fanOutStart = System.nanoTime();
+            //the message is encoded once per protocol, and the log line once per message
+            Set<ClientConnection> subscribers = topicRegistry.getSubscribers(topic);
+            //a message of a conflated topic replaces the one of the topic that still waits for the subscriber
+            boolean conflated = history.conflated;
+            TopicOptions options = topicOptions(topic);
+            Set<ClientConnection> conflating = conflated ? Collections.emptySet() : options.conflating;
+            //every distinct content filter of the subscribers is evaluated once for the message
+            Map<ClientConnection, ContentFilter[]> filtered = options.contentFilters;
+            List<Delivery> published = Collections.singletonList(delivery);
+            FanOutExecutor currentFanOut = fanOutExecutor;
+            Map<WireProtocol, ByteBuffer> encoded = fanOutCache(currentFanOut, subscribers);
+            Map<ContentFilter, boolean[]> filterResults = filtered.isEmpty() ? null : fanOutCache(currentFanOut, subscribers);
+            String forward = "FORWARD ( " + topic + " ) " + delivery.sender + " " + delivery.time + " - " + delivery.describeContent() + " to client - ";
+            currentFanOut.forEach(subscribers, subscriber -> {
+                if (subscriber instanceof PeerLink && (currentFederation == null || !currentFederation.mayForward((PeerLink) subscriber, client, delivery))) {
+                    return;
+                }
+                ContentFilter[] contentFilters = filtered.get(subscriber);
+                if (contentFilters != null) {
+                    boolean[] accepted = accepted(contentFilters, published, filterResults);
+                    if (!accepted[0]) {
+                        metrics.filteredOut.increment();
+                        return;
+                    }
+                }
+                String conflationKey = conflated || conflating.contains(subscriber) ? topic : null;
+                if (subscriber instanceof LocalClient) {
+                    //an in-process client gets the message object itself, nothing is encoded for it
+                    ((LocalClient) subscriber).deliver(delivery, publishedAt, conflationKey);
+                } else {
+                    ByteBuffer message = encoded.computeIfAbsent(subscriber.getProtocol(), protocol -> protocol.deliver(delivery).asReadOnlyBuffer());
+                    //send to client, every subscriber reads the shared buffer through its own view
+                    subscriber.send(message.duplicate(), publishedAt, conflationKey);
+                }
+                metrics.deliveries.increment();
+
+                //print on server
+                Server.printToConsole(forward + subscriber);
+                //write to log
+                writeToLog(Server.LOG_LEVEL.INFO.toString(), forward + subscriber);
+            });
+            //every shared subscription of the topic forwards the message to a single member of its group
+            for (SharedSubscription group : sharedRegistry.getSubscribers(topic)) {
+                forwardShared(group, delivery, publishedAt, encoded);
+            }
+            metrics.fanOutTime.record(System.nanoTime() - fanOutStart);
+        } finally {
+            history.lock.unlock();
+        }
+        if (requestId != WireProtocol.NO_REQUEST_ID) {
+            reply(client, requestId, client.getProtocol().ok());
+        }
+        return "OK";
+    }
+
+    /**
+     * A method that forward a batch of published messages, grouped by topic,
+     * every topic of the batch is locked and fanned out once, and its subscribers get all its messages in a single write,
+     * the messages of a topic keep the order of the batch, and each one is still a separate delivery with its own sequence number
+     * @param client - instance of the publisher connection
+     * @param batch - the published messages in the order of the batch
+     * @param requestId - the request id of the batch, a tagged batch is acknowledged with a tagged OK
+     * @return A string with the result of the process
+     */
+    private String publishBatch(ClientConnection client, List<Delivery> batch, long requestId)
+    {
+        Map<String, List<Delivery>> topics = new LinkedHashMap<>();
+        for (Delivery delivery : batch) {
+            if (TopicRegistry.hasWildcard(delivery.topic)) {
+                //nothing of the batch is published
+                reply(client, requestId, client.getProtocol().error());
+                //print on server
+                Server.printToConsole("ERROR - Client " + client + " sent a batch to a wildcard topic - " + delivery.topic);
+                //write to log
+                writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " sent a batch to a wildcard topic - " + delivery.topic);
+                return "ERROR";
+            }
+            topics.computeIfAbsent(delivery.topic, topic -> new ArrayList<>()).add(delivery);
+        }
+        for (Map.Entry<String, List<Delivery>> topic : topics.entrySet()) {
+            publishTopicBatch(client, topic.getKey(), topic.getValue());
+        }
+        if (requestId != WireProtocol.NO_REQUEST_ID) {
+            reply(client, requestId, client.getProtocol().ok());
+        }
+        return "OK";
+    }
+
+    /**
+     * A method that forward the messages of a batch to the subscribers of their topic,
+     * the messages are encoded once per protocol of the subscribers, into a single buffer that every subscriber writes at once,
+     * a subscriber that conflates the topic gets only the last message of the batch
+     * @param client - instance of the publisher connection
+     * @param topic - the topic of the messages
+     * @param deliveries - the messages of the topic, in the order of the batch
+     */
+    private void publishTopicBatch(ClientConnection client, String topic, List<Delivery> deliveries)
+    {
+        long publishedAt = System.nanoTime();
+        metrics.publishes.add(deliveries.size());
+        TopicHistory history = topicHistory(topic);
+        history.lock.lock();
+        try {
+            Federation currentFederation = federation;
+            MessageStore currentStore = store;
+            for (Delivery delivery : deliveries) {
+                history.append(delivery);
+                if (currentFederation != null && delivery.origin == null) {
+                    currentFederation.stamp(delivery);
+                }
+                if (currentStore != null) {
+                    currentStore.append(delivery);
+                }
+            }
+            //print on server
+            Server.printToConsole("Client " + client + " sent a batch of " + deliveries.size() + " messages on topic " + topic);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + client + " sent a batch of " + deliveries.size() + " messages on topic " + topic);
+            long fanOutStart = System.nanoTime();
+            Set<ClientConnection> subscribers = topicRegistry.getSubscribers(topic);
+            //the subscribers that conflate the topic get only the last message of the batch
+            boolean conflated = history.conflated;
+            TopicOptions options = topicOptions(topic);
+            Set<ClientConnection> conflating = conflated ? Collections.emptySet() : options.conflating;
+            Map<ClientConnection, ContentFilter[]> filtered = options.contentFilters;
+            Delivery last = deliveries.get(deliveries.size() - 1);
+            FanOutExecutor currentFanOut = fanOutExecutor;
+            Map<WireProtocol, ByteBuffer> encoded = fanOutCache(currentFanOut, subscribers);
+            Map<WireProtocol, ByteBuffer> encodedLast = fanOutCache(currentFanOut, subscribers);
+            Map<ContentFilter, boolean[]> filterResults = filtered.isEmpty() ? null : fanOutCache(currentFanOut, subscribers);
+            String forward = "FORWARD ( " + topic + " ) a batch of " + deliveries.size() + " messages from " + client.getIpPort() + " to client - ";
+            currentFanOut.forEach(subscribers, subscriber -> {
+                //the messages of a batch come from the same local client, so a peer link takes all of them or none
+                if (subscriber instanceof PeerLink && (currentFederation == null || !currentFederation.mayForward((PeerLink) subscriber, client, deliveries.get(0)))) {
+                    return;
+                }
+                //a subscriber with a content filter gets only the messages of the batch that pass it, encoded for it alone
+                List<Delivery> forwarded = deliveries;
+                ContentFilter[] contentFilters = filtered.get(subscriber);
+                if (contentFilters != null) {
+                    boolean[] accepted = accepted(contentFilters, deliveries, filterResults);
+                    forwarded = new ArrayList<>();
+                    for (int i = 0; i < accepted.length; i++) {
+                        if (accepted[i]) {
+                            forwarded.add(deliveries.get(i));
+                        }
+                    }
+                    metrics.filteredOut.add(deliveries.size() - forwarded.size());
+                    if (forwarded.isEmpty()) {
+                        return;
+                    }
+                }
+                boolean shared = forwarded.size() == deliveries.size();
+                if ((conflated || conflating.contains(subscriber)) && !(subscriber instanceof PeerLink)) {
+                    //the earlier messages of the batch are replaced by the last one before they are queued
+                    Delivery lastForwarded = forwarded.get(forwarded.size() - 1);
+                    if (subscriber instanceof LocalClient) {
+                        ((LocalClient) subscriber).deliver(lastForwarded, publishedAt, topic);
+                    } else {
+                        ByteBuffer message = lastForwarded == last
+                                ? encodedLast.computeIfAbsent(subscriber.getProtocol(), protocol -> protocol.deliver(last).asReadOnlyBuffer()).duplicate()
+                                : subscriber.getProtocol().deliver(lastForwarded);
+                        subscriber.send(message, publishedAt, topic);
+                    }
+                    slowConsumerPolicy.conflatedMessages.add(forwarded.size() - 1);
+                    metrics.deliveries.increment();
+                } else {
+                    if (subscriber instanceof LocalClient) {
+                        //an in-process client gets the message objects themselves, nothing is encoded for it
+                        for (Delivery delivery : forwarded) {
+                            ((LocalClient) subscriber).deliver(delivery, publishedAt, null);
+                        }
+                    } else if (shared) {
+                        ByteBuffer messages = encoded.computeIfAbsent(subscriber.getProtocol(), protocol -> encode(protocol, deliveries).asReadOnlyBuffer());
+                        //send to client, every subscriber reads the shared buffer through its own view
+                        subscriber.send(messages.duplicate(), publishedAt);
+                    } else {
+                        subscriber.send(encode(subscriber.getProtocol(), forwarded), publishedAt);
+                    }
+                    metrics.deliveries.add(forwarded.size());
+                }
+
+                //print on server
+                Server.printToConsole(forward + subscriber);
+                //write to log
+                writeToLog(Server.LOG_LEVEL.INFO.toString(), forward + subscriber);
+            });
+            //the messages of the batch are spread over the members of every shared subscription of the topic
+            for (SharedSubscription group : sharedRegistry.getSubscribers(topic)) {
+                for (Delivery delivery : deliveries) {
+                    forwardShared(group, delivery, publishedAt, null);
+                }
+            }
+            metrics.fanOutTime.record(System.nanoTime() - fanOutStart);
+        } finally {
+            history.lock.unlock();
+        }
+    }
+
+    /**
+     * A method that create a cache of a single fan-out, of the encoded messages by the protocol of the subscribers
+     * or of the results of the content filters, a parallel fan-out fills it from several threads
+     * @param fanOut - the fan-out pool that forwards the messages
+     * @param subscribers - the subscribers of the topic
+     * @return An empty cache
+     */
+    private static <K, V> Map<K, V> fanOutCache(FanOutExecutor fanOut, Set<ClientConnection> subscribers)
+    {
+        return fanOut.isParallel(subscribers.size()) ? new ConcurrentHashMap<>() : new IdentityHashMap<>();
+    }
+
+    /**
+     * A method that resolve the content filters of a subscriber for a topic,
+     * a message passes if one of the subscriptions of the client that match the topic has no content filter or its filter accepts it
+     * @param subscriber - a subscriber with a content filter on one of its subscriptions
+     * @param topic - the topic
+     * @return the content filters of the subscriptions that match the topic, or null if one of them has none
+     */
+    private ContentFilter[] contentFiltersOf(ClientConnection subscriber, String topic)
+    {
+        Map<String, ContentFilter> filters = clientContentFilters.get(subscriber);
+        Set<String> filterTopics = clientTopicsTable.get(subscriber);
+        if (filters == null || filterTopics == null) {
+            return null;
+        }
+        List<ContentFilter> matching = new ArrayList<>();
+        for (String filterTopic : filterTopics) {
+            if (SharedSubscription.isShared(filterTopic) || !TopicRegistry.matches(filterTopic, topic)) {
+                continue;
+            }
+            ContentFilter contentFilter = filters.get(filterTopic);
+            if (contentFilter == null) {
+                //an unfiltered subscription takes every message of the topic
+                return null;
+            }
+            matching.add(contentFilter);
+        }
+        return matching.toArray(new ContentFilter[0]);
+    }
+
+    /**
+     * A method that checks which messages of a topic pass the content filters of a subscriber,
+     * the results of every content filter are kept in the cache of the fan-out, so the subscribers that share a filter evaluate it once
+     * @param contentFilters - the content filters of the subscriber for the topic
+     * @param deliveries - the messages
+     * @param filterResults - the results of the content filters evaluated in this fan-out
+     * @return the messages that pass by position
+     */
+    private static boolean[] accepted(ContentFilter[] contentFilters, List<Delivery> deliveries, Map<ContentFilter, boolean[]> filterResults)
+    {
+        boolean[] accepted = new boolean[deliveries.size()];
+        for (ContentFilter contentFilter : contentFilters) {
+            boolean[] results = filterResults.computeIfAbsent(contentFilter, f -> f.evaluate(deliveries));
+            for (int i = 0; i < accepted.length; i++) {
+                accepted[i] |= results[i];
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * A method that encode messages one after the other into a single buffer, with the given protocol
+     * @param protocol - the protocol of a subscriber
+     * @param deliveries - the messages
+     * @return the encoded messages
+     */
+    private static ByteBuffer encode(WireProtocol protocol, List<Delivery> deliveries)
+    {
+        ByteBuffer[] messages = new ByteBuffer[deliveries.size()];
+        int length = 0;
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = protocol.deliver(deliveries.get(i));
+            length += messages[i].remaining();
+        }
+        ByteBuffer encoded = ByteBuffer.allocate(length);
+        for (ByteBuffer message : messages) {
+            encoded.put(message);
+        }
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * A method that handle a request of the client to close the connection
+     * @param client - instance of the client connection
+     * @return A string with the result of the process
+     */
+    private String close(ClientConnection client)
+    {
+        Server.printToConsole("CLOSE connection with " + client);
+        //write to log
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "CLOSE connection with " + client);
+        return "CLOSE";
+    }
+
+    /**
+     * A method that reply to a request the server does not support
+     * @param client - instance of the client connection
+     * @param rawMessage - the request from the client
+     * @param requestId - the request id the reply is tagged with, NO_REQUEST_ID if none
+     * @return A string with the result of the process
+     */
+    private String badRequest(ClientConnection client, String rawMessage, long requestId)
+    {
+        reply(client, requestId, client.getProtocol().error());
+        //print on server
+        Server.printToConsole("ERROR - Client " + client + " sent a bad request - " + rawMessage);
+        //write to log
+        writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + client + " sent a bad request - " + rawMessage);
+        return "ERROR";
+    }
+
+    /**
+     * A method the send to the client his registered topics (if exists)
+     * @param client - instance of the client connection
+     * @param requestId - the request id the reply is tagged with, NO_REQUEST_ID if none
+     */
+    private void sendRegisterTopics(ClientConnection client, long requestId)
+    {
+        Set<String> topics = clientTopicsTable.get(client);
+        reply(client, requestId, client.getProtocol().topics(topics != null ? topics : Collections.emptySet()));
+    }
+
+    /**
+     * A method that send a reply to a command of the client,
+     * a command that carried a request id gets the reply tagged with the same id, so a pipelining client can match them
+     * @param client - instance of the client connection
+     * @param requestId - the request id of the command, NO_REQUEST_ID if none
+     * @param reply - the encoded reply
+     */
+    private static void reply(ClientConnection client, long requestId, ByteBuffer reply)
+    {
+        client.send(requestId == WireProtocol.NO_REQUEST_ID ? reply : client.getProtocol().tag(requestId, reply));
+    }
+}
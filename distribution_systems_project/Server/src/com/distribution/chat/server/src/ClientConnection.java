@@ -0,0 +1,80 @@
+package com.distribution.chat.server.src;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An interface represented a connection with a client,
+ * in order to process and forward messages regardless of the engine that serves the connection
+ */
+public interface ClientConnection {
+
+    /**
+     * A method that retrieve the protocol the client speaks, in order to encode the messages to the client
+     * @return the wire protocol of the connection
+     */
+    WireProtocol getProtocol();
+
+    /**
+     * A method that replace the protocol of the connection with a variant of it
+     * @param protocol - the new wire protocol of the connection
+     */
+    void setProtocol(WireProtocol protocol);
+
+    /**
+     * A method that send an encoded reply to the client
+     * @param message - the message to be sent to the client, encoded with the protocol of the connection
+     */
+    default void send(ByteBuffer message)
+    {
+        send(message, 0);
+    }
+
+    /**
+     * A method that send an encoded message to the client
+     * @param message - the message to be sent to the client, encoded with the protocol of the connection
+     * @param publishedAt - the System.nanoTime the message was published at, 0 if it is not a published message
+     */
+    void send(ByteBuffer message, long publishedAt);
+
+    /**
+     * A method that send an encoded message of a conflated topic to the client,
+     * the message replaces the waiting message with the same key, if the connection keeps its messages waiting
+     * @param message - the message to be sent to the client, encoded with the protocol of the connection
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param conflationKey - the key of the message, null if it is not conflated
+     */
+    default void send(ByteBuffer message, long publishedAt, String conflationKey)
+    {
+        send(message, publishedAt);
+    }
+
+    /**
+     * A method that send an encoded message a shared subscription dispatched to the client,
+     * the message stays in flight to the client until it was written (or dropped), if the connection keeps its messages waiting
+     * @param message - the message to be sent to the client, encoded with the protocol of the connection
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param dispatch - the dispatch of the message by the shared subscription
+     */
+    default void sendDispatched(ByteBuffer message, long publishedAt, SharedSubscription.Dispatch dispatch)
+    {
+        send(message, publishedAt);
+        dispatch.done();
+    }
+
+    /**
+     * A method that retrieve the number of messages waiting to be written to the client
+     * @return the depth of the outbound queue of the connection
+     */
+    int getOutboundDepth();
+
+    /**
+     * A method that retrieve the address of the client
+     * @return A string of the client ip and port
+     */
+    String getIpPort();
+
+    /**
+     * A method that tells the client the server is closing the connection, and stops serving it
+     */
+    void shutdown();
+}
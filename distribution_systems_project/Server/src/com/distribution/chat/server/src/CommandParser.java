@@ -0,0 +1,224 @@
+package com.distribution.chat.server.src;
+
+/**
+ * A class represented a parser of the text protocol that scans the bytes of a line in place,
+ * instead of splitting a string, and fills a reusable command view with the opcode and the offsets of the tokens,
+ * the topics are resolved through a small cache of the topic names this connection used,
+ * so a steady stream of commands on known topics allocates nothing,
+ * a line may start with "#id ", a request id the server echoes on the reply, so a client can pipeline its commands
+ */
+public class CommandParser {
+
+    private static final byte[] REGISTER = "REGISTER".getBytes();
+    private static final byte[] LEAVE = "LEAVE".getBytes();
+    private static final byte[] SEND = "SEND".getBytes();
+    private static final byte[] CLOSE = "CLOSE".getBytes();
+    private static final byte[] STATS = "STATS".getBytes();
+    private static final byte[] GET_REGISTER_TOPICS = "getRegisterTopics".getBytes();
+    private static final byte[] WHERE = "WHERE".getBytes();
+    private static final int TOPIC_CACHE_SIZE = 64; //must be a power of two
+
+    private final TextCommand command = new TextCommand();
+    private final String[] topicCache = new String[TOPIC_CACHE_SIZE];
+    private final byte[][] topicCacheBytes = new byte[TOPIC_CACHE_SIZE][];
+
+    /**
+     * A method that parse a single line without its line terminator
+     * @param buffer - the buffer that holds the line
+     * @param offset - the offset of the line in the buffer
+     * @param length - the length of the line
+     * @return the parsed command, the same instance is returned (and overwritten) by the next call
+     */
+    TextCommand parse(byte[] buffer, int offset, int length)
+    {
+        TextCommand cmd = command;
+        cmd.line = buffer;
+        cmd.lineOffset = offset;
+        cmd.lineLength = length;
+        cmd.topic = null;
+        cmd.contentOffset = 0;
+        cmd.contentLength = 0;
+        cmd.replay = TopicHistory.ReplayRequest.NONE;
+        cmd.where = null;
+        cmd.requestId = WireProtocol.NO_REQUEST_ID;
+
+        int end = offset + length;
+        if (offset < end && buffer[offset] == '#') {
+            //"#id COMMAND ..." - the id is the first token, and the command starts after it
+            long requestId = 0;
+            int position = offset + 1;
+            while (position < end && buffer[position] >= '0' && buffer[position] <= '9' && position - offset <= 18) {
+                requestId = requestId * 10 + (buffer[position++] - '0');
+            }
+            if (position == offset + 1 || position == end || buffer[position] != ' ') {
+                cmd.opcode = TextCommand.Opcode.BAD_REQUEST;
+                return cmd;
+            }
+            cmd.requestId = requestId;
+            offset = position + 1;
+        }
+        if (isBlank(buffer, offset, end)) {
+            cmd.opcode = TextCommand.Opcode.EMPTY;
+            return cmd;
+        }
+        if (equalsIgnoreCase(buffer, offset, end, GET_REGISTER_TOPICS)) {
+            cmd.opcode = TextCommand.Opcode.TOPICS;
+            return cmd;
+        }
+
+        //the action is the first token, trimmed of white spaces
+        int actionEnd = indexOf(buffer, offset, end, (byte) ' ');
+        int actionStart = offset;
+        int actionTrimmedEnd = actionEnd;
+        while (actionStart < actionTrimmedEnd && buffer[actionStart] <= ' ') {
+            actionStart++;
+        }
+        while (actionTrimmedEnd > actionStart && buffer[actionTrimmedEnd - 1] <= ' ') {
+            actionTrimmedEnd--;
+        }
+
+        if (equalsIgnoreCase(buffer, actionStart, actionTrimmedEnd, CLOSE)) {
+            cmd.opcode = TextCommand.Opcode.CLOSE;
+            return cmd;
+        }
+        if (equalsIgnoreCase(buffer, actionStart, actionTrimmedEnd, STATS)) {
+            cmd.opcode = TextCommand.Opcode.STATS;
+            return cmd;
+        }
+        TextCommand.Opcode opcode;
+        if (equalsIgnoreCase(buffer, actionStart, actionTrimmedEnd, REGISTER)) {
+            opcode = TextCommand.Opcode.REGISTER;
+        } else if (equalsIgnoreCase(buffer, actionStart, actionTrimmedEnd, LEAVE)) {
+            opcode = TextCommand.Opcode.LEAVE;
+        } else if (equalsIgnoreCase(buffer, actionStart, actionTrimmedEnd, SEND)) {
+            opcode = TextCommand.Opcode.SEND;
+        } else {
+            cmd.opcode = TextCommand.Opcode.BAD_REQUEST;
+            return cmd;
+        }
+
+        //the topic is the second token
+        int topicStart = actionEnd + 1;
+        int topicEnd = topicStart < end ? indexOf(buffer, topicStart, end, (byte) ' ') : end;
+        if (topicStart >= end || topicEnd == topicStart) {
+            cmd.opcode = TextCommand.Opcode.BAD_REQUEST;
+            return cmd;
+        }
+        cmd.opcode = opcode;
+        cmd.topic = topic(buffer, topicStart, topicEnd - topicStart);
+
+        if (opcode == TextCommand.Opcode.REGISTER && topicEnd < end) {
+            //"REGISTER topic FROM sequence" or "REGISTER topic LAST count" replays the history of the topic,
+            //"CONFLATE" after it keeps only the latest message of a topic waiting for the client,
+            //and "WHERE expression" at the end filters the content of the messages, the expression is the rest of the line
+            int optionsEnd = indexOfWord(buffer, topicEnd, end, WHERE);
+            if (optionsEnd < end) {
+                cmd.where = new String(buffer, optionsEnd + WHERE.length + 1, end - optionsEnd - WHERE.length - 1, Delivery.CHARSET).trim();
+            }
+            cmd.replay = TopicHistory.ReplayRequest.parse(buffer, topicEnd + 1, Math.max(topicEnd + 1, optionsEnd));
+            if (cmd.replay == null) {
+                cmd.opcode = TextCommand.Opcode.BAD_REQUEST;
+            }
+        }
+        if (opcode == TextCommand.Opcode.SEND && topicEnd < end) {
+            //the content is the rest of the line after the space that ends the topic, without trailing spaces
+            int contentEnd = end;
+            while (contentEnd > topicEnd + 1 && buffer[contentEnd - 1] == ' ') {
+                contentEnd--;
+            }
+            cmd.contentOffset = topicEnd + 1;
+            cmd.contentLength = contentEnd - cmd.contentOffset;
+        }
+        return cmd;
+    }
+
+    /**
+     * A method that resolve the topic name of the given bytes, from the cache or by decoding them once
+     * @param buffer - the buffer that holds the topic
+     * @param offset - the offset of the topic in the buffer
+     * @param length - the length of the topic
+     * @return the topic name
+     */
+    private String topic(byte[] buffer, int offset, int length)
+    {
+        int hash = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ buffer[i]) * 0x01000193;
+        }
+        int slot = (hash ^ (hash >>> 16)) & (TOPIC_CACHE_SIZE - 1);
+        byte[] cached = topicCacheBytes[slot];
+        if (cached != null && cached.length == length && regionEquals(buffer, offset, cached)) {
+            return topicCache[slot];
+        }
+        String topic = new String(buffer, offset, length, Delivery.CHARSET);
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, offset, bytes, 0, length);
+        topicCache[slot] = topic;
+        topicCacheBytes[slot] = bytes;
+        return topic;
+    }
+
+    private static boolean isBlank(byte[] buffer, int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte value)
+    {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * A method that find a word that stands alone between spaces (or at the end), ignoring the case of the letters
+     * @return the offset of the space before the word, or the end if the word is not found
+     */
+    private static int indexOfWord(byte[] buffer, int from, int to, byte[] word)
+    {
+        for (int i = from; i + word.length < to; i++) {
+            int wordEnd = i + 1 + word.length;
+            if (buffer[i] == ' ' && (wordEnd == to || buffer[wordEnd] == ' ') && equalsIgnoreCase(buffer, i + 1, wordEnd, word)) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static boolean regionEquals(byte[] buffer, int offset, byte[] expected)
+    {
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A method that compare an ascii region to an ascii word, ignoring the case of the letters
+     */
+    private static boolean equalsIgnoreCase(byte[] buffer, int from, int to, byte[] word)
+    {
+        if (to - from != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            int a = buffer[from + i];
+            int b = word[i];
+            //the words are letters only, so a letter matches its other case by the 0x20 bit
+            if (a != b && ((a | 0x20) != (b | 0x20) || (b | 0x20) < 'a' || (b | 0x20) > 'z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
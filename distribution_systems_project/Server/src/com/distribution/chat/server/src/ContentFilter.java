@@ -0,0 +1,150 @@
+package com.distribution.chat.server.src;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A class represented a compiled filter on the content of the messages of a subscription, the "WHERE" of a REGISTER,
+ * the subscriptions with the same expression share a single compiled filter, so the broker evaluates it once per message,
+ * the expression is one of:
+ * "PREFIX text" - the content starts with the text,
+ * "CONTAINS text" - the content contains the text,
+ * "REGEX pattern" - a match of the regular expression is found in the content,
+ * "key=value" - the content holds the field key=value, the fields are separated by spaces, ',', ';' or '&'
+ */
+public final class ContentFilter {
+
+    private static final String FIELD_SEPARATORS = " \t,;&";
+
+    /**
+     * An enum that contains the kinds of the filters
+     */
+    enum Kind {
+        PREFIX,
+        CONTAINS,
+        REGEX,
+        FIELD
+    }
+
+    final String expression;
+    private final Kind kind;
+    private final String text; //the prefix, the substring, or "key=" of a field
+    private final String value; //the value of a field, null for the other kinds
+    private final Pattern pattern; //the compiled regular expression, null for the other kinds
+    int subscriptions = 0; //the subscriptions that share the filter, guarded by the filters map of the broker
+
+    private ContentFilter(String expression, Kind kind, String text, String value, Pattern pattern)
+    {
+        this.expression = expression;
+        this.kind = kind;
+        this.text = text;
+        this.value = value;
+        this.pattern = pattern;
+    }
+
+    /**
+     * A method that compile the expression of a filter
+     * @param expression - the expression after the WHERE of a REGISTER
+     * @return the compiled filter, or null if the expression is not valid
+     */
+    static ContentFilter compile(String expression)
+    {
+        String trimmed = expression.trim();
+        int space = trimmed.indexOf(' ');
+        String keyword = space < 0 ? trimmed : trimmed.substring(0, space);
+        String argument = space < 0 ? "" : trimmed.substring(space + 1);
+        if (keyword.equalsIgnoreCase(Kind.PREFIX.name()) || keyword.equalsIgnoreCase(Kind.CONTAINS.name())) {
+            return argument.isEmpty() ? null
+                    : new ContentFilter(trimmed, keyword.equalsIgnoreCase(Kind.PREFIX.name()) ? Kind.PREFIX : Kind.CONTAINS, argument, null, null);
+        }
+        if (keyword.equalsIgnoreCase(Kind.REGEX.name())) {
+            if (argument.isEmpty()) {
+                return null;
+            }
+            try {
+                return new ContentFilter(trimmed, Kind.REGEX, argument, null, Pattern.compile(argument));
+            } catch (PatternSyntaxException e) {
+                return null;
+            }
+        }
+        int equals = trimmed.indexOf('=');
+        if (equals <= 0 || containsSeparator(trimmed)) {
+            return null;
+        }
+        return new ContentFilter(trimmed, Kind.FIELD, trimmed.substring(0, equals + 1), trimmed.substring(equals + 1), null);
+    }
+
+    /**
+     * A method that checks if a message passes the filter
+     * @param content - the content of the message as text
+     * @return true if the message should be forwarded to the subscription
+     */
+    boolean accepts(String content)
+    {
+        switch (kind) {
+            case PREFIX:
+                return content.startsWith(text);
+            case CONTAINS:
+                return content.contains(text);
+            case REGEX:
+                return pattern.matcher(content).find();
+            default:
+                return hasField(content);
+        }
+    }
+
+    /**
+     * A method that evaluate the filter on messages, the content of a binary message is decoded once for all the filters
+     * @param deliveries - the messages
+     * @return the results by position, true if the message passes the filter
+     */
+    boolean[] evaluate(List<Delivery> deliveries)
+    {
+        boolean[] results = new boolean[deliveries.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = accepts(deliveries.get(i).getContent());
+        }
+        return results;
+    }
+
+    /**
+     * A method that checks if the content holds the field of the filter, "key=value" between separators
+     * @param content - the content of the message
+     * @return true if one of the fields of the content is the field of the filter
+     */
+    private boolean hasField(String content)
+    {
+        int from = 0;
+        int found;
+        while ((found = content.indexOf(text, from)) >= 0) {
+            int valueStart = found + text.length();
+            int valueEnd = valueStart;
+            while (valueEnd < content.length() && FIELD_SEPARATORS.indexOf(content.charAt(valueEnd)) < 0) {
+                valueEnd++;
+            }
+            boolean atFieldStart = found == 0 || FIELD_SEPARATORS.indexOf(content.charAt(found - 1)) >= 0;
+            if (atFieldStart && content.regionMatches(valueStart, value, 0, value.length()) && valueEnd - valueStart == value.length()) {
+                return true;
+            }
+            from = found + 1;
+        }
+        return false;
+    }
+
+    private static boolean containsSeparator(String field)
+    {
+        for (int i = 0; i < field.length(); i++) {
+            if (FIELD_SEPARATORS.indexOf(field.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+}
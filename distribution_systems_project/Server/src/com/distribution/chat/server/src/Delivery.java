@@ -0,0 +1,118 @@
+package com.distribution.chat.server.src;
+
+import java.nio.charset.Charset;
+
+/**
+ * A class represented a single published message on its way to the subscribers of its topic,
+ * the content is kept as it arrived (text or raw bytes), and converted only when a subscriber needs the other form
+ */
+public class Delivery {
+
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    final String topic;
+    final String sender; //the ip and port of the publisher
+    final String time; //the time the message was published
+    private volatile String content;
+    private volatile byte[] payload;
+    private final boolean textual; //true if the content arrived as text, even when it is kept as raw bytes
+    long sequence = -1; //the sequence number of the message in its topic, given before it is forwarded
+    String origin; //the id of the server the message was published on, when the server is federated
+    long messageId; //the id of the message on its origin server
+    int hops; //the number of federation links the message crossed
+
+    /**
+     * Constructor of a message published with the text protocol
+     * @param topic - the topic of the message
+     * @param sender - the ip and port of the publisher
+     * @param time - the time the message was published
+     * @param content - the content of the message
+     */
+    Delivery(String topic, String sender, String time, String content)
+    {
+        this.topic = topic;
+        this.sender = sender;
+        this.time = time;
+        this.content = content;
+        this.textual = true;
+    }
+
+    /**
+     * Constructor of a message published with the binary protocol
+     * @param topic - the topic of the message
+     * @param sender - the ip and port of the publisher
+     * @param time - the time the message was published
+     * @param payload - the raw content of the message
+     */
+    Delivery(String topic, String sender, String time, byte[] payload)
+    {
+        this(topic, sender, time, payload, false);
+    }
+
+    /**
+     * Constructor of a message kept as the raw bytes it arrived with
+     * @param topic - the topic of the message
+     * @param sender - the ip and port of the publisher
+     * @param time - the time the message was published
+     * @param payload - the raw content of the message
+     * @param textual - true if the message was published with the text protocol
+     */
+    Delivery(String topic, String sender, String time, byte[] payload, boolean textual)
+    {
+        this.topic = topic;
+        this.sender = sender;
+        this.time = time;
+        this.payload = payload;
+        this.textual = textual;
+    }
+
+    /**
+     * A method that retrieve the content as text, a binary payload is decoded once on the first call
+     * @return the content of the message
+     */
+    String getContent()
+    {
+        String text = content;
+        if (text == null) {
+            text = new String(payload, CHARSET);
+            content = text;
+        }
+        return text;
+    }
+
+    /**
+     * A method that retrieve the raw content, a text content is encoded once on the first call
+     * @return the raw bytes of the content
+     */
+    byte[] getPayload()
+    {
+        byte[] bytes = payload;
+        if (bytes == null) {
+            bytes = content.getBytes(CHARSET);
+            payload = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * A method that checks if the message was published with the text protocol
+     * @return true if the content arrived as text
+     */
+    boolean isTextual()
+    {
+        return textual;
+    }
+
+    /**
+     * A method that describe the content for the server log, without decoding a binary payload
+     * @return the content if it arrived as text, the payload size otherwise
+     */
+    String describeContent()
+    {
+        String text = content;
+        if (text != null) {
+            return text;
+        }
+        return textual ? getContent() : "<" + payload.length + " bytes>";
+    }
+}
@@ -0,0 +1,373 @@
+package com.distribution.chat.server.src;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.distribution.chat.server.src.Server.getCurrentDateTimeStamp;
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented a broker that an application starts and stops by itself, the Server app is one of them,
+ * every instance has its own topics, clients, listening sockets and metrics, so several of them may run in a single process,
+ * besides the remote clients, the application may connect in-process clients that publish and receive message objects,
+ * the log file and the console are shared by all the instances of the process
+ */
+public class EmbeddedBroker {
+
+    private final Broker broker = new Broker();
+    private final ExecutorService localDispatcher = LocalClient.newDispatchExecutor();
+    private Properties config = new Properties();
+    private String engine = "thread";
+    private String threadMode = "platform";
+    private int nioThreads = Runtime.getRuntime().availableProcessors();
+    private int configuredPort = 0;
+
+    private volatile boolean running = false;
+    private InetAddress ip = null;
+    private int port = -1;
+    private ServerSocket serverSocket = null;
+    private ServerListener listener = null;
+    private ExecutorService connectionsExecutor = null;
+    private ServerSocketChannel serverChannel = null;
+    private NioServerEngine nioEngine = null;
+    private ServerSocketChannel unixChannel = null;
+    private NioServerEngine unixEngine = null; //serves the unix domain socket of the thread engine, null on the nio engine
+    private Path unixSocketPath = null;
+
+    /**
+     * A method that apply the settings of a configuration file, for the next start,
+     * the port may be 0 to listen on any free port, missing settings get default values
+     * @param config - properties file object
+     * @throws IllegalArgumentException if a setting is not valid, the message tells which one
+     */
+    public synchronized void configure(Properties config)
+    {
+        if (running) {
+            throw new IllegalStateException("The broker is running, stop it before changing its settings");
+        }
+        int port;
+        int threads;
+        try {
+            port = Integer.parseInt(config.getProperty("port", "0").trim());
+            threads = Integer.parseInt(config.getProperty("nio.threads", String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("the port and nio.threads must be numbers", e);
+        }
+        try {
+            broker.configure(config);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("the outbound limits, the replay and the fan-out settings must be numbers, "
+                    + "and the outbound policy must be one of block, drop_oldest, drop_newest, disconnect", e);
+        }
+        this.config = config;
+        this.configuredPort = port;
+        this.nioThreads = threads;
+        this.engine = config.getProperty("engine", "thread").trim().toLowerCase();
+        this.threadMode = config.getProperty("thread.mode", "platform").trim().toLowerCase();
+    }
+
+    /**
+     * A method that start listening on the loopback address
+     */
+    public void start() throws IOException
+    {
+        start(InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * A method that open the message store, start listening for clients, and connect the federation peers,
+     * the federation and the unix domain socket are optional, a failure to start them is reported and the broker runs without them
+     * @param ip - the address to listen on
+     * @throws BindException if the broker can not listen on the address and the port, nothing was started then
+     * @throws IllegalArgumentException if the store settings are not valid
+     * @throws IOException if the message store or the event loops can not be opened
+     */
+    public synchronized void start(InetAddress ip) throws IOException
+    {
+        if (running) {
+            throw new IllegalStateException("The broker is already running");
+        }
+        try {
+            broker.openStore(config);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("the store settings must be numbers, and the store overflow must be one of block, drop", e);
+        }
+        try {
+            if ("nio".equals(engine)) {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(ip, configuredPort), 10);
+                port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            } else {
+                serverSocket = new ServerSocket(configuredPort, 10, ip);
+                port = serverSocket.getLocalPort();
+            }
+        } catch (IOException e) {
+            closeServerChannel();
+            if (serverSocket != null) {
+                serverSocket.close();
+                serverSocket = null;
+            }
+            broker.closeStore();
+            if (e instanceof BindException) {
+                throw e;
+            }
+            throw (BindException) new BindException("can not listen on " + ip + " port " + configuredPort + " - " + e.getMessage()).initCause(e);
+        }
+        if (serverChannel != null) {
+            try {
+                nioEngine = new NioServerEngine(serverChannel, nioThreads, broker);
+            } catch (IOException e) {
+                closeServerChannel();
+                broker.closeStore();
+                throw new IOException("can not open the event loops - " + e.getMessage(), e);
+            }
+        }
+        this.ip = ip;
+        running = true;
+        broker.getMetrics().registerMBean("port=" + port);
+        if (nioEngine != null) {
+            nioEngine.start();
+        } else {
+            connectionsExecutor = "virtual".equals(threadMode) ? newVirtualThreadExecutor() : null;
+            if (connectionsExecutor == null) {
+                if ("virtual".equals(threadMode)) {
+                    System.out.println("Virtual threads are not supported by this java version, using platform threads");
+                    writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Virtual threads are not supported by this java version, using platform threads");
+                    threadMode = "platform";
+                }
+                connectionsExecutor = Executors.newCachedThreadPool();
+            }
+            listener = new ServerListener(serverSocket, connectionsExecutor, broker);
+            connectionsExecutor.execute(listener);
+        }
+        String socketPath = config.getProperty("unix.socket.path", "").trim();
+        if (!socketPath.isEmpty()) {
+            startUnixSocket(Paths.get(socketPath));
+        }
+        try {
+            broker.setFederation(Federation.fromConfig(config, ip, port, broker));
+        } catch (IllegalArgumentException e) {
+            System.out.println("\nThe federation port must be a number, the peers must be host:port, and the federation id must be a single word!");
+            System.out.println("Please modify the federation settings in the configuration file, the server runs without federation");
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "The federation settings are not valid - " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("\nError while starting the federation - " + e.getMessage() + ", the server runs without federation");
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+        }
+        String mode = "nio".equals(engine) ? "nio engine" : engine + " engine, " + threadMode + " threads";
+        System.out.println("[" + getCurrentDateTimeStamp() + "] " + "Server start listening to " + ip + " on port " + port + " (" + mode + ")");
+        //write to log
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "Server start listening to " + ip + " on port " + port + " (" + mode + ")");
+    }
+
+    /**
+     * A method that stop the connections with the clients, the in-process clients included, and stop listening,
+     * the topics keep their sequence numbers and history for the next start
+     */
+    public synchronized void stop()
+    {
+        if (!running) {
+            return;
+        }
+        broker.clientsLock.lock();
+        try {
+            running = false;
+            for (ClientConnection client : broker.handleClients) {
+                client.shutdown();
+                System.out.println("[" + getCurrentDateTimeStamp() + "] Connection closed with socket " + client);
+                writeToLog(Server.LOG_LEVEL.INFO.toString(), "Connection closed with socket " + client);// write to log
+            }
+            broker.handleClients.clear();
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Slow consumers - " + broker.getSlowConsumerPolicy());
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Metrics - " + broker.getMetrics().getReport());
+            broker.getMetrics().unregisterMBean();
+            broker.closeFederation();
+            broker.closeStore();
+            stopUnixSocket();
+            if (nioEngine != null) {
+                nioEngine.shutdown();
+                nioEngine = null;
+                System.out.println("[" + getCurrentDateTimeStamp() + "]" + "Server stop listening to ip " + ip);
+                closeServerChannel();
+            } else {
+                listener.stop = true;
+                serverSocket.close();
+                connectionsExecutor.shutdown();
+                connectionsExecutor = null;
+                System.out.println("[" + getCurrentDateTimeStamp() + "]" + "Server stop listening to ip " + serverSocket.getInetAddress() + " on port " + serverSocket.getLocalPort());
+                serverSocket = null;
+            }
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+        } finally {
+            broker.clientsLock.unlock();
+        }
+    }
+
+    /**
+     * A method that connect an in-process client, that publishes and receives message objects without a socket
+     * @param listener - the receiver of the messages the client registers to
+     * @return the connected client
+     * @throws IllegalStateException if the broker is not running
+     */
+    public LocalClient connectLocal(LocalListener listener)
+    {
+        broker.clientsLock.lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("The broker is not running");
+            }
+            LocalClient client = new LocalClient(broker, listener, localDispatcher);
+            broker.handleClients.add(client);
+            return client;
+        } finally {
+            broker.clientsLock.unlock();
+        }
+    }
+
+    /**
+     * A method that checks if the broker is running
+     * @return true between a successful start and a stop
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * A method that retrieve the port the broker listens on, the free port it got if the configured port is 0
+     * @return the port, or -1 if the broker was never started
+     */
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * A method that retrieve the address the broker listens on
+     * @return the address, or null if the broker was never started
+     */
+    public InetAddress getAddress()
+    {
+        return ip;
+    }
+
+    /**
+     * A method that retrieve the metrics of the broker, as the STATS command replies
+     * @return the metrics in a single line
+     */
+    public String getMetricsReport()
+    {
+        return broker.getMetrics().getReport();
+    }
+
+    /**
+     * A method that listen on a unix domain socket as well, for the clients on the same host,
+     * the clients of the socket speak the same protocols, and are served by event loops with either engine,
+     * since a unix domain socket channel has no stream socket for the thread engine
+     * @param path - the path of the socket file
+     */
+    private void startUnixSocket(Path path)
+    {
+        try {
+            if (Files.exists(path)) {
+                //a socket file that nobody accepts on is left from a server that did not stop, it is replaced
+                SocketChannel probe;
+                try {
+                    probe = SocketChannel.open(UnixDomainSocketAddress.of(path));
+                } catch (IOException e) {
+                    probe = null;
+                }
+                if (probe != null) {
+                    probe.close();
+                    System.out.println("\nThe unix socket " + path + " is already in use, the server listens on the port only");
+                    writeToLog(Server.LOG_LEVEL.ERROR.toString(), "The unix socket " + path + " is already in use");
+                    return;
+                }
+                Files.delete(path);
+            }
+            unixChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            unixChannel.bind(UnixDomainSocketAddress.of(path), 10);
+            unixSocketPath = path;
+            if (nioEngine != null) {
+                nioEngine.acceptFrom(unixChannel);
+            } else {
+                unixEngine = new NioServerEngine(unixChannel, nioThreads, broker);
+                unixEngine.start();
+            }
+            System.out.println("[" + getCurrentDateTimeStamp() + "] " + "Server start listening to unix socket " + path);
+            //write to log
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Server start listening to unix socket " + path);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("\nError while listening to the unix socket " + path + " - " + e.getMessage() + ", the server listens on the port only");
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+            stopUnixSocket();
+        }
+    }
+
+    /**
+     * A method that stop listening on the unix domain socket, and delete the socket file
+     */
+    private void stopUnixSocket()
+    {
+        if (unixEngine != null) {
+            unixEngine.shutdown();
+            unixEngine = null;
+        }
+        try {
+            if (unixChannel != null && unixChannel.isOpen()) {
+                unixChannel.close();
+            }
+            if (unixSocketPath != null) {
+                Files.deleteIfExists(unixSocketPath);
+                System.out.println("[" + getCurrentDateTimeStamp() + "]" + "Server stop listening to unix socket " + unixSocketPath);
+            }
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+        }
+        unixChannel = null;
+        unixSocketPath = null;
+    }
+
+    /**
+     * A method that create an executor that runs every task on a new virtual thread
+     * @return the executor, or null if the java version does not support virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try {
+            //looked up at runtime, so the server still runs on java versions without virtual threads
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A method that close the server channel of the nio engine
+     */
+    private void closeServerChannel()
+    {
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+        }
+        serverChannel = null;
+    }
+}
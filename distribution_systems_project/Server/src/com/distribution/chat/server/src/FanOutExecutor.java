@@ -0,0 +1,143 @@
+package com.distribution.chat.server.src;
+
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * A class represented the pool that forwards a published message to the subscribers of a very large topic,
+ * a subscriber set from the threshold up is split into chunks that run in parallel, a smaller one is forwarded by the publisher thread,
+ * the publisher waits for all the chunks while the topic is locked, so every subscriber still gets the messages of a topic in order
+ */
+public class FanOutExecutor {
+
+    private final int threshold; //0 - the fan-out always runs on the publisher thread
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor
+     * @param threshold - the number of subscribers from which the fan-out runs in parallel, 0 to never run it in parallel
+     * @param chunkSize - the maximum number of subscribers a single task forwards to
+     * @param threads - the number of fan-out threads
+     */
+    FanOutExecutor(int threshold, int chunkSize, int threads)
+    {
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+        this.pool = new ForkJoinPool(threads, Worker::new, null, false);
+    }
+
+    /**
+     * A method that create the fan-out pool from the configuration file
+     * @param config - properties file object
+     * @return A fan-out pool with the configured settings, missing settings get default values
+     */
+    static FanOutExecutor fromConfig(Properties config)
+    {
+        int threshold = Integer.parseInt(config.getProperty("fanout.parallel.threshold", "2048").trim());
+        int chunkSize = Integer.parseInt(config.getProperty("fanout.chunk.size", "512").trim());
+        String threadsSetting = config.getProperty("fanout.threads", "").trim();
+        int threads = threadsSetting.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threadsSetting);
+        if (threshold < 0 || chunkSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("fanout.parallel.threshold must not be negative, fanout.chunk.size and fanout.threads must be positive");
+        }
+        return new FanOutExecutor(threshold, chunkSize, threads);
+    }
+
+    /**
+     * A method that checks if a fan-out to the given number of subscribers runs in parallel
+     * @param subscribers - the number of subscribers
+     * @return true if the subscribers are split into parallel chunks
+     */
+    boolean isParallel(int subscribers)
+    {
+        return threshold > 0 && subscribers >= threshold && subscribers > chunkSize;
+    }
+
+    /**
+     * A method that run the action for every subscriber and return after all of them,
+     * in parallel chunks if the set is large, the action must be thread safe then
+     * @param subscribers - the subscribers of the topic
+     * @param action - the forwarding of the message to a single subscriber
+     */
+    void forEach(Collection<ClientConnection> subscribers, Consumer<ClientConnection> action)
+    {
+        if (!isParallel(subscribers.size())) {
+            for (ClientConnection subscriber : subscribers) {
+                action.accept(subscriber);
+            }
+            return;
+        }
+        ClientConnection[] snapshot = subscribers.toArray(new ClientConnection[0]);
+        pool.invoke(new Chunk(snapshot, 0, snapshot.length, action));
+    }
+
+    /**
+     * A method that stop the fan-out threads once the running fan-outs are done
+     */
+    void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * A method that checks if the current thread is a fan-out thread,
+     * a fan-out thread must not wait for a full outbound queue, the publisher that waits for it may be the one that drains the queue
+     * @return true if the current thread belongs to a fan-out pool
+     */
+    static boolean isFanOutThread()
+    {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    /**
+     * A class represented a range of subscribers, that is split in halves until it fits a chunk
+     */
+    private final class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ClientConnection[] subscribers;
+        private final int from;
+        private final int to;
+        private final Consumer<ClientConnection> action;
+
+        Chunk(ClientConnection[] subscribers, int from, int to, Consumer<ClientConnection> action)
+        {
+            this.subscribers = subscribers;
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= chunkSize) {
+                for (int i = from; i < to; i++) {
+                    action.accept(subscribers[i]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Chunk(subscribers, from, middle, action), new Chunk(subscribers, middle, to, action));
+        }
+    }
+
+    /**
+     * A class represented a fan-out thread, a daemon so it does not keep the server process alive
+     */
+    private static final class Worker extends ForkJoinWorkerThread {
+
+        Worker(ForkJoinPool pool)
+        {
+            super(pool);
+            setName("fan-out-" + getPoolIndex());
+            setDaemon(true);
+        }
+    }
+}
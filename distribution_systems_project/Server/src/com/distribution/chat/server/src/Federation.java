@@ -0,0 +1,641 @@
+package com.distribution.chat.server.src;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented the federation of this server with peer servers,
+ * every server floods the topic filters its own clients registered to (its interest), tagged with its id and a version,
+ * so every server knows the interest of every other server,
+ * every server also floods its reachability, tagged with a new epoch, whenever a link is up and periodically,
+ * the links a server heard the newest epoch of another server through are its routes to it,
+ * and when no newer epoch came for a few periods the server is not reachable anymore and its interest is withdrawn,
+ * the first route of every server to another server makes a tree rooted at the other server,
+ * every server tells its parent in the tree which servers are behind it, with the reachability of the root,
+ * so a message is forwarded along the tree of its origin server (reverse-path forwarding),
+ * on a link only when this server is the next hop of the peer toward the origin,
+ * and a server with a client that matches the message is behind the link,
+ * a message then crosses each link at most once, even when the links make loops,
+ * a message carries its origin server, an id and the number of links it crossed,
+ * so a message that still arrives twice while the tree changes is dropped
+ */
+public class Federation {
+
+    private static final int MAX_HOPS = 16;
+    private static final int MAX_SEEN_MESSAGES = 65536;
+    private static final long RECONNECT_MILLIS = 2000;
+    private static final long REACH_MILLIS = 2000;
+    private static final int REACH_EXPIRY_PERIODS = 3;
+
+    /**
+     * A class represented what this server knows about the interest of a server
+     */
+    private static final class OriginState {
+        final Map<String, long[]> filters = new HashMap<>(); //filter -> {version, present (1 or 0)}
+        final LinkedHashSet<PeerLink> routes = new LinkedHashSet<>(); //the links the newest epoch was heard through
+        long epoch; //the newest epoch of the reachability of the server
+        long epochHeardAt; //the System.nanoTime the newest epoch was heard at
+        PeerLink parent; //the first route, the parent of this server in the tree of the server
+        final Map<PeerLink, Set<String>> children = new HashMap<>(); //link -> the servers behind it in the tree of the server
+        Set<String> reported = Collections.emptySet(); //the servers behind this server the parent was told about
+    }
+
+    final String serverId;
+    final Broker broker; //the broker the links subscribe in and publish to
+    private final int port;
+    private final List<String> peers;
+    private final InetAddress bindAddress;
+
+    private final ReentrantLock lock = new ReentrantLock(); //guards the interest tables below
+    private final Map<String, Integer> localCounts = new HashMap<>(); //filter -> number of local registrations
+    private final Map<String, OriginState> origins = new HashMap<>(); //server id -> its interest, this server included
+    private final Map<PeerLink, Set<String>> linkFilters = new HashMap<>(); //link -> the filters it subscribed to
+    private volatile Map<String, Map<PeerLink, Set<String>>> forwarding = Collections.emptyMap(); //origin -> link -> filters behind it
+    private final LinkedHashMap<String, Boolean> seenMessages = new LinkedHashMap<String, Boolean>(1024, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_SEEN_MESSAGES;
+        }
+    };
+    private final ReentrantLock seenLock = new ReentrantLock();
+    private long nextVersion = System.currentTimeMillis() * 1000; //versions of a restarted server are still newer
+    private final AtomicLong nextMessageId = new AtomicLong();
+
+    private final List<PeerLink> links = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "federation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocket serverSocket;
+    private volatile boolean stop = false;
+
+    private Federation(String serverId, int port, List<String> peers, InetAddress bindAddress, Broker broker)
+    {
+        this.broker = broker;
+        this.serverId = serverId;
+        this.port = port;
+        this.peers = peers;
+        this.bindAddress = bindAddress;
+        origins.put(serverId, new OriginState());
+    }
+
+    /**
+     * A method that start the federation of the configuration file
+     * @param config - properties file object
+     * @param ip - the address the server listens on
+     * @param clientPort - the port the server listens on for clients
+     * @param broker - the broker of the server
+     * @return the started federation, or null if the federation is not enabled
+     */
+    static Federation fromConfig(Properties config, InetAddress ip, int clientPort, Broker broker) throws IOException
+    {
+        int port = Integer.parseInt(config.getProperty("federation.port", "0").trim());
+        List<String> peers = new ArrayList<>();
+        for (String peer : config.getProperty("federation.peers", "").split(",")) {
+            if (!peer.trim().isEmpty()) {
+                if (peer.lastIndexOf(':') < 1) {
+                    throw new IllegalArgumentException("federation peer " + peer.trim() + " is not host:port");
+                }
+                Integer.parseInt(peer.substring(peer.lastIndexOf(':') + 1).trim());
+                peers.add(peer.trim());
+            }
+        }
+        if (port <= 0 && peers.isEmpty()) {
+            return null;
+        }
+        String serverId = config.getProperty("federation.id", "").trim();
+        if (serverId.isEmpty()) {
+            serverId = ip.getHostAddress() + ":" + clientPort;
+        }
+        if (serverId.contains(" ") || serverId.length() > 64) {
+            throw new IllegalArgumentException("federation.id must be a word of up to 64 characters");
+        }
+        Federation federation = new Federation(serverId, port, peers, ip, broker);
+        federation.start();
+        return federation;
+    }
+
+    /**
+     * A method that start listening for peers and connecting to the configured peers
+     */
+    private void start() throws IOException
+    {
+        if (port > 0) {
+            serverSocket = new ServerSocket(port, 10, bindAddress);
+            executor.execute(this::acceptPeers);
+        }
+        for (String peer : peers) {
+            executor.execute(() -> connectPeer(peer));
+        }
+        executor.execute(this::refreshReach);
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "Federation " + serverId + " started, port " + port + ", peers " + peers);
+    }
+
+    /**
+     * A method that accept the links of the peers that connect to this server
+     */
+    private void acceptPeers()
+    {
+        while (!stop) {
+            try {
+                Socket socket = serverSocket.accept();
+                startLink(new PeerLink(socket, false, this, executor));
+            } catch (IOException e) {
+                if (!stop) {
+                    writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while accepting a federation link");
+                }
+            }
+        }
+    }
+
+    /**
+     * A method that keep a link with a configured peer, and connect again whenever the link is down
+     * @param peer - the address of the peer, host:port
+     */
+    private void connectPeer(String peer)
+    {
+        int colon = peer.lastIndexOf(':');
+        String host = peer.substring(0, colon);
+        int peerPort = Integer.parseInt(peer.substring(colon + 1));
+        while (!stop) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, peerPort), (int) RECONNECT_MILLIS);
+                PeerLink link = new PeerLink(socket, true, this, executor);
+                link.run(); //returns when the link is down
+            } catch (IOException e) {
+                //the peer is not up yet, try again later
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A method that flood the reachability of this server with a new epoch every period,
+     * and withdraw the interest of the servers whose newest epoch is too old, they are not reachable anymore
+     */
+    private void refreshReach()
+    {
+        long expiryNanos = TimeUnit.MILLISECONDS.toNanos(REACH_MILLIS * REACH_EXPIRY_PERIODS);
+        while (!stop) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(REACH_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<String> unreachable = new ArrayList<>();
+            lock.lock();
+            try {
+                reach();
+                long now = System.nanoTime();
+                for (Map.Entry<String, OriginState> origin : origins.entrySet()) {
+                    OriginState state = origin.getValue();
+                    if (!state.routes.isEmpty() && now - state.epochHeardAt > expiryNanos) {
+                        state.routes.clear();
+                        route(origin.getKey(), state);
+                        unreachable.add(origin.getKey());
+                    }
+                }
+                if (!unreachable.isEmpty()) {
+                    refresh();
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (String origin : unreachable) {
+                Server.printToConsole("Federation server " + origin + " is not reachable, its interest is withdrawn");
+                writeToLog(Server.LOG_LEVEL.INFO.toString(), "Federation server " + origin + " is not reachable, its interest is withdrawn");
+            }
+        }
+    }
+
+    private void startLink(PeerLink link)
+    {
+        try {
+            executor.execute(link);
+        } catch (RuntimeException e) {
+            link.shutdown();
+        }
+    }
+
+    /**
+     * A method that called when a peer introduced itself, the link is added to the federation
+     * and gets everything this server knows about the interest of the servers
+     * @param link - the link of the peer
+     * @param peerId - the id of the peer server
+     * @return false if the link must be closed
+     */
+    boolean onHello(PeerLink link, String peerId)
+    {
+        lock.lock();
+        try {
+            if (stop || peerId.equals(serverId)) {
+                return false;
+            }
+            for (PeerLink other : links) {
+                if (peerId.equals(other.peerId)) {
+                    //two links with the same peer, dialed by the same server, the peer connected again
+                    //and the old link is dead, so the new one is kept,
+                    //two links dialed at once from both sides, both sides keep the one the server with the smaller id connected
+                    String linkInitiator = link.initiator ? serverId : peerId;
+                    String otherInitiator = other.initiator ? serverId : peerId;
+                    if (linkInitiator.compareTo(otherInitiator) > 0) {
+                        return false;
+                    }
+                    other.shutdown();
+                }
+            }
+            link.peerId = peerId;
+            links.add(link);
+            for (Map.Entry<String, OriginState> origin : origins.entrySet()) {
+                if (!origin.getValue().routes.isEmpty()) {
+                    link.sendReach(origin.getKey(), origin.getValue().epoch);
+                }
+                for (Map.Entry<String, long[]> filter : origin.getValue().filters.entrySet()) {
+                    link.sendInterest(origin.getKey(), filter.getValue()[0], filter.getValue()[1] == 1, filter.getKey());
+                }
+            }
+            //the links changed, so the other servers learn their routes to this server again
+            reach();
+        } finally {
+            lock.unlock();
+        }
+        Server.printToConsole("Federation link up with " + link);
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "Federation link up with " + link);
+        return true;
+    }
+
+    /**
+     * A method that called when a link is down, the servers reachable only through it are not routed anymore
+     * @param link - the link that is down
+     */
+    void onLinkDown(PeerLink link)
+    {
+        lock.lock();
+        try {
+            if (!links.remove(link)) {
+                return;
+            }
+            for (Map.Entry<String, OriginState> origin : origins.entrySet()) {
+                OriginState state = origin.getValue();
+                if (state.routes.remove(link)) {
+                    route(origin.getKey(), state);
+                }
+                if (state.children.remove(link) != null) {
+                    report(origin.getKey(), state);
+                }
+            }
+            refresh();
+        } finally {
+            lock.unlock();
+        }
+        Server.printToConsole("Federation link down with " + link);
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "Federation link down with " + link);
+    }
+
+    /**
+     * A method that called when a peer sent the reachability of a server,
+     * a newer epoch replaces the routes to the server with the link, and is flooded to the other links,
+     * the same epoch through another link adds a route, an older epoch is ignored,
+     * a peer that routes to the server through this server sends the servers behind it instead, and is not a route
+     * @param link - the link the reachability came through
+     * @param origin - the id of the reachable server
+     * @param epoch - the epoch of the reachability
+     * @param behind - the servers behind the peer in the tree of the server, or null if this server is not its parent
+     */
+    void onReach(PeerLink link, String origin, long epoch, Set<String> behind)
+    {
+        lock.lock();
+        try {
+            OriginState state = origins.computeIfAbsent(origin, o -> new OriginState());
+            boolean reachable = !state.routes.isEmpty();
+            boolean changed = behind != null ? !behind.equals(state.children.put(link, behind)) : state.children.remove(link) != null;
+            if (!origin.equals(serverId)) {
+                if (behind != null) {
+                    state.routes.remove(link);
+                } else if (epoch > state.epoch) {
+                    state.epoch = epoch;
+                    state.epochHeardAt = System.nanoTime();
+                    state.routes.clear();
+                    state.routes.add(link);
+                    for (PeerLink other : links) {
+                        if (other != link) {
+                            other.sendReach(origin, epoch);
+                        }
+                    }
+                } else if (epoch == state.epoch) {
+                    state.routes.add(link);
+                }
+                route(origin, state);
+            }
+            if (changed) {
+                report(origin, state);
+            }
+            if (changed || reachable == state.routes.isEmpty()) {
+                refresh();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that called when a peer sent the interest of a server in a filter,
+     * a newer version is kept and flooded to the other links, an older or a known version is ignored
+     * @param link - the link the interest came through
+     * @param origin - the id of the server that has the interest
+     * @param version - the version of the interest
+     * @param present - true if the server has clients that registered to the filter
+     * @param filter - the topic filter
+     */
+    void onInterest(PeerLink link, String origin, long version, boolean present, String filter)
+    {
+        if (origin.equals(serverId) || !TopicRegistry.isValidFilter(filter)) {
+            return;
+        }
+        lock.lock();
+        try {
+            OriginState state = origins.computeIfAbsent(origin, o -> new OriginState());
+            long[] known = state.filters.get(filter);
+            if (known == null || version > known[0]) {
+                state.filters.put(filter, new long[] {version, present ? 1 : 0});
+                for (PeerLink other : links) {
+                    if (other != link) {
+                        other.sendInterest(origin, version, present, filter);
+                    }
+                }
+                refresh();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that called when a peer forwarded a published message,
+     * the message is published to the local clients and forwarded on, unless it was already seen
+     * @param link - the link the message came through
+     * @param delivery - the forwarded message
+     */
+    void onForward(PeerLink link, Delivery delivery)
+    {
+        if (delivery.origin.equals(serverId) || !markSeen(delivery)) {
+            return; //the message came back through a loop of links
+        }
+        broker.publishFromPeer(link, delivery);
+    }
+
+    /**
+     * A method that give a message published by a local client its origin and id
+     * @param delivery - the published message
+     */
+    void stamp(Delivery delivery)
+    {
+        delivery.origin = serverId;
+        delivery.messageId = nextMessageId.incrementAndGet();
+        markSeen(delivery);
+    }
+
+    /**
+     * A method that checks if a message may be forwarded on a link, along the tree of its origin server,
+     * the peer must route to the origin through this server, and a server that matches the message must be behind it,
+     * a message is never sent back on the link it came through, or beyond the maximum number of links
+     * @param link - the link to forward on
+     * @param from - the connection the message came from
+     * @param delivery - the message
+     * @return true if the message may be forwarded on the link
+     */
+    boolean mayForward(PeerLink link, ClientConnection from, Delivery delivery)
+    {
+        if (link == from || delivery.hops >= MAX_HOPS) {
+            return false;
+        }
+        Map<PeerLink, Set<String>> children = forwarding.get(delivery.origin);
+        Set<String> filters = children == null ? null : children.get(link);
+        if (filters != null) {
+            for (String filter : filters) {
+                if (TopicRegistry.matches(filter, delivery.topic)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A method that called when a local client registered to a filter
+     * @param filter - the topic filter
+     */
+    void localSubscribed(String filter)
+    {
+        lock.lock();
+        try {
+            if (localCounts.merge(filter, 1, Integer::sum) == 1) {
+                announce(filter, true);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that called when a local client left a filter, or disconnected
+     * @param filter - the topic filter
+     */
+    void localUnsubscribed(String filter)
+    {
+        lock.lock();
+        try {
+            Integer count = localCounts.get(filter);
+            if (count == null) {
+                return;
+            }
+            if (count == 1) {
+                localCounts.remove(filter);
+                announce(filter, false);
+            } else {
+                localCounts.put(filter, count - 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that flood a change of the interest of this server to all the links
+     * @param filter - the topic filter
+     * @param present - true if local clients registered to the filter
+     */
+    private void announce(String filter, boolean present)
+    {
+        long version = ++nextVersion;
+        origins.get(serverId).filters.put(filter, new long[] {version, present ? 1 : 0});
+        for (PeerLink link : links) {
+            link.sendInterest(serverId, version, present, filter);
+        }
+    }
+
+    /**
+     * A method that flood the reachability of this server with a new epoch to all the links
+     */
+    private void reach()
+    {
+        long epoch = ++nextVersion;
+        for (PeerLink link : links) {
+            link.sendReach(serverId, epoch);
+        }
+    }
+
+    /**
+     * A method that make the first route to a server the parent of this server in the tree of the server,
+     * the old parent is told this server is not behind it anymore, and the new one which servers are
+     * @param origin - the id of the server
+     * @param state - what this server knows about the server
+     */
+    private void route(String origin, OriginState state)
+    {
+        PeerLink parent = state.routes.isEmpty() ? null : state.routes.iterator().next();
+        if (parent == state.parent) {
+            return;
+        }
+        if (state.parent != null && links.contains(state.parent)) {
+            state.parent.sendReach(origin, state.epoch);
+        }
+        state.parent = parent;
+        state.reported = Collections.emptySet();
+        report(origin, state);
+    }
+
+    /**
+     * A method that tell the parent of this server in the tree of a server which servers are behind this server,
+     * this server and the servers behind its children, if they changed since the last time
+     * @param origin - the id of the server
+     * @param state - what this server knows about the server
+     */
+    private void report(String origin, OriginState state)
+    {
+        if (state.parent == null) {
+            return;
+        }
+        Set<String> behind = new HashSet<>();
+        behind.add(serverId);
+        for (Set<String> servers : state.children.values()) {
+            behind.addAll(servers);
+        }
+        if (!behind.equals(state.reported)) {
+            state.parent.sendBehind(origin, state.epoch, behind);
+            state.reported = behind;
+        }
+    }
+
+    /**
+     * A method that compute for every origin server and child link the filters of the reachable servers behind the link,
+     * and subscribe every link to the filters behind it in any tree, instead of the filters it was subscribed to before
+     */
+    private void refresh()
+    {
+        Map<String, Map<PeerLink, Set<String>>> tree = new HashMap<>();
+        Map<PeerLink, Set<String>> wanted = new HashMap<>();
+        for (Map.Entry<String, OriginState> origin : origins.entrySet()) {
+            for (Map.Entry<PeerLink, Set<String>> child : origin.getValue().children.entrySet()) {
+                Set<String> filters = new HashSet<>();
+                for (String server : child.getValue()) {
+                    OriginState state = origins.get(server);
+                    if (state != null && !state.routes.isEmpty()) {
+                        for (Map.Entry<String, long[]> filter : state.filters.entrySet()) {
+                            if (filter.getValue()[1] == 1) {
+                                filters.add(filter.getKey());
+                            }
+                        }
+                    }
+                }
+                if (!filters.isEmpty()) {
+                    tree.computeIfAbsent(origin.getKey(), o -> new HashMap<>()).put(child.getKey(), filters);
+                    wanted.computeIfAbsent(child.getKey(), l -> new HashSet<>()).addAll(filters);
+                }
+            }
+        }
+        forwarding = tree;
+        Set<PeerLink> changed = new HashSet<>(linkFilters.keySet());
+        changed.addAll(wanted.keySet());
+        for (PeerLink link : changed) {
+            Set<String> filters = wanted.getOrDefault(link, Collections.emptySet());
+            Set<String> subscribed = linkFilters.getOrDefault(link, Collections.emptySet());
+            for (String filter : subscribed) {
+                if (!filters.contains(filter)) {
+                    broker.removePeerInterest(link, filter);
+                }
+            }
+            for (String filter : filters) {
+                if (!subscribed.contains(filter)) {
+                    broker.addPeerInterest(link, filter);
+                }
+            }
+            if (filters.isEmpty()) {
+                linkFilters.remove(link);
+            } else {
+                linkFilters.put(link, filters);
+            }
+        }
+    }
+
+    /**
+     * A method that remember the id of a message
+     * @param delivery - the message
+     * @return true if the message was not seen before
+     */
+    private boolean markSeen(Delivery delivery)
+    {
+        String key = delivery.origin + " " + delivery.messageId;
+        seenLock.lock();
+        try {
+            return seenMessages.put(key, Boolean.TRUE) == null;
+        } finally {
+            seenLock.unlock();
+        }
+    }
+
+    /**
+     * A method that close the links and stop listening for peers
+     */
+    void shutdown()
+    {
+        stop = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while closing the federation socket");
+        }
+        for (PeerLink link : links) {
+            link.shutdown();
+        }
+        executor.shutdownNow();
+    }
+}
@@ -3,81 +3,93 @@ package com.distribution.chat.server.src;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import static com.distribution.chat.server.src.Server.getCurrentDateTimeStamp;
 import static com.distribution.chat.server.src.Server.writeToLog;
 
 /**
- * A class represented a thread that listen to the client messages
+ * A class represented a task that listen to the client messages,
+ * the task runs on a platform or a virtual thread of the connections executor
  */
-public class HandleClientThread extends Thread {
+public class HandleClientThread implements Runnable, ClientConnection {
+
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int WRITE_BATCH_SIZE = 256;
 
     public Socket clientSocket;
-    private static Hashtable<Socket,Set<String>> clientTopicsTable = new Hashtable<>(); //table holds topics per client
-    public boolean stop = false;
+    public volatile boolean stop = false;
+    private final OutputStream outputStream;
+    private final Broker broker;
+    private final OutboundQueue outbound;
+    private final Executor writerExecutor;
+    private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE]; //used only by the current writer
+    private final long[] writeBatchPublishedNanos = new long[WRITE_BATCH_SIZE];
+    private byte[] writeBuffer = new byte[READ_BUFFER_SIZE];
+    private volatile WireProtocol protocol = TextProtocol.INSTANCE;
+    private final String ipPort;
 
     /**
      * Constructor
      * @param socket
+     * @param writerExecutor - the executor that runs the writer of the outbound queue
+     * @param broker - the broker that process the messages of the client
      */
-    HandleClientThread(Socket socket)
+    HandleClientThread(Socket socket, Executor writerExecutor, Broker broker) throws IOException
     {
+        this.broker = broker;
+        this.outbound = broker.newOutboundQueue();
         this.clientSocket = socket;
-        clientTopicsTable.put(clientSocket,new HashSet<>());
+        this.outputStream = clientSocket.getOutputStream();
+        this.writerExecutor = writerExecutor;
+        this.ipPort = socket.getInetAddress() + ":" + socket.getPort();
+        broker.addClient(this);
     }
 
     /**
-     * A method that the thread will run when starts
+     * A method that the task will run when starts
      * This method listen for incoming messages from the client, doing process and reply to the user
      */
     @Override
     public void run()
     {
-        System.out.println("[" + getCurrentDateTimeStamp() + "]" + " Received connection from: " + clientSocket);
+        Server.printToConsole("Received connection from: " + clientSocket);
         writeToLog(Server.LOG_LEVEL.INFO.toString(), "Received connection from: " + clientSocket);
-            try (PrintWriter pw = new PrintWriter(clientSocket.getOutputStream());
-                 BufferedReader br = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
-                String line = "";
-
-                while ((line != null) && (!line.trim().toUpperCase().equals("CLOSE")) && (!stop)) {
-                    if (!stop && !clientSocket.isClosed()) {
-                        synchronized (this) {
-                            line = br.readLine();
-                        }
-                    }
-
-                    if ((line != null) && (!line.trim().isEmpty()) && (!stop)) {
-                        if("getRegisterTopics".equalsIgnoreCase(line))
-                        {
-                            sendRegisterTopics(pw);
-                        }
-                        else
-                        {
-                            line = processMessage(clientSocket, pw, line);
-                        }
-                    }
+            try (InputStream in = new BufferedInputStream(clientSocket.getInputStream(), READ_BUFFER_SIZE)) {
+                if (isBinaryClient(in)) {
+                    readFrames(new DataInputStream(in));
+                } else {
+                    readLines(in);
                 }
             } catch (SocketException e1)
             {
                 writeToLog(Server.LOG_LEVEL.FATAL.toString(), "the connection was interrupted by the client - " + clientSocket);
                 writeToLog(Server.LOG_LEVEL.FATAL.toString(), getStackTraceAsString(e1));
-                System.out.println("[" + Server.getCurrentDateTimeStamp() + "] the connection was interrupted by the client - " + clientSocket);
+                Server.printToConsole("the connection was interrupted by the client - " + clientSocket);
             } catch (IOException e)
             {
                 writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while try to read from client " + clientSocket);
                 writeToLog(Server.LOG_LEVEL.FATAL.toString(), getStackTraceAsString(e));
                 System.out.println("Error while try to read from client " + clientSocket);
+            } catch (RuntimeException e)
+            {
+                writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while try to process message from client " + clientSocket);
+                writeToLog(Server.LOG_LEVEL.FATAL.toString(), getStackTraceAsString(e));
+                System.out.println("Error while try to process message from client " + clientSocket);
             } finally {
+                //the queue is closed first, so the messages still waiting in it are dispatched again to the groups of the client
+                outbound.close();
                 //remove from topic table
-                synchronized (Server.class) {
-                    if (clientTopicsTable.containsKey(clientSocket)) {
-                        clientTopicsTable.remove(clientSocket);
-                    }
+                broker.clientsLock.lock();
+                try {
+                    broker.removeClient(this);
                     //remove from threads table
-                    if (Server.handleClients.contains(this)) {
-                        Server.handleClients.remove(this);
-                    }
+                    broker.handleClients.remove(this);
+                } finally {
+                    broker.clientsLock.unlock();
                 }
                 try {
                     clientSocket.close();
@@ -90,135 +102,296 @@ public class HandleClientThread extends Thread {
     }
 
     /**
-     * A method that process a raw message from the client
-     * @param clientSocket - instance of the client socket connection
-     * @param printWriter - instance of the print writer to the client
-     * @param rawMessage - the raw message from the client
-     * @return A string with the result of the process
+     * A method that checks if the client chose the binary protocol, by the first bytes of the connection
+     * @param in - the input stream of the client, must support mark
+     * @return true if the client sent the binary protocol magic
      */
-    private synchronized String processMessage(Socket clientSocket, PrintWriter printWriter, String rawMessage)
+    private boolean isBinaryClient(InputStream in) throws IOException
     {
-        Hashtable<Server.TokenType,String> parsedMessage = Server.parseRawMessage(rawMessage);
-        String result = "OK";
+        in.mark(1);
+        if (in.read() != BinaryProtocol.MAGIC) {
+            in.reset();
+            return false;
+        }
+        if (in.read() != BinaryProtocol.VERSION) {
+            throw new IOException("Unsupported binary protocol version");
+        }
+        protocol = BinaryProtocol.INSTANCE;
+        return true;
+    }
 
-        switch (parsedMessage.get(Server.TokenType.ACTION).toUpperCase())
-        {
-            case "REGISTER":
-                String rTopic = parsedMessage.get(Server.TokenType.TOPIC);
-                if(clientTopicsTable.get(clientSocket).add(rTopic))
-                {
-                    sendToClient(printWriter, "OK");
-                    //print on server
-                    System.out.println("[" + Server.getCurrentDateTimeStamp() + "] Client " + clientSocket + " REGISTER " + rTopic);
-                    //write to log
-                    writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + clientSocket + " REGISTER " + rTopic);
-                }
-                else
-                {
-                    sendToClient(printWriter, "ERROR");
-                    //print on server
-                    System.out.println("[" + Server.getCurrentDateTimeStamp() + "] ERROR - Client " + clientSocket + " REGISTER to existing topic - " + rTopic);
-                    //write to log
-                    writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + clientSocket + " REGISTER to existing topic - " + rTopic);
-                }
-                break;
-            case "LEAVE":
-                String lTopic = parsedMessage.get(Server.TokenType.TOPIC);
-                if(clientTopicsTable.get(clientSocket).remove(lTopic))
-                {
-                    sendToClient(printWriter, "OK");
-                    //print on server
-                    System.out.println("[" + Server.getCurrentDateTimeStamp() + "] Client " + clientSocket + " LEAVE " + lTopic);
-                    //write to log
-                    writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + clientSocket + " LEAVE " + lTopic);
+    /**
+     * A method that listen for lines from a text client,
+     * the lines are parsed in place in a reusable buffer, without decoding them to strings
+     * @param in - the input stream of the client
+     */
+    private void readLines(InputStream in) throws IOException
+    {
+        CommandParser parser = new CommandParser();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int length = 0; //the received bytes in the buffer
+        int start = 0; //the offset of the first unprocessed byte
+        int scanned = 0; //the bytes already scanned for a line terminator
+        String result = "";
+
+        while (!"CLOSE".equals(result) && !stop) {
+            int newline = scanned;
+            while (newline < length && buffer[newline] != '\n') {
+                newline++;
+            }
+            if (newline == length) {
+                //no complete line, keep the partial line at the start of the buffer and read more bytes
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, length - start);
+                    length -= start;
+                    start = 0;
+                } else if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
                 }
-                else
-                {
-                    sendToClient(printWriter, "ERROR");
-
-                    //print on server
-                    System.out.println("[" + Server.getCurrentDateTimeStamp() + "] ERROR - Client " + clientSocket + " LEAVE an unregistered topic - " + lTopic);
-                    //write to log
-                    writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + clientSocket + " LEAVE an unregistered topic - " + lTopic);
+                scanned = length;
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    return; //the client closed the connection
                 }
+                length += read;
+                continue;
+            }
+            int end = newline;
+            if (end > start && buffer[end - 1] == '\r') {
+                end--;
+            }
+            long parseStart = System.nanoTime();
+            TextCommand command = parser.parse(buffer, start, end - start);
+            broker.getMetrics().parseTime.record(System.nanoTime() - parseStart);
+            result = broker.processCommand(this, command);
+            start = newline + 1;
+            scanned = start;
+        }
+    }
+
+    /**
+     * A method that listen for frames from a binary client
+     * @param in - the input stream of the client
+     */
+    private void readFrames(DataInputStream in) throws IOException
+    {
+        byte[] frame = new byte[READ_BUFFER_SIZE];
+        String result = "";
+
+        while (!"CLOSE".equals(result) && !stop) {
+            try {
+                in.readFully(frame, 0, BinaryProtocol.HEADER_SIZE);
+            } catch (EOFException e) {
+                return; //the client closed the connection
+            }
+            int frameSize = BinaryProtocol.frameSize(frame, 0);
+            if (frameSize < 0) {
+                throw new IOException("Frame payload is larger than " + BinaryProtocol.MAX_PAYLOAD_SIZE + " bytes");
+            }
+            if (frame.length < frameSize) {
+                frame = Arrays.copyOf(frame, frameSize);
+            }
+            in.readFully(frame, BinaryProtocol.HEADER_SIZE, frameSize - BinaryProtocol.HEADER_SIZE);
+            result = broker.processFrame(this, frame, 0, frameSize);
+        }
+    }
+
+    /**
+     * A method that send an encoded message to the client,
+     * the message is added to the outbound queue of the client and written by the writer of the queue,
+     * so the publisher does not wait for a slow client (unless its queue is full)
+     * @param message - the message to be sent to the client
+     * @param publishedAt - the System.nanoTime the message was published at, 0 if it is not a published message
+     */
+    @Override
+    public void send(ByteBuffer message, long publishedAt)
+    {
+        send(message, publishedAt, null);
+    }
+
+    /**
+     * A method that send an encoded message to the client, that replaces the waiting message with the same conflation key
+     * @param message - the message to be sent to the client
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param conflationKey - the key of the message, null if it is not conflated
+     */
+    @Override
+    public void send(ByteBuffer message, long publishedAt, String conflationKey)
+    {
+        enqueue(message, publishedAt, conflationKey, null);
+    }
+
+    /**
+     * A method that send an encoded message a shared subscription dispatched to the client,
+     * the message stays in flight to the client until the writer took it from the outbound queue
+     * @param message - the message to be sent to the client
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param dispatch - the dispatch of the message by the shared subscription
+     */
+    @Override
+    public void sendDispatched(ByteBuffer message, long publishedAt, SharedSubscription.Dispatch dispatch)
+    {
+        enqueue(message, publishedAt, null, dispatch);
+    }
+
+    /**
+     * A method that add an encoded message to the outbound queue of the client
+     * @param message - the message to be sent to the client
+     * @param publishedAt - the System.nanoTime the message was published at, 0 if it is not a published message
+     * @param conflationKey - the key of the message, null if it is not conflated
+     * @param dispatch - the dispatch of the message by a shared subscription, null if none
+     */
+    private void enqueue(ByteBuffer message, long publishedAt, String conflationKey, SharedSubscription.Dispatch dispatch)
+    {
+        switch (outbound.offer(message, publishedAt, true, conflationKey, dispatch)) {
+            case SCHEDULE_WRITER:
+                scheduleWriter();
                 break;
-            case "SEND":
-                String topic = parsedMessage.get(Server.TokenType.TOPIC);
-                String content = parsedMessage.get(Server.TokenType.CONTENT);
-
-                //print on server
-                System.out.println("[" + Server.getCurrentDateTimeStamp() + "] Client " + clientSocket + " sent " + content + " on topic " + topic);
-                //write to log
-                writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client " + clientSocket + " sent " + content + " on topic " + topic);
-                String ipPort = clientSocket.getInetAddress() + ":" + clientSocket.getPort();
-                //Send the message to the subscribers
-                    clientTopicsTable.forEach((client, topics) ->
-                    {
-                        if (topics.contains(topic)) {
-                            try {
-                                PrintWriter pw = new PrintWriter(client.getOutputStream());
-                                String output = "( " + topic + " ) " + ipPort + " " + Server.getCurrentTimeStamp() + " - " + content;
-
-                                //send to client
-                                sendToClient(pw, output);
-
-                                //print on server
-                                System.out.println("[" + Server.getCurrentDateTimeStamp() + "] FORWARD ( " + topic + " ) " + ipPort + " " + Server.getCurrentTimeStamp() + " - " + content + " to client - " + client);
-                                //write to log
-                                writeToLog(Server.LOG_LEVEL.INFO.toString(), "FORWARD ( " + topic + " ) " + ipPort + " " + Server.getCurrentTimeStamp() + " - " + content + " to client - " + client);
-                            } catch (IOException e) {
-                                System.out.println("Error occurred while sending message to client " + client);
-                            }
-                        }
-                    });
+            case DISCONNECT:
+                disconnectSlowConsumer();
                 break;
-            case "CLOSE":
-                System.out.println("[" + Server.getCurrentDateTimeStamp() + "] CLOSE connection with " + clientSocket);
-                //write to log
-                writeToLog(Server.LOG_LEVEL.INFO.toString(), "CLOSE connection with " + clientSocket);
-                this.stop = true;
-                result = "CLOSE";
+            default:
                 break;
         }
-        return result;
     }
 
     /**
-     * A method that send a string to the client
-     * @param pw - instance of the print writer to the client
-     * @param message - the message to be sent to the client
+     * A method that retrieve the protocol the client speaks
+     * @return the wire protocol of the connection
      */
-    private synchronized void sendToClient(PrintWriter pw, String message)
+    @Override
+    public WireProtocol getProtocol()
     {
-            pw.write(message + "\n");
-            pw.flush();
+        return protocol;
+    }
+
+    @Override
+    public void setProtocol(WireProtocol protocol)
+    {
+        this.protocol = protocol;
     }
 
     /**
-     * A method that convert the printStackTrace output to string
-     * @param ex - the thrown exception
-     * @return A string of the printStackTrace output
+     * A method that disconnect the client when it fell behind the limits of its outbound queue,
+     * the waiting messages are replaced with the reason, and the socket is closed once it was written
+     * (or after a grace period, if the client does not read at all)
      */
-    public static String getStackTraceAsString(Exception ex)
+    private void disconnectSlowConsumer()
     {
-        StringWriter errors = new StringWriter();
-        ex.printStackTrace(new PrintWriter(errors));
-        return errors.toString();
+        Server.printToConsole("Client " + clientSocket + " is too slow to receive the messages, disconnecting");
+        writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + clientSocket + " is too slow to receive the messages, disconnecting");
+        stop = true;
+        if (outbound.closeWith(protocol.error(Broker.SLOW_CONSUMER_REASON), protocol.close()) == OutboundQueue.OfferResult.SCHEDULE_WRITER) {
+            scheduleWriter();
+        }
+        broker.schedule(this::closeSocket, Broker.DISCONNECT_GRACE_SECONDS, TimeUnit.SECONDS);
     }
 
     /**
-     * A method the send to the client his registered topics (if exists)
-     * @param pw - instance of the print writer to the client
+     * A method that schedule the writer of the outbound queue
      */
-    private void sendRegisterTopics(PrintWriter pw)
+    private void scheduleWriter()
     {
-        if(clientTopicsTable.containsKey(clientSocket))
-        {
-            sendToClient(pw, "*topics-" + clientTopicsTable.get(clientSocket).toString());
+        try {
+            writerExecutor.execute(this::drainOutbound);
+        } catch (RejectedExecutionException e) {
+            //the server is stopping, write on the caller thread
+            drainOutbound();
         }
-        else
-        {
-            sendToClient(pw,"*topics-empty");
+    }
+
+    /**
+     * A method that close the socket of the client, the listening task then ends and cleans up
+     */
+    private void closeSocket()
+    {
+        outbound.close();
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while try to close socket clientSocket: " + clientSocket);
         }
     }
+
+    /**
+     * A method that write the outbound queue to the client until it is empty,
+     * all the pending messages are coalesced into a single write per drain cycle
+     */
+    private void drainOutbound()
+    {
+        int count;
+        while ((count = outbound.drain(writeBatch, writeBatchPublishedNanos)) > 0) {
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                length += writeBatch[i].remaining();
+            }
+            if (writeBuffer.length < length) {
+                writeBuffer = new byte[Math.max(length, writeBuffer.length * 2)];
+            }
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                ByteBuffer message = writeBatch[i];
+                int remaining = message.remaining();
+                message.get(message.position(), writeBuffer, position, remaining);
+                position += remaining;
+                writeBatch[i] = null;
+            }
+            try {
+                outputStream.write(writeBuffer, 0, length);
+                outputStream.flush();
+                broker.getMetrics().recordWrites(writeBatchPublishedNanos, 0, count);
+            } catch (IOException e) {
+                writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error occurred while sending message to client " + clientSocket);
+                System.out.println("Error occurred while sending message to client " + clientSocket);
+                closeSocket();
+            }
+        }
+        if (outbound.isClosing()) {
+            closeSocket();
+        }
+    }
+
+    @Override
+    public int getOutboundDepth()
+    {
+        return outbound.size();
+    }
+
+    /**
+     * A method that retrieve the address of the client
+     * @return A string of the client ip and port
+     */
+    @Override
+    public String getIpPort()
+    {
+        return ipPort;
+    }
+
+    /**
+     * A method that tells the client the server is closing the connection, and stops the task
+     */
+    @Override
+    public void shutdown()
+    {
+        send(protocol.close());
+        stop = true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return clientSocket.toString();
+    }
+
+    /**
+     * A method that convert the printStackTrace output to string
+     * @param ex - the thrown exception
+     * @return A string of the printStackTrace output
+     */
+    public static String getStackTraceAsString(Exception ex)
+    {
+        StringWriter errors = new StringWriter();
+        ex.printStackTrace(new PrintWriter(errors));
+        return errors.toString();
+    }
 }
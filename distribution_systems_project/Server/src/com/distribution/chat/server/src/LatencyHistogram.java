@@ -0,0 +1,172 @@
+package com.distribution.chat.server.src;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class represented a histogram of latencies in nanoseconds, with log-linear buckets as in HdrHistogram,
+ * every power of two is split into 32 buckets, so a recorded value is off by at most about 3%,
+ * the counts are striped by the recording thread, so recording allocates nothing and the threads rarely contend
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Constructor that creates a stripe of counts per processor, rounded up to a power of two
+     */
+    LatencyHistogram()
+    {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+        stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        stripeMask = count - 1;
+    }
+
+    /**
+     * A method that record a single latency
+     * @param nanos - the latency in nanoseconds, a negative latency is recorded as 0
+     */
+    void record(long nanos)
+    {
+        long value = Math.max(0, nanos);
+        int stripe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 40) & stripeMask;
+        stripes[stripe].incrementAndGet(bucket(value));
+        totalNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+
+    /**
+     * A method that take a consistent enough copy of the counts, in order to compute percentiles from it
+     * @return the snapshot of the histogram
+     */
+    Snapshot snapshot()
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = stripe.get(i);
+                counts[i] += count;
+                total += count;
+            }
+        }
+        return new Snapshot(counts, total, totalNanos.sum(), maxNanos.get());
+    }
+
+    /**
+     * A method that find the bucket of a value
+     * @param value - a non negative value
+     * @return the index of the bucket
+     */
+    private static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * A method that retrieve the highest value of a bucket
+     * @param bucket - the index of the bucket
+     * @return the highest value that falls into the bucket
+     */
+    private static long highestValue(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * A class represented the counts of the histogram at a moment
+     */
+    static final class Snapshot {
+
+        private final long[] counts;
+        final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        private Snapshot(long[] counts, long count, long totalNanos, long maxNanos)
+        {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * A method that compute a percentile of the recorded latencies
+         * @param percentile - the percentile, between 0 and 100
+         * @return the latency in nanoseconds, 0 if nothing was recorded
+         */
+        long percentile(double percentile)
+        {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        /**
+         * A method that compute the mean of the recorded latencies
+         * @return the mean in nanoseconds, 0 if nothing was recorded
+         */
+        long mean()
+        {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * A method that retrieve the highest recorded latency
+         * @return the max in nanoseconds
+         */
+        long max()
+        {
+            return maxNanos;
+        }
+
+        /**
+         * A method that describe the snapshot in microseconds, for the server report and the STATS command
+         * @return A string of the count, the mean, the main percentiles and the max
+         */
+        @Override
+        public String toString()
+        {
+            return "count=" + count + " mean=" + micros(mean()) + " p50=" + micros(percentile(50)) + " p90=" + micros(percentile(90))
+                    + " p99=" + micros(percentile(99)) + " p999=" + micros(percentile(99.9)) + " max=" + micros(maxNanos) + "us";
+        }
+
+        private static String micros(long nanos)
+        {
+            long tenths = nanos / (TimeUnit.MICROSECONDS.toNanos(1) / 10);
+            return tenths / 10 + "." + tenths % 10;
+        }
+    }
+}
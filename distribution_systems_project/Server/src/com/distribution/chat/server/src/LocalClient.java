@@ -0,0 +1,563 @@
+package com.distribution.chat.server.src;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented a client in the same process as the broker,
+ * its commands are handed to the broker as objects and the messages it registered to reach it as the objects the fan-out holds,
+ * nothing is encoded, copied or written to a socket on the way,
+ * the messages wait in a bounded inbox with the limits, the policy and the conflation of the outbound queues of the remote clients,
+ * and are handed to the listener one at a time, in order, by a dispatch thread of the embedded broker
+ */
+public class LocalClient implements ClientConnection {
+
+    private static final AtomicLong LOCAL_CLIENT_IDS = new AtomicLong();
+    //the replies of the broker, told apart by identity, since nothing is encoded for an in-process client
+    private static final ByteBuffer OK = ByteBuffer.allocate(0);
+    private static final ByteBuffer ERROR = ByteBuffer.allocate(0);
+    private static final ByteBuffer NOTHING = ByteBuffer.allocate(0);
+
+    private final Broker broker;
+    private final LocalListener listener;
+    private final Executor dispatcher;
+    private final String name;
+    private final SlowConsumerPolicy policy;
+    private final WireProtocol protocol = new Replies();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, Boolean> replies = new ConcurrentHashMap<>(); //request id -> true if the broker replied OK
+
+    private final ReentrantLock lock = new ReentrantLock(); //guards the inbox and the state below
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<LocalMessage> inbox = new ArrayDeque<>();
+    private final Map<String, LocalMessage> waitingByKey = new HashMap<>(); //conflation key -> its message in the inbox
+    private boolean dispatching = false; //true while a dispatch task runs or was submitted
+    private boolean disconnecting = false; //true once the client fell behind with the disconnect policy
+    private boolean closeNotified = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor
+     * @param broker - the broker the client publishes to
+     * @param listener - the receiver of the messages of the client
+     * @param dispatcher - the executor that runs the dispatch tasks, its threads must be created by newDispatchExecutor
+     */
+    LocalClient(Broker broker, LocalListener listener, Executor dispatcher)
+    {
+        this.broker = broker;
+        this.listener = Objects.requireNonNull(listener, "listener");
+        this.dispatcher = dispatcher;
+        this.name = "local:" + LOCAL_CLIENT_IDS.incrementAndGet();
+        this.policy = broker.getSlowConsumerPolicy();
+        broker.addClient(this);
+        Server.printToConsole("Received connection from: " + name);
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "Received connection from: " + name);
+    }
+
+    /**
+     * A method that register the client to a topic filter, or join the group of a shared subscription "$share/group/filter",
+     * that forwards every message of the filter to a single member of the group
+     * @param filter - the topic, a filter with wildcards, or the name of a shared subscription
+     * @return true if the client registered, false if the filter is not valid, the client already registered to it or the client is closed
+     */
+    public boolean subscribe(String filter)
+    {
+        if (closed) {
+            return false;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        broker.registerLocal(this, filter, null, requestId);
+        return replied(requestId);
+    }
+
+    /**
+     * A method that register the client to a topic filter, and get only the messages whose content passes a filter,
+     * the filter is evaluated by the broker, once per message for all the subscriptions with the same expression
+     * @param filter - the topic, or a filter with wildcards
+     * @param where - the content filter expression: "PREFIX text", "CONTAINS text", "REGEX pattern" or "key=value"
+     * @return true if the client registered, false if a filter is not valid, the client already registered to the topic filter or the client is closed
+     */
+    public boolean subscribe(String filter, String where)
+    {
+        if (closed) {
+            return false;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        broker.registerLocal(this, filter, Objects.requireNonNull(where, "where"), requestId);
+        return replied(requestId);
+    }
+
+    /**
+     * A method that register the client to a topic filter, and keep only the latest message of each of its topics
+     * waiting in the inbox, the last message of a topic is delivered at once
+     * @param filter - the topic, or a filter with wildcards
+     * @return true if the client registered, false if the filter is not valid, the client already registered to it or the client is closed
+     */
+    public boolean subscribeConflated(String filter)
+    {
+        if (closed) {
+            return false;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        broker.registerLocalConflated(this, filter, requestId);
+        return replied(requestId);
+    }
+
+    /**
+     * A method that unregister the client from a topic filter
+     * @param filter - a filter the client registered to
+     * @return true if the client left the filter, false if it did not register to it or the client is closed
+     */
+    public boolean unsubscribe(String filter)
+    {
+        if (closed) {
+            return false;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        broker.leaveLocal(this, filter, requestId);
+        return replied(requestId);
+    }
+
+    /**
+     * A method that publish a text message, the message is forwarded before the method returns
+     * @param topic - the topic of the message, without wildcards
+     * @param content - the content of the message
+     * @return true if the message was published, false if the topic is not valid or the client is closed
+     */
+    public boolean publish(String topic, String content)
+    {
+        return publish(new Delivery(topic, name, Server.getCurrentTimeStamp(), content));
+    }
+
+    /**
+     * A method that publish a binary message, the message is forwarded before the method returns,
+     * the array is not copied, it is handed to the subscribers and must not be modified afterwards
+     * @param topic - the topic of the message, without wildcards
+     * @param payload - the raw content of the message
+     * @return true if the message was published, false if the topic is not valid or the client is closed
+     */
+    public boolean publish(String topic, byte[] payload)
+    {
+        return publish(new Delivery(topic, name, Server.getCurrentTimeStamp(), payload));
+    }
+
+    /**
+     * A method that hand a published message to the broker
+     * @param delivery - the published message
+     * @return true if the broker replied OK
+     */
+    private boolean publish(Delivery delivery)
+    {
+        if (closed) {
+            return false;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        broker.publishLocal(this, delivery, requestId);
+        return replied(requestId);
+    }
+
+    /**
+     * A method that retrieve the reply of the broker to a command, the broker replies on the thread of the command
+     * @param requestId - the request id of the command
+     * @return true if the broker replied OK
+     */
+    private boolean replied(long requestId)
+    {
+        return Boolean.TRUE.equals(replies.remove(requestId));
+    }
+
+    /**
+     * A method that called by the fan-out for every message the client registered to,
+     * the message joins the inbox, and the policy applies when the inbox is full
+     * @param delivery - the published message
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param conflationKey - the key of a message of a conflated topic, that replaces the waiting message with the key, null if none
+     */
+    void deliver(Delivery delivery, long publishedAt, String conflationKey)
+    {
+        deliver(delivery, publishedAt, conflationKey, null);
+    }
+
+    /**
+     * A method that called by the broker for a message a shared subscription dispatched to the client,
+     * the message stays in flight to the client until the listener took it from the inbox (or the policy dropped it)
+     * @param delivery - the published message
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param dispatch - the dispatch of the message by the shared subscription
+     */
+    void deliverDispatched(Delivery delivery, long publishedAt, SharedSubscription.Dispatch dispatch)
+    {
+        deliver(delivery, publishedAt, null, dispatch);
+    }
+
+    /**
+     * A method that add a message to the inbox, and apply the policy when the inbox is full
+     * @param delivery - the published message
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param conflationKey - the key of a message of a conflated topic, null if none
+     * @param dispatch - the dispatch of the message by a shared subscription, null if none
+     */
+    private void deliver(Delivery delivery, long publishedAt, String conflationKey, SharedSubscription.Dispatch dispatch)
+    {
+        boolean startDispatch;
+        boolean disconnect = false;
+        SharedSubscription.Dispatch evicted = null; //the evicted message of a shared subscription, given back without the lock
+        lock.lock();
+        try {
+            if (closed || disconnecting) {
+                return;
+            }
+            LocalMessage waiting = conflationKey != null ? waitingByKey.get(conflationKey) : null;
+            if (waiting != null) {
+                waiting.replace(delivery, publishedAt);
+                policy.conflatedMessages.increment();
+                return;
+            }
+            if (inbox.size() >= policy.maxMessages) {
+                switch (policy.policy) {
+                    case BLOCK:
+                        //a dispatch thread must not wait, the listener that publishes may be the one that drains the inbox,
+                        //and neither may an event loop or a fan-out thread, as with the remote clients
+                        if (isDispatchThread() || Thread.currentThread() instanceof NioEventLoop || FanOutExecutor.isFanOutThread()) {
+                            policy.droppedNewest.increment();
+                            if (dispatch != null) {
+                                dispatch.done();
+                            }
+                            return;
+                        }
+                        policy.blockedPublishes.increment();
+                        while (inbox.size() >= policy.maxMessages && !closed) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        if (dispatch != null && dispatch.redispatched) {
+                            //a message evicted from another member does not evict messages in turn, it is dropped
+                            policy.droppedNewest.increment();
+                            dispatch.done();
+                            return;
+                        }
+                        LocalMessage oldest = inbox.poll();
+                        if (oldest != null && oldest.dispatch != null) {
+                            //the message of a shared subscription goes back to its group instead of being dropped
+                            evicted = oldest.dispatch;
+                        } else {
+                            forget(oldest);
+                            policy.droppedOldest.increment();
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        policy.droppedNewest.increment();
+                        if (dispatch != null) {
+                            dispatch.done();
+                        }
+                        return;
+                    default:
+                        policy.disconnectedClients.increment();
+                        disconnecting = true;
+                        disconnect = true;
+                        break;
+                }
+            }
+            if (disconnect) {
+                startDispatch = false;
+            } else {
+                LocalMessage message = new LocalMessage(delivery, publishedAt, conflationKey, dispatch);
+                inbox.add(message);
+                if (conflationKey != null) {
+                    waitingByKey.put(conflationKey, message);
+                }
+                startDispatch = !dispatching;
+                dispatching = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            evicted.evicted();
+        }
+        if (disconnect) {
+            Server.printToConsole("Client " + name + " is too slow to receive the messages, disconnecting");
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + name + " is too slow to receive the messages, disconnecting");
+            //the fan-out holds the topic, the client is closed once it is done
+            dispatcher.execute(this::close);
+        } else if (startDispatch) {
+            dispatcher.execute(this::dispatch);
+        }
+    }
+
+    /**
+     * A method that hand the messages of the inbox to the listener, until the inbox is empty,
+     * and tell the listener the client was closed, once
+     */
+    private void dispatch()
+    {
+        while (true) {
+            LocalMessage message;
+            boolean notifyClose = false;
+            lock.lock();
+            try {
+                message = closed ? null : inbox.poll();
+                forget(message);
+                if (message == null) {
+                    dispatching = false;
+                    if (closed && !closeNotified) {
+                        closeNotified = true;
+                        notifyClose = true;
+                    }
+                } else {
+                    notFull.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (message == null) {
+                if (notifyClose) {
+                    listener.onClose();
+                }
+                return;
+            }
+            broker.getMetrics().publishToWrite.record(System.nanoTime() - message.publishedAt);
+            try {
+                listener.onMessage(message);
+            } catch (RuntimeException e) {
+                writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while the listener of client " + name + " handled a message");
+                writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+            }
+        }
+    }
+
+    /**
+     * A method that forget the conflation key of a message that left the inbox, and end its flight if a shared subscription
+     * dispatched it, must be called while holding the lock
+     * @param message - the message that left the inbox, may be null
+     */
+    private void forget(LocalMessage message)
+    {
+        if (message == null) {
+            return;
+        }
+        if (message.conflationKey != null) {
+            waitingByKey.remove(message.conflationKey);
+        }
+        if (message.dispatch != null) {
+            message.dispatch.done();
+        }
+    }
+
+    /**
+     * A method that retrieve the protocol of the client, its replies are recorded instead of encoded
+     * @return the protocol of the client
+     */
+    @Override
+    public WireProtocol getProtocol()
+    {
+        return protocol;
+    }
+
+    @Override
+    public void setProtocol(WireProtocol protocol)
+    {
+        //the client has a single protocol, the sequence numbers are always part of its messages
+    }
+
+    /**
+     * A method that send a reply to the client, the reply was already recorded when the broker tagged it
+     * @param message - the reply
+     * @param publishedAt - not used, the published messages reach the client through deliver
+     */
+    @Override
+    public void send(ByteBuffer message, long publishedAt)
+    {
+    }
+
+    @Override
+    public int getOutboundDepth()
+    {
+        lock.lock();
+        try {
+            return inbox.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that retrieve the name of the client
+     * @return A string that tells the client apart from the other in-process clients
+     */
+    @Override
+    public String getIpPort()
+    {
+        return name;
+    }
+
+    /**
+     * A method that called by the broker when it stops, the client is closed
+     */
+    @Override
+    public void shutdown()
+    {
+        close();
+    }
+
+    /**
+     * A method that close the client and remove it from the broker,
+     * the messages that wait in the inbox are discarded, the blocked publishers are released,
+     * and the listener is told once the message it handles returned
+     */
+    public void close()
+    {
+        boolean startDispatch;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            inbox.clear();
+            waitingByKey.clear();
+            notFull.signalAll();
+            startDispatch = !dispatching;
+            dispatching = true;
+        } finally {
+            lock.unlock();
+        }
+        broker.clientsLock.lock();
+        try {
+            broker.removeClient(this);
+            broker.handleClients.remove(this);
+        } finally {
+            broker.clientsLock.unlock();
+        }
+        Server.printToConsole("CLOSE connection with " + name);
+        //write to log
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "CLOSE connection with " + name);
+        if (startDispatch) {
+            dispatcher.execute(this::dispatch);
+        }
+    }
+
+    /**
+     * A method that checks if the client is closed
+     * @return true if the client was closed, by the application or by the broker
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    /**
+     * A method that create the executor of the dispatch tasks of the in-process clients
+     * @return An executor of daemon dispatch threads
+     */
+    static ExecutorService newDispatchExecutor()
+    {
+        return Executors.newCachedThreadPool(DispatchThread::new);
+    }
+
+    /**
+     * A method that checks if the current thread is a dispatch thread
+     * @return true if the current thread hands messages to the listeners of in-process clients
+     */
+    static boolean isDispatchThread()
+    {
+        return Thread.currentThread() instanceof DispatchThread;
+    }
+
+    /**
+     * A class represented the replies of the broker to an in-process client,
+     * a tagged reply records its result by the request id, so the command that waits for it on the same thread finds it
+     */
+    private final class Replies implements WireProtocol {
+
+        @Override
+        public ByteBuffer ok()
+        {
+            return OK;
+        }
+
+        @Override
+        public ByteBuffer error()
+        {
+            return ERROR;
+        }
+
+        @Override
+        public ByteBuffer error(String reason)
+        {
+            return ERROR;
+        }
+
+        @Override
+        public ByteBuffer close()
+        {
+            return NOTHING;
+        }
+
+        @Override
+        public ByteBuffer topics(Collection<String> topics)
+        {
+            return NOTHING;
+        }
+
+        @Override
+        public ByteBuffer stats(String report)
+        {
+            return NOTHING;
+        }
+
+        @Override
+        public ByteBuffer deliver(Delivery delivery)
+        {
+            return NOTHING;
+        }
+
+        @Override
+        public WireProtocol withSequences()
+        {
+            return this;
+        }
+
+        @Override
+        public ByteBuffer tag(long requestId, ByteBuffer reply)
+        {
+            replies.put(requestId, reply == OK);
+            return reply;
+        }
+    }
+
+    /**
+     * A class represented a dispatch thread, a daemon so it does not keep the process alive
+     */
+    private static final class DispatchThread extends Thread {
+
+        DispatchThread(Runnable task)
+        {
+            super(task, "local-dispatch");
+            setDaemon(true);
+        }
+    }
+}
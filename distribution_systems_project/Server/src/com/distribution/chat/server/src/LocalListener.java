@@ -0,0 +1,22 @@
+package com.distribution.chat.server.src;
+
+
+/**
+ * An interface represented the receiver of the messages of an in-process client,
+ * the calls of a single client are made one at a time, in the order the messages were published, on a dispatch thread of the broker
+ */
+public interface LocalListener {
+
+    /**
+     * A method that called for every message published on a topic the client registered to
+     * @param message - the published message, shared with the other subscribers
+     */
+    void onMessage(LocalMessage message);
+
+    /**
+     * A method that called once after the client was closed, by the application or by the broker
+     */
+    default void onClose()
+    {
+    }
+}
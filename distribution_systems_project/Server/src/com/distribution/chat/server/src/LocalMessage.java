@@ -0,0 +1,110 @@
+package com.distribution.chat.server.src;
+
+
+/**
+ * A class represented a published message as an in-process client receives it,
+ * a view of the message object the broker forwards, so nothing is encoded or copied for the client
+ */
+public final class LocalMessage {
+
+    //a message of a conflated topic is replaced by a newer one while it waits in the inbox, guarded by the lock of the client
+    private Delivery delivery;
+    long publishedAt; //the System.nanoTime the message was published at
+    final String conflationKey; //null if the message is not conflated
+    final SharedSubscription.Dispatch dispatch; //the dispatch of the message by a shared subscription, null if none
+
+    /**
+     * Constructor
+     * @param delivery - the published message
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param conflationKey - the conflation key of the message, null if it is not conflated
+     * @param dispatch - the dispatch of the message by a shared subscription, null if none
+     */
+    LocalMessage(Delivery delivery, long publishedAt, String conflationKey, SharedSubscription.Dispatch dispatch)
+    {
+        this.delivery = delivery;
+        this.publishedAt = publishedAt;
+        this.conflationKey = conflationKey;
+        this.dispatch = dispatch;
+    }
+
+    /**
+     * A method that replace the waiting message with a newer message of the same conflated topic
+     * @param newer - the newer message
+     * @param newerPublishedAt - the System.nanoTime the newer message was published at
+     */
+    void replace(Delivery newer, long newerPublishedAt)
+    {
+        this.delivery = newer;
+        this.publishedAt = newerPublishedAt;
+    }
+
+    /**
+     * A method that retrieve the topic of the message
+     * @return the topic the message was published on
+     */
+    public String getTopic()
+    {
+        return delivery.topic;
+    }
+
+    /**
+     * A method that retrieve the publisher of the message
+     * @return the ip and port of the publisher, or the name of an in-process publisher
+     */
+    public String getSender()
+    {
+        return delivery.sender;
+    }
+
+    /**
+     * A method that retrieve the time the message was published
+     * @return A string of the publish time
+     */
+    public String getTime()
+    {
+        return delivery.time;
+    }
+
+    /**
+     * A method that retrieve the sequence number of the message in its topic
+     * @return the sequence number
+     */
+    public long getSequence()
+    {
+        return delivery.sequence;
+    }
+
+    /**
+     * A method that retrieve the content as text, a binary payload is decoded once for all the subscribers
+     * @return the content of the message
+     */
+    public String getContent()
+    {
+        return delivery.getContent();
+    }
+
+    /**
+     * A method that retrieve the raw content, the array is shared with the other subscribers and must not be modified
+     * @return the raw bytes of the content
+     */
+    public byte[] getPayload()
+    {
+        return delivery.getPayload();
+    }
+
+    /**
+     * A method that checks if the message was published as text
+     * @return true if the content arrived as text
+     */
+    public boolean isTextual()
+    {
+        return delivery.isTextual();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "( " + getTopic() + " ) " + getSender() + " " + getTime() + " - " + delivery.describeContent();
+    }
+}
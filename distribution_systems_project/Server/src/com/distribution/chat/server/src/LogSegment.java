@@ -0,0 +1,323 @@
+package com.distribution.chat.server.src;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A class represented a single segment file of a topic log, with its sparse offset index,
+ * the active segment is memory mapped and written sequentially, a full segment is sealed and trimmed to its size,
+ * a record is [length u32][offset u64][timestamp u64][flags u8][meta length u16][meta][payload],
+ * where the meta is the sender and the time of the message, and a zero length marks the end of the records
+ */
+public class LogSegment {
+
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".index";
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 1 + 2;
+    private static final int INDEX_ENTRY_SIZE = 8; //[offset relative to the base offset u32][position u32]
+    private static final byte TEXTUAL = 1;
+
+    final long baseOffset;
+    final File logFile;
+    final File indexFile;
+    private final int indexInterval;
+
+    private FileChannel logChannel; //null once the segment is sealed
+    private FileChannel indexChannel;
+    private MappedByteBuffer log;
+    private MappedByteBuffer index;
+    private int position = 0; //the size of the records
+    private int indexEntries = 0;
+    private int lastIndexedInterval = -1;
+    private long nextOffset;
+
+    private LogSegment(File dir, long baseOffset, int indexInterval)
+    {
+        this.baseOffset = baseOffset;
+        this.logFile = new File(dir, fileName(baseOffset) + LOG_SUFFIX);
+        this.indexFile = new File(dir, fileName(baseOffset) + INDEX_SUFFIX);
+        this.indexInterval = indexInterval;
+        this.nextOffset = baseOffset;
+    }
+
+    /**
+     * A method that create a new active segment
+     * @param dir - the directory of the topic log
+     * @param baseOffset - the offset of the first record of the segment
+     * @param size - the size of the mapped segment file
+     * @param indexInterval - the number of record bytes between two index entries
+     * @return the new segment
+     */
+    static LogSegment create(File dir, long baseOffset, int size, int indexInterval) throws IOException
+    {
+        LogSegment segment = new LogSegment(dir, baseOffset, indexInterval);
+        segment.map(size);
+        return segment;
+    }
+
+    /**
+     * A method that open the last segment of a topic log after a restart, as the active segment,
+     * the records are scanned to find the end of the log, and the index is rebuilt on the way
+     * @param dir - the directory of the topic log
+     * @param baseOffset - the offset of the first record of the segment
+     * @param size - the minimum size of the mapped segment file
+     * @param indexInterval - the number of record bytes between two index entries
+     * @return the recovered segment
+     */
+    static LogSegment recover(File dir, long baseOffset, int size, int indexInterval) throws IOException
+    {
+        LogSegment segment = new LogSegment(dir, baseOffset, indexInterval);
+        segment.map((int) Math.max(size, segment.logFile.length()));
+        MappedByteBuffer log = segment.log;
+        while (segment.position + RECORD_HEADER_SIZE <= log.capacity()) {
+            int length = log.getInt(segment.position);
+            if (length < RECORD_HEADER_SIZE - 4 || segment.position + 4 + length > log.capacity()
+                    || log.getLong(segment.position + 4) != segment.nextOffset) {
+                break; //the end of the records, or a record that was not completely written
+            }
+            segment.addIndexEntry();
+            segment.position += 4 + length;
+            segment.nextOffset++;
+        }
+        //clear a record that was not completely written, so it is not read as a record later
+        for (int i = segment.position; i < Math.min(segment.position + RECORD_HEADER_SIZE, log.capacity()); i++) {
+            log.put(i, (byte) 0);
+        }
+        return segment;
+    }
+
+    /**
+     * A method that open a sealed segment of a topic log after a restart
+     * @param dir - the directory of the topic log
+     * @param baseOffset - the offset of the first record of the segment
+     * @param nextBaseOffset - the base offset of the following segment
+     * @param indexInterval - the number of record bytes between two index entries
+     * @return the sealed segment
+     */
+    static LogSegment sealed(File dir, long baseOffset, long nextBaseOffset, int indexInterval)
+    {
+        LogSegment segment = new LogSegment(dir, baseOffset, indexInterval);
+        segment.position = (int) segment.logFile.length();
+        segment.nextOffset = nextBaseOffset;
+        return segment;
+    }
+
+    /**
+     * A method that map the segment file and its index file for writing
+     * @param size - the size of the segment file
+     */
+    private void map(int size) throws IOException
+    {
+        logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) (size / indexInterval + 1) * INDEX_ENTRY_SIZE);
+    }
+
+    /**
+     * A method that checks if a record fits in the rest of the active segment
+     * @param meta - the encoded sender and time
+     * @param payload - the content of the message
+     * @return true if the record fits
+     */
+    boolean fits(byte[] meta, byte[] payload)
+    {
+        return position + recordSize(meta, payload) <= log.capacity();
+    }
+
+    /**
+     * A method that append a record at the end of the active segment
+     * @param timestamp - the time the record was appended, in milliseconds
+     * @param textual - true if the message was published with the text protocol
+     * @param meta - the encoded sender and time
+     * @param payload - the content of the message
+     * @return the offset of the record
+     */
+    long append(long timestamp, boolean textual, byte[] meta, byte[] payload)
+    {
+        addIndexEntry();
+        int size = recordSize(meta, payload);
+        log.position(position + 4);
+        log.putLong(nextOffset);
+        log.putLong(timestamp);
+        log.put(textual ? TEXTUAL : 0);
+        log.putShort((short) meta.length);
+        log.put(meta);
+        log.put(payload);
+        //the length is written last, so a record is visible to the recovery only once it was completely written
+        log.putInt(position, size - 4);
+        position += size;
+        return nextOffset++;
+    }
+
+    /**
+     * A method that add an index entry for the next record, once every index interval bytes
+     */
+    private void addIndexEntry()
+    {
+        int interval = position / indexInterval;
+        if (interval == lastIndexedInterval || (indexEntries + 1) * INDEX_ENTRY_SIZE > index.capacity()) {
+            return;
+        }
+        index.putInt(indexEntries * INDEX_ENTRY_SIZE, (int) (nextOffset - baseOffset));
+        index.putInt(indexEntries * INDEX_ENTRY_SIZE + 4, position);
+        indexEntries++;
+        lastIndexedInterval = interval;
+    }
+
+    /**
+     * A method that write the mapped changes of the active segment to the disk
+     */
+    void force()
+    {
+        if (log != null) {
+            log.force();
+            index.force();
+        }
+    }
+
+    /**
+     * A method that seal a full segment, its files are trimmed to the size of the records and are only read from now on
+     */
+    void seal() throws IOException
+    {
+        force();
+        log = null;
+        index = null;
+        logChannel.truncate(position);
+        indexChannel.truncate((long) indexEntries * INDEX_ENTRY_SIZE);
+        logChannel.close();
+        indexChannel.close();
+        logChannel = null;
+        indexChannel = null;
+    }
+
+    /**
+     * A method that read the records of the segment from an offset, the index finds the nearest record before it,
+     * every read message gets its offset as its sequence number
+     * @param topic - the topic of the log
+     * @param fromOffset - the offset of the first record to read
+     * @param maxMessages - the maximum number of records to read
+     * @param minTimestamp - the records appended before this time, in milliseconds, are skipped
+     * @param messages - the list to add the read messages to
+     */
+    void read(String topic, long fromOffset, int maxMessages, long minTimestamp, List<Delivery> messages) throws IOException
+    {
+        ByteBuffer records = log;
+        ByteBuffer entries = index;
+        int entryCount = indexEntries;
+        if (records == null) {
+            try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+                records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                entryCount = (int) (channel.size() / INDEX_ENTRY_SIZE);
+            }
+        }
+        int limit = position;
+        int start = lookup(entries, entryCount, fromOffset - baseOffset);
+        while (start + RECORD_HEADER_SIZE <= limit && messages.size() < maxMessages) {
+            int length = records.getInt(start);
+            long offset = records.getLong(start + 4);
+            if (offset >= fromOffset && records.getLong(start + 12) >= minTimestamp) {
+                boolean textual = records.get(start + 20) == TEXTUAL;
+                int metaLength = records.getShort(start + 21) & 0xFFFF;
+                byte[] meta = new byte[metaLength];
+                byte[] payload = new byte[length + 4 - RECORD_HEADER_SIZE - metaLength];
+                records.get(start + RECORD_HEADER_SIZE, meta);
+                records.get(start + RECORD_HEADER_SIZE + metaLength, payload);
+                String decodedMeta = new String(meta, Delivery.CHARSET);
+                int space = decodedMeta.lastIndexOf(' ');
+                Delivery delivery = new Delivery(topic, decodedMeta.substring(0, space), decodedMeta.substring(space + 1), payload, textual);
+                delivery.sequence = offset;
+                messages.add(delivery);
+            }
+            start += 4 + length;
+        }
+    }
+
+    /**
+     * A method that find the position of the last indexed record at or before a relative offset
+     * @param entries - the index of the segment
+     * @param entryCount - the number of entries in the index
+     * @param relativeOffset - the offset relative to the base offset of the segment
+     * @return the position to scan from
+     */
+    private static int lookup(ByteBuffer entries, int entryCount, long relativeOffset)
+    {
+        int low = 0;
+        int high = entryCount - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (entries.getInt(middle * INDEX_ENTRY_SIZE) > relativeOffset) {
+                high = middle - 1;
+            } else {
+                found = entries.getInt(middle * INDEX_ENTRY_SIZE + 4);
+                low = middle + 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * A method that retrieve the size of the records in the segment
+     * @return the size in bytes
+     */
+    long size()
+    {
+        return position;
+    }
+
+    /**
+     * A method that retrieve the offset the next record of the segment would get
+     * @return the next offset
+     */
+    long nextOffset()
+    {
+        return nextOffset;
+    }
+
+    /**
+     * A method that delete the files of a sealed segment
+     */
+    void delete()
+    {
+        if (!logFile.delete() || !indexFile.delete()) {
+            Server.writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Error while deleting the log segment " + logFile);
+        }
+    }
+
+    /**
+     * A method that close the files of the active segment
+     */
+    void close() throws IOException
+    {
+        if (logChannel != null) {
+            force();
+            logChannel.close();
+            indexChannel.close();
+        }
+    }
+
+    private static int recordSize(byte[] meta, byte[] payload)
+    {
+        return RECORD_HEADER_SIZE + meta.length + payload.length;
+    }
+
+    /**
+     * A method that retrieve the file name of a segment, the base offset padded so the names sort by offset
+     * @param baseOffset - the offset of the first record of the segment
+     * @return the file name without a suffix
+     */
+    static String fileName(long baseOffset)
+    {
+        return String.format("%020d", baseOffset);
+    }
+}
@@ -0,0 +1,292 @@
+package com.distribution.chat.server.src;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented a thread that keeps the published messages in durable append-only logs, one log per topic,
+ * the publishers only enqueue the messages into a bounded queue, and this single thread appends them sequentially
+ * to the memory mapped segments, and writes them to the disk in batches of messages or of time
+ */
+public class MessageStore extends Thread {
+
+    private static final String TOPIC_DIR_PREFIX = "topic-";
+    private static final int MAX_BATCH = 1024;
+    private static final long RETENTION_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long READ_WAIT_MILLIS = 1000; //the longest wait of a read for the queued messages of its topic
+
+    private final File dir;
+    private final BlockingQueue<Delivery> queue;
+    private final AsyncLogWriter.OverflowPolicy overflowPolicy;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final int fsyncMessages;
+    private final long fsyncMillis;
+    private final long retentionBytes;
+    private final long retentionMillis;
+
+    private final ConcurrentHashMap<String, TopicLog> topicLogs = new ConcurrentHashMap<>();
+    private final LongAdder droppedMessages = new LongAdder();
+    private volatile boolean stop = false;
+
+    /**
+     * Constructor
+     * @param config - properties file object with the store settings, missing settings get default values
+     */
+    private MessageStore(Properties config)
+    {
+        super("message-store");
+        setDaemon(true);
+        this.dir = new File(config.getProperty("store.dir", "store").trim());
+        this.queue = new ArrayBlockingQueue<>(Integer.parseInt(config.getProperty("store.queue.size", "65536").trim()));
+        this.overflowPolicy = AsyncLogWriter.OverflowPolicy.valueOf(config.getProperty("store.overflow", "block").trim().toUpperCase());
+        this.segmentSize = Integer.parseInt(config.getProperty("store.segment.size", "16777216").trim());
+        this.indexInterval = Integer.parseInt(config.getProperty("store.index.interval", "4096").trim());
+        this.fsyncMessages = Integer.parseInt(config.getProperty("store.fsync.messages", "0").trim());
+        this.fsyncMillis = Long.parseLong(config.getProperty("store.fsync.millis", "1000").trim());
+        this.retentionBytes = Long.parseLong(config.getProperty("store.retention.bytes", "1073741824").trim());
+        this.retentionMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(config.getProperty("store.retention.minutes", "10080").trim()));
+        if (segmentSize <= 0 || indexInterval <= 0) {
+            throw new IllegalArgumentException("store.segment.size and store.index.interval must be positive");
+        }
+    }
+
+    /**
+     * A method that open the message store of the configuration file, with the logs of the topics it already holds
+     * @param config - properties file object
+     * @return the started message store, or null if the store is not enabled
+     */
+    static MessageStore fromConfig(Properties config) throws IOException
+    {
+        if (!Boolean.parseBoolean(config.getProperty("store.enabled", "false").trim())) {
+            return null;
+        }
+        MessageStore store = new MessageStore(config);
+        store.openTopicLogs();
+        store.start();
+        return store;
+    }
+
+    /**
+     * A method that enqueue a published message to the log of its topic, according to the overflow policy
+     * @param delivery - the published message
+     */
+    void append(Delivery delivery)
+    {
+        if (stop) {
+            droppedMessages.increment();
+            return;
+        }
+        if (overflowPolicy == AsyncLogWriter.OverflowPolicy.DROP) {
+            if (!queue.offer(delivery)) {
+                droppedMessages.increment();
+            }
+            return;
+        }
+        try {
+            queue.put(delivery);
+        } catch (InterruptedException e) {
+            droppedMessages.increment();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A method that read the stored messages of a topic by their sequence numbers, the offsets of its log,
+     * the messages that are still queued are waited for, for a short time
+     * @param topic - the topic of the messages
+     * @param fromOffset - the offset of the first message to read
+     * @param toOffset - the offset after the last message to read
+     * @param minTimestamp - the messages stored before this time, in milliseconds, are skipped
+     * @return A list of the messages, or null if the offsets of the topic log are not its sequence numbers
+     */
+    List<Delivery> read(String topic, long fromOffset, long toOffset, long minTimestamp) throws IOException
+    {
+        TopicLog topicLog = topicLogs.get(topic);
+        long waitUntil = System.currentTimeMillis() + READ_WAIT_MILLIS;
+        while (!stop && (topicLog == null || topicLog.keepsSequences() && topicLog.nextOffset() < toOffset) && System.currentTimeMillis() < waitUntil) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            topicLog = topicLogs.get(topic);
+        }
+        if (topicLog == null) {
+            return Collections.emptyList();
+        }
+        List<Delivery> messages = topicLog.read(fromOffset, (int) Math.min(Integer.MAX_VALUE, toOffset - fromOffset), minTimestamp);
+        if (!topicLog.keepsSequences()) {
+            return null;
+        }
+        //a message removed by the retention moves the read past the requested offsets
+        messages.removeIf(delivery -> delivery.sequence >= toOffset);
+        return messages;
+    }
+
+    /**
+     * A method that retrieve the offset the next message of a topic will get in its log
+     * @param topic - the topic
+     * @return the next offset, 0 if the store holds no log of the topic
+     */
+    long nextOffset(String topic)
+    {
+        TopicLog topicLog = topicLogs.get(topic);
+        return topicLog == null ? 0 : topicLog.nextOffset();
+    }
+
+    /**
+     * A method that retrieve the number of messages that were not stored since the queue was full
+     * @return the number of dropped messages
+     */
+    long getDroppedMessages()
+    {
+        return droppedMessages.sum();
+    }
+
+    /**
+     * A method that stop the store after all the queued messages were appended and written to the disk
+     */
+    void shutdown()
+    {
+        stop = true;
+        try {
+            join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A method that the thread will run when starts
+     * This method takes the queued messages in batches and appends them to the logs of their topics
+     */
+    @Override
+    public void run()
+    {
+        List<Delivery> batch = new ArrayList<>(MAX_BATCH);
+        Set<TopicLog> dirty = new LinkedHashSet<>();
+        int unforcedMessages = 0;
+        long lastForce = System.currentTimeMillis();
+        long lastRetentionCheck = lastForce;
+        try {
+            while (!stop || !queue.isEmpty()) {
+                try {
+                    Delivery first = queue.poll(fsyncMillis > 0 ? fsyncMillis : 100, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                    }
+                } catch (InterruptedException e) {
+                    queue.drainTo(batch, MAX_BATCH);
+                }
+                long now = System.currentTimeMillis();
+                for (Delivery delivery : batch) {
+                    TopicLog topicLog = topicLog(delivery.topic);
+                    topicLog.append(delivery, now);
+                    dirty.add(topicLog);
+                }
+                unforcedMessages += batch.size();
+                batch.clear();
+
+                boolean byMessages = fsyncMessages > 0 && unforcedMessages >= fsyncMessages;
+                boolean byTime = fsyncMillis > 0 && now - lastForce >= fsyncMillis;
+                if (byMessages || byTime) {
+                    for (TopicLog topicLog : dirty) {
+                        topicLog.force();
+                    }
+                    dirty.clear();
+                    unforcedMessages = 0;
+                    lastForce = now;
+                }
+                if (now - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+                    applyRetention();
+                    lastRetentionCheck = now;
+                }
+            }
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while writing to the message store " + dir);
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+            System.out.println("Error while writing to the message store " + dir);
+        } finally {
+            //the store does not take messages anymore, release the publishers that wait for the queue
+            stop = true;
+            queue.clear();
+            closeTopicLogs();
+        }
+    }
+
+    /**
+     * A method that retrieve the log of a topic, the log is created on the first message of the topic
+     * @param topic - the topic of the message
+     * @return the log of the topic
+     */
+    private TopicLog topicLog(String topic) throws IOException
+    {
+        TopicLog topicLog = topicLogs.get(topic);
+        if (topicLog == null) {
+            topicLog = new TopicLog(new File(dir, TOPIC_DIR_PREFIX + URLEncoder.encode(topic, "UTF-8")), topic, segmentSize, indexInterval);
+            topicLogs.put(topic, topicLog);
+        }
+        return topicLog;
+    }
+
+    /**
+     * A method that open the logs of the topics the store already holds, and apply the retention to them
+     */
+    private void openTopicLogs() throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create the message store directory " + dir);
+        }
+        File[] topicDirs = dir.listFiles((d, name) -> name.startsWith(TOPIC_DIR_PREFIX));
+        if (topicDirs == null) {
+            return;
+        }
+        for (File topicDir : topicDirs) {
+            String topic = decodeTopic(topicDir.getName().substring(TOPIC_DIR_PREFIX.length()));
+            topicLogs.put(topic, new TopicLog(topicDir, topic, segmentSize, indexInterval));
+        }
+        applyRetention();
+    }
+
+    private void applyRetention()
+    {
+        for (TopicLog topicLog : topicLogs.values()) {
+            topicLog.applyRetention(retentionBytes, retentionMillis);
+        }
+    }
+
+    private void closeTopicLogs()
+    {
+        for (TopicLog topicLog : topicLogs.values()) {
+            try {
+                topicLog.close();
+            } catch (IOException e) {
+                writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while closing the log of topic " + topicLog.topic);
+            }
+        }
+    }
+
+    private static String decodeTopic(String encoded) throws UnsupportedEncodingException
+    {
+        return URLDecoder.decode(encoded, "UTF-8");
+    }
+}
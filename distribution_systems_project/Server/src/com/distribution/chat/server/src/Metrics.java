@@ -0,0 +1,218 @@
+package com.distribution.chat.server.src;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented the metrics of the broker hot path,
+ * the counters are LongAdders and the latencies are striped histograms, so recording allocates nothing
+ * and the publishers do not contend on a shared counter, the gauges are computed only when they are read,
+ * the metrics are exposed through JMX and the STATS command
+ */
+public class Metrics implements MetricsMXBean {
+
+    static final String OBJECT_NAME = "com.distribution.chat.server:type=Broker";
+
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder publishes = new LongAdder();
+    final LongAdder deliveries = new LongAdder();
+    final LongAdder filteredOut = new LongAdder(); //messages not forwarded to a subscriber, since they did not pass its content filter
+    final LatencyHistogram parseTime = new LatencyHistogram(); //parsing a text command
+    final LatencyHistogram fanOutTime = new LatencyHistogram(); //matching and enqueueing a message to all its subscribers
+    final LatencyHistogram publishToWrite = new LatencyHistogram(); //from the publish to the write to the subscriber socket
+
+    private final Broker broker;
+    private volatile ObjectName registeredName; //null when the metrics are not registered
+
+    /**
+     * Constructor
+     * @param broker - the broker the gauges are read from
+     */
+    Metrics(Broker broker)
+    {
+        this.broker = broker;
+    }
+
+    /**
+     * A method that register the metrics in the platform MBean server, once,
+     * the first broker of the process gets the plain name, every other one gets the name with the qualifier added
+     * @param qualifier - a key=value property that tells this broker apart from the others, such as its port
+     */
+    void registerMBean(String qualifier)
+    {
+        if (registeredName != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                name = new ObjectName(OBJECT_NAME + "," + qualifier);
+            }
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                registeredName = name;
+            }
+        } catch (JMException e) {
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Error while registering the metrics in JMX - " + e.getMessage());
+        }
+    }
+
+    /**
+     * A method that remove the metrics from the platform MBean server, if they were registered
+     */
+    void unregisterMBean()
+    {
+        ObjectName name = registeredName;
+        if (name == null) {
+            return;
+        }
+        registeredName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Error while removing the metrics from JMX - " + e.getMessage());
+        }
+    }
+
+    /**
+     * A method that record the publish to write latency of the messages a writer wrote to a socket
+     * @param publishedNanos - the times the messages were published at (0 - not a published message)
+     * @param from - the index of the first written message
+     * @param to - the index after the last written message
+     */
+    void recordWrites(long[] publishedNanos, int from, int to)
+    {
+        long now = System.nanoTime();
+        for (int i = from; i < to; i++) {
+            if (publishedNanos[i] != 0) {
+                publishToWrite.record(now - publishedNanos[i]);
+            }
+        }
+    }
+
+    @Override
+    public long getConnectionsOpened()
+    {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed()
+    {
+        return connectionsClosed.sum();
+    }
+
+    @Override
+    public long getConnections()
+    {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getPublishes()
+    {
+        return publishes.sum();
+    }
+
+    @Override
+    public long getDeliveries()
+    {
+        return deliveries.sum();
+    }
+
+    @Override
+    public long getDrops()
+    {
+        SlowConsumerPolicy policy = broker.getSlowConsumerPolicy();
+        MessageStore store = broker.getStore();
+        return policy.droppedOldest.sum() + policy.droppedNewest.sum() + (store != null ? store.getDroppedMessages() : 0);
+    }
+
+    @Override
+    public long getFiltered()
+    {
+        return filteredOut.sum();
+    }
+
+    @Override
+    public long getConflated()
+    {
+        return broker.getSlowConsumerPolicy().conflatedMessages.sum();
+    }
+
+    @Override
+    public Map<String, Long> getParseTime()
+    {
+        return toMap(parseTime.snapshot());
+    }
+
+    @Override
+    public Map<String, Long> getFanOutTime()
+    {
+        return toMap(fanOutTime.snapshot());
+    }
+
+    @Override
+    public Map<String, Long> getPublishToWriteLatency()
+    {
+        return toMap(publishToWrite.snapshot());
+    }
+
+    @Override
+    public Map<String, Integer> getTopicSubscribers()
+    {
+        return broker.getSubscriberCounts();
+    }
+
+    @Override
+    public long getOutboundQueueDepth()
+    {
+        long depth = 0;
+        for (ClientConnection client : broker.getClients()) {
+            depth += client.getOutboundDepth();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getMaxOutboundQueueDepth()
+    {
+        int max = 0;
+        for (ClientConnection client : broker.getClients()) {
+            max = Math.max(max, client.getOutboundDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public String getReport()
+    {
+        return "connections=" + getConnections() + " opened=" + getConnectionsOpened() + " publishes=" + getPublishes()
+                + " deliveries=" + getDeliveries() + " drops=" + getDrops() + " conflated=" + getConflated() + " filtered=" + getFiltered()
+                + " queue.depth=" + getOutboundQueueDepth() + " queue.max=" + getMaxOutboundQueueDepth()
+                + " parse[" + parseTime.snapshot() + "] fanout[" + fanOutTime.snapshot() + "] write[" + publishToWrite.snapshot() + "]"
+                + " subscribers=" + getTopicSubscribers();
+    }
+
+    private static Map<String, Long> toMap(LatencyHistogram.Snapshot snapshot)
+    {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("count", snapshot.count);
+        map.put("mean", snapshot.mean());
+        map.put("p50", snapshot.percentile(50));
+        map.put("p90", snapshot.percentile(90));
+        map.put("p99", snapshot.percentile(99));
+        map.put("p999", snapshot.percentile(99.9));
+        map.put("max", snapshot.max());
+        return map;
+    }
+}
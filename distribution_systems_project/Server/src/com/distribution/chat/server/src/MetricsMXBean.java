@@ -0,0 +1,85 @@
+package com.distribution.chat.server.src;
+
+import java.util.Map;
+
+/**
+ * An interface represented the metrics of the broker as they are exposed through JMX,
+ * the latencies are maps of count, mean, p50, p90, p99, p999 and max, in nanoseconds
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return the number of client connections accepted since the server started
+     */
+    long getConnectionsOpened();
+
+    /**
+     * @return the number of client connections closed since the server started
+     */
+    long getConnectionsClosed();
+
+    /**
+     * @return the number of open client connections
+     */
+    long getConnections();
+
+    /**
+     * @return the number of published messages
+     */
+    long getPublishes();
+
+    /**
+     * @return the number of messages enqueued to subscribers
+     */
+    long getDeliveries();
+
+    /**
+     * @return the number of messages that were dropped, since a subscriber or the message store fell behind
+     */
+    long getDrops();
+
+    /**
+     * @return the number of messages that were not forwarded to a subscriber, since they did not pass its content filter
+     */
+    long getFiltered();
+
+    /**
+     * @return the number of messages of conflated topics that were replaced by a newer message before they were written
+     */
+    long getConflated();
+
+    /**
+     * @return the latency of parsing a text command
+     */
+    Map<String, Long> getParseTime();
+
+    /**
+     * @return the latency of enqueueing a published message to all its subscribers
+     */
+    Map<String, Long> getFanOutTime();
+
+    /**
+     * @return the latency from publishing a message to writing it to the socket of a subscriber
+     */
+    Map<String, Long> getPublishToWriteLatency();
+
+    /**
+     * @return the number of subscribers of every topic filter
+     */
+    Map<String, Integer> getTopicSubscribers();
+
+    /**
+     * @return the number of messages waiting in the outbound queues of all the clients
+     */
+    long getOutboundQueueDepth();
+
+    /**
+     * @return the number of messages waiting in the longest outbound queue
+     */
+    int getMaxOutboundQueueDepth();
+
+    /**
+     * @return all the metrics in a single line, as the STATS command replies
+     */
+    String getReport();
+}
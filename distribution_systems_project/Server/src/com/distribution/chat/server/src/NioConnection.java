@@ -0,0 +1,429 @@
+package com.distribution.chat.server.src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented a non-blocking connection with a client,
+ * that is served by a single event loop and decodes the incoming bytes into lines
+ */
+public class NioConnection implements ClientConnection {
+
+    private static final AtomicLong UNIX_CLIENT_IDS = new AtomicLong();
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final Broker broker;
+    private final String name;
+    private final String ipPort;
+    SelectionKey key;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private byte[] inBuffer = new byte[256]; //the received bytes that were not processed yet
+    private int inLength = 0;
+    private int scanned = 0; //the bytes of inBuffer already scanned for a line terminator
+    private boolean negotiated = false;
+    private final CommandParser parser = new CommandParser();
+    private volatile WireProtocol protocol = TextProtocol.INSTANCE;
+
+    private final OutboundQueue outbound;
+    private final ByteBuffer[] pending = new ByteBuffer[256]; //the drained messages not fully written yet
+    private final long[] pendingPublishedNanos = new long[256];
+    private int pendingOffset = 0;
+    private int pendingCount = 0;
+    private boolean closeAfterFlush = false;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     * @param channel - the accepted client channel
+     * @param loop - the event loop that serves the channel
+     * @param broker - the broker that process the messages of the client
+     */
+    NioConnection(SocketChannel channel, NioEventLoop loop, Broker broker) throws IOException
+    {
+        this.channel = channel;
+        this.loop = loop;
+        this.broker = broker;
+        this.outbound = broker.newOutboundQueue();
+        SocketAddress remote = channel.getRemoteAddress();
+        if (remote instanceof InetSocketAddress) {
+            this.name = channel.toString();
+            this.ipPort = ((InetSocketAddress) remote).getAddress() + ":" + ((InetSocketAddress) remote).getPort();
+        } else {
+            //the clients of a unix domain socket have no address, they are told apart by the order they connected in
+            this.ipPort = "unix:" + UNIX_CLIENT_IDS.incrementAndGet();
+            this.name = channel + " " + ipPort;
+        }
+    }
+
+    /**
+     * A method that called by the event loop once the channel was registered
+     */
+    void onConnected()
+    {
+        broker.addClient(this);
+        broker.handleClients.add(this);
+        Server.printToConsole("Received connection from: " + name);
+        writeToLog(Server.LOG_LEVEL.INFO.toString(), "Received connection from: " + name);
+    }
+
+    /**
+     * A method that called by the event loop when the channel has bytes to read,
+     * every complete line or frame is processed the same way as the thread per connection engine does
+     */
+    void onReadable()
+    {
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            if (inLength + readBuffer.remaining() > inBuffer.length) {
+                inBuffer = Arrays.copyOf(inBuffer, Math.max(inBuffer.length * 2, inLength + readBuffer.remaining()));
+            }
+            int received = readBuffer.remaining();
+            readBuffer.get(inBuffer, inLength, received);
+            inLength += received;
+            readBuffer.clear();
+
+            int consumed = negotiate();
+            if (negotiated) {
+                consumed = protocol == BinaryProtocol.INSTANCE ? decodeFrames(consumed) : decodeLines(consumed);
+            }
+            if (consumed > 0) {
+                System.arraycopy(inBuffer, consumed, inBuffer, 0, inLength - consumed);
+                inLength -= consumed;
+                scanned = Math.max(0, scanned - consumed);
+            }
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), "the connection was interrupted by the client - " + name);
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+            Server.printToConsole("the connection was interrupted by the client - " + name);
+            close();
+        }
+    }
+
+    /**
+     * A method that choose the protocol of the connection, by the first bytes the client sent
+     * @return the number of bytes the negotiation consumed
+     */
+    private int negotiate() throws IOException
+    {
+        if (negotiated || inLength == 0) {
+            return 0;
+        }
+        if (inBuffer[0] != BinaryProtocol.MAGIC) {
+            negotiated = true;
+            return 0;
+        }
+        if (inLength < 2) {
+            return 0;
+        }
+        if (inBuffer[1] != BinaryProtocol.VERSION) {
+            throw new IOException("Unsupported binary protocol version");
+        }
+        protocol = BinaryProtocol.INSTANCE;
+        negotiated = true;
+        return 2;
+    }
+
+    /**
+     * A method that process every complete line in the received bytes
+     * @param offset - the offset of the first unprocessed byte
+     * @return the offset after the last complete line
+     */
+    private int decodeLines(int offset)
+    {
+        int start = offset;
+        for (int i = Math.max(offset, scanned); i < inLength && !closed; i++) {
+            if (inBuffer[i] == '\n') {
+                int end = i;
+                if (end > start && inBuffer[end - 1] == '\r') {
+                    end--;
+                }
+                handleLine(start, end - start);
+                start = i + 1;
+            }
+        }
+        scanned = inLength;
+        return start;
+    }
+
+    /**
+     * A method that process every complete frame in the received bytes
+     * @param offset - the offset of the first unprocessed byte
+     * @return the offset after the last complete frame
+     */
+    private int decodeFrames(int offset) throws IOException
+    {
+        while (!closed && inLength - offset >= BinaryProtocol.HEADER_SIZE) {
+            int frameSize = BinaryProtocol.frameSize(inBuffer, offset);
+            if (frameSize < 0) {
+                throw new IOException("Frame payload is larger than " + BinaryProtocol.MAX_PAYLOAD_SIZE + " bytes");
+            }
+            if (inLength - offset < frameSize) {
+                break;
+            }
+            String result;
+            try {
+                result = broker.processFrame(this, inBuffer, offset, frameSize);
+            } catch (RuntimeException e) {
+                result = processingFailed(e);
+            }
+            if ("CLOSE".equals(result)) {
+                close();
+            }
+            offset += frameSize;
+        }
+        return offset;
+    }
+
+    /**
+     * A method that process a single line from the client, the line is parsed in place in the received bytes
+     * @param offset - the offset of the line in the received bytes
+     * @param length - the length of the line without its terminator
+     */
+    private void handleLine(int offset, int length)
+    {
+        String result;
+        try {
+            long parseStart = System.nanoTime();
+            TextCommand command = parser.parse(inBuffer, offset, length);
+            broker.getMetrics().parseTime.record(System.nanoTime() - parseStart);
+            result = broker.processCommand(this, command);
+        } catch (RuntimeException e) {
+            result = processingFailed(e);
+        }
+        if ("CLOSE".equals(result)) {
+            close();
+        }
+    }
+
+    /**
+     * A method that report a failure to process a line or a frame, the connection is then closed
+     * @param e - the thrown exception
+     * @return A string that tells the caller to close the connection
+     */
+    private String processingFailed(RuntimeException e)
+    {
+        writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while try to process message from client " + name);
+        writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+        System.out.println("Error while try to process message from client " + name);
+        return "CLOSE";
+    }
+
+    /**
+     * A method that called by the event loop when the channel can accept more bytes
+     */
+    void onWritable()
+    {
+        flush();
+    }
+
+    /**
+     * A method that retrieve the protocol the client speaks
+     * @return the wire protocol of the connection
+     */
+    @Override
+    public WireProtocol getProtocol()
+    {
+        return protocol;
+    }
+
+    @Override
+    public void setProtocol(WireProtocol protocol)
+    {
+        this.protocol = protocol;
+    }
+
+    /**
+     * A method that send an encoded message to the client,
+     * the message is added to the outbound queue of the client and written by the event loop of the connection
+     * @param encoded - the message to be sent to the client
+     * @param publishedAt - the System.nanoTime the message was published at, 0 if it is not a published message
+     */
+    @Override
+    public void send(ByteBuffer encoded, long publishedAt)
+    {
+        send(encoded, publishedAt, null);
+    }
+
+    /**
+     * A method that send an encoded message to the client, that replaces the waiting message with the same conflation key
+     * @param encoded - the message to be sent to the client
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param conflationKey - the key of the message, null if it is not conflated
+     */
+    @Override
+    public void send(ByteBuffer encoded, long publishedAt, String conflationKey)
+    {
+        enqueue(encoded, publishedAt, conflationKey, null);
+    }
+
+    /**
+     * A method that send an encoded message a shared subscription dispatched to the client,
+     * the message stays in flight to the client until the writer took it from the outbound queue
+     * @param encoded - the message to be sent to the client
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param dispatch - the dispatch of the message by the shared subscription
+     */
+    @Override
+    public void sendDispatched(ByteBuffer encoded, long publishedAt, SharedSubscription.Dispatch dispatch)
+    {
+        enqueue(encoded, publishedAt, null, dispatch);
+    }
+
+    /**
+     * A method that add an encoded message to the outbound queue of the client
+     * @param encoded - the message to be sent to the client
+     * @param publishedAt - the System.nanoTime the message was published at, 0 if it is not a published message
+     * @param conflationKey - the key of the message, null if it is not conflated
+     * @param dispatch - the dispatch of the message by a shared subscription, null if none
+     */
+    private void enqueue(ByteBuffer encoded, long publishedAt, String conflationKey, SharedSubscription.Dispatch dispatch)
+    {
+        //a publisher on an event loop must not wait for a full queue, it may be the loop that drains it,
+        //and neither may a fan-out thread, the publisher it works for may be that loop
+        boolean mayWait = !(Thread.currentThread() instanceof NioEventLoop) && !FanOutExecutor.isFanOutThread();
+        switch (outbound.offer(encoded, publishedAt, mayWait, conflationKey, dispatch)) {
+            case SCHEDULE_WRITER:
+                loop.execute(this::flush);
+                break;
+            case DISCONNECT:
+                disconnectSlowConsumer();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * A method that disconnect the client when it fell behind the limits of its outbound queue,
+     * the waiting messages are replaced with the reason, and the channel is closed once it was written
+     * (or after a grace period, if the client does not read at all)
+     */
+    private void disconnectSlowConsumer()
+    {
+        Server.printToConsole("Client " + name + " is too slow to receive the messages, disconnecting");
+        writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Client " + name + " is too slow to receive the messages, disconnecting");
+        outbound.closeWith(protocol.error(Broker.SLOW_CONSUMER_REASON), protocol.close());
+        loop.execute(() -> {
+            closeAfterFlush = true;
+            flush();
+        });
+        broker.schedule(() -> loop.execute(this::close), Broker.DISCONNECT_GRACE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A method that write the queued messages to the channel, as long as the channel accepts them,
+     * all the drained messages are written with a single gathering write,
+     * the rest is written when the channel becomes writable again
+     */
+    private void flush()
+    {
+        if (closed) {
+            return;
+        }
+        try {
+            while (true) {
+                if (pendingOffset == pendingCount) {
+                    pendingOffset = 0;
+                    pendingCount = outbound.drain(pending, pendingPublishedNanos);
+                    if (pendingCount == 0) {
+                        break;
+                    }
+                }
+                channel.write(pending, pendingOffset, pendingCount - pendingOffset);
+                int written = pendingOffset;
+                while (pendingOffset < pendingCount && !pending[pendingOffset].hasRemaining()) {
+                    pending[pendingOffset++] = null;
+                }
+                broker.getMetrics().recordWrites(pendingPublishedNanos, written, pendingOffset);
+                if (pendingOffset < pendingCount) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (closeAfterFlush || outbound.isClosing()) {
+                close();
+            }
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error occurred while sending message to client " + name);
+            System.out.println("Error occurred while sending message to client " + name);
+            close();
+        }
+    }
+
+    @Override
+    public int getOutboundDepth()
+    {
+        return outbound.size();
+    }
+
+    /**
+     * A method that retrieve the address of the client
+     * @return A string of the client ip and port
+     */
+    @Override
+    public String getIpPort()
+    {
+        return ipPort;
+    }
+
+    /**
+     * A method that tells the client the server is closing the connection,
+     * the channel is closed after the pending messages were written
+     */
+    @Override
+    public void shutdown()
+    {
+        send(protocol.close());
+        loop.execute(() -> {
+            closeAfterFlush = true;
+            flush();
+        });
+    }
+
+    /**
+     * A method that close the channel and remove the client from the broker,
+     * must be called on the event loop thread
+     */
+    void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.close();
+        broker.removeClient(this);
+        broker.handleClients.remove(this);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while try to close client channel: " + name);
+            System.out.println("Error while try to close client channel: " + name);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,123 @@
+package com.distribution.chat.server.src;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented an event loop thread,
+ * that serves many client connections with non-blocking reads and writes over a single selector
+ */
+public class NioEventLoop extends Thread {
+
+    private final Selector selector;
+    private final Broker broker;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    public volatile boolean stop = false;
+
+    /**
+     * Constructor
+     * @param index - the index of the loop in the engine
+     * @param broker - the broker that process the messages of the clients
+     */
+    NioEventLoop(int index, Broker broker) throws IOException
+    {
+        super("nio-event-loop-" + index);
+        this.broker = broker;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * A method that hand a new accepted client channel to the loop
+     * @param channel - the accepted client channel
+     */
+    void register(SocketChannel channel)
+    {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this, broker);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.onConnected();
+            } catch (IOException e) {
+                writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while try to register client channel " + channel);
+                writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+                System.out.println("Error while try to register client channel " + channel);
+            }
+        });
+    }
+
+    /**
+     * A method that run a task on the loop thread
+     * @param task - the task to run
+     */
+    void execute(Runnable task)
+    {
+        tasks.add(task);
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * A method that the thread will run when starts
+     * This method waits for ready channels and dispatch them to their connections
+     */
+    @Override
+    public void run()
+    {
+        try {
+            while (!stop) {
+                runTasks();
+                if (stop) {
+                    //the wakeup of the stop task was already used, the loop must not wait for another one
+                    break;
+                }
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+            }
+            runTasks();
+        } catch (IOException | ClosedSelectorException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error in event loop " + getName());
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("Error while try to close the selector of " + getName());
+            }
+        }
+    }
+
+    /**
+     * A method that run all the pending tasks of the loop
+     */
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
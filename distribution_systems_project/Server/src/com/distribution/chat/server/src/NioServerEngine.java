@@ -0,0 +1,121 @@
+package com.distribution.chat.server.src;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented a thread that accept new connections with clients,
+ * and spread them over a small pool of event loops instead of a thread per client,
+ * a second server channel (a unix domain socket) may hand its clients to the same loops
+ */
+public class NioServerEngine extends Thread {
+
+    private final ServerSocketChannel serverChannel;
+    private final NioEventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final List<ServerSocketChannel> otherChannels = new CopyOnWriteArrayList<>();
+    public volatile boolean stop = false;
+
+    /**
+     * Constructor
+     * @param serverChannel - a bound server channel
+     * @param threads - the number of event loop threads
+     * @param broker - the broker that process the messages of the clients
+     */
+    NioServerEngine(ServerSocketChannel serverChannel, int threads, Broker broker) throws IOException
+    {
+        super("nio-acceptor");
+        this.serverChannel = serverChannel;
+        this.loops = new NioEventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(i, broker);
+        }
+    }
+
+    /**
+     * A method that the thread will run when starts
+     * This method waits for new connections with clients, and hand each one to the next event loop
+     */
+    @Override
+    public void run()
+    {
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+        accept(serverChannel);
+    }
+
+    /**
+     * A method that accept the connections of another server channel on a thread of its own,
+     * and hand them to the event loops of the engine
+     * @param channel - a bound server channel
+     */
+    void acceptFrom(ServerSocketChannel channel)
+    {
+        otherChannels.add(channel);
+        Thread acceptor = new Thread(() -> accept(channel), getName() + "-" + otherChannels.size());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * A method that waits for new connections on a server channel, and hand each one to the next event loop
+     * @param serverChannel - a bound server channel
+     */
+    private void accept(ServerSocketChannel serverChannel)
+    {
+        try {
+            while (!stop) {
+                SocketChannel channel = serverChannel.accept();
+                loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(channel);
+            }
+        }
+        catch (ClosedChannelException e)
+        {
+            //Server close serverChannel, do nothing
+            //Write to log
+            writeToLog(Server.LOG_LEVEL.INFO.toString(), "Server stop listening to " + serverChannel);
+        }
+        catch (IOException e) {
+            System.out.println("Error while try to accept server channel and register it to an event loop");
+        } finally {
+            try {
+                if (serverChannel.isOpen())
+                    serverChannel.close();
+            } catch (IOException e) {
+                System.out.println("Error while try to close the server channel " + serverChannel);
+            }
+        }
+    }
+
+    /**
+     * A method that stop accepting connections and stop the event loops,
+     * after the pending messages to the clients were written
+     */
+    void shutdown()
+    {
+        stop = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.out.println("Error while try to close the server channel " + serverChannel);
+        }
+        for (ServerSocketChannel channel : otherChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Error while try to close the server channel " + channel);
+            }
+        }
+        for (NioEventLoop loop : loops) {
+            loop.execute(() -> loop.stop = true);
+        }
+    }
+}
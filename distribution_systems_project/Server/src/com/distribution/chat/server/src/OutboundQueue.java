@@ -0,0 +1,427 @@
+package com.distribution.chat.server.src;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A class represented a bounded queue of the messages waiting to be written to a single client,
+ * the publishers only add encoded messages, and a single writer of the connection drains them in batches,
+ * when the client falls behind the limits of the queue, the slow consumer policy decides what happens,
+ * every message keeps the time it was published at, so the writer can measure the publish to write latency,
+ * a message of a conflated topic replaces the message of the same topic that still waits, in its place in the queue,
+ * so a client holds at most one waiting message per conflated topic, however far behind it is,
+ * a message a shared subscription dispatched to the client is done once the writer took it, or the policy dropped it,
+ * a message the DROP_OLDEST policy evicts is given back to its group, to be dispatched to another member, once,
+ * and a message still waiting when the connection closes stays in flight, to be dispatched to another member of the group
+ */
+public class OutboundQueue {
+
+    /**
+     * An enum that contains the results of adding a message to the queue
+     */
+    public enum OfferResult {
+        QUEUED, //the message waits for the writer that already drains the queue
+        SCHEDULE_WRITER, //the message waits, and the caller must schedule a writer
+        REJECTED, //the message was not added (dropped, or the queue is closed)
+        DISCONNECT //the client fell behind and must be disconnected
+    }
+
+    private static final int INITIAL_CAPACITY = 16; //must be a power of two
+
+    //a ring of the waiting messages and the times they were published at (0 - not a published message)
+    private ByteBuffer[] messages = new ByteBuffer[INITIAL_CAPACITY];
+    private long[] publishedNanos = new long[INITIAL_CAPACITY];
+    private String[] keys = new String[INITIAL_CAPACITY]; //the conflation key of every waiting message, null if it is not conflated
+    private SharedSubscription.Dispatch[] dispatches = new SharedSubscription.Dispatch[INITIAL_CAPACITY]; //null if not dispatched by a group
+    private Map<String, Long> positions = null; //conflation key -> the position of its waiting message, created on first use
+    private List<SharedSubscription.Dispatch> evicted = null; //the evicted messages of the shared subscriptions, given back without the lock
+    private long polled = 0; //the number of messages that left the ring, the position of the head
+    private int head = 0;
+    private int count = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final SlowConsumerPolicy limits;
+    private long bytes = 0;
+    private boolean draining = false; //true while a writer owns the queue
+    private boolean closing = false; //true once the last messages before a disconnect were queued
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     * @param limits - the limits of the queue and the policy when they are reached
+     */
+    OutboundQueue(SlowConsumerPolicy limits)
+    {
+        this.limits = limits;
+    }
+
+    /**
+     * A method that add an encoded message to the queue
+     * @param message - the encoded message
+     * @param publishedAt - the System.nanoTime the message was published at, 0 if it is not a published message
+     * @param mayWait - false if the caller must never wait for a full queue
+     *                (an event loop thread may be the writer of the queue), the BLOCK policy then drops the message
+     * @return the result of the offer
+     */
+    OfferResult offer(ByteBuffer message, long publishedAt, boolean mayWait)
+    {
+        return offer(message, publishedAt, mayWait, null);
+    }
+
+    /**
+     * A method that add an encoded message to the queue, or replace the waiting message with the same conflation key,
+     * a replacing message never waits and is never dropped, since the queue does not grow
+     * @param message - the encoded message
+     * @param publishedAt - the System.nanoTime the message was published at, 0 if it is not a published message
+     * @param mayWait - false if the caller must never wait for a full queue
+     *                (an event loop thread may be the writer of the queue), the BLOCK policy then drops the message
+     * @param conflationKey - the key of a message of a conflated topic, null to add the message after the waiting ones
+     * @return the result of the offer
+     */
+    OfferResult offer(ByteBuffer message, long publishedAt, boolean mayWait, String conflationKey)
+    {
+        return offer(message, publishedAt, mayWait, conflationKey, null);
+    }
+
+    /**
+     * A method that add an encoded message to the queue, that a shared subscription dispatched to the client
+     * @param message - the encoded message
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param mayWait - false if the caller must never wait for a full queue
+     * @param conflationKey - the key of a message of a conflated topic, null to add the message after the waiting ones
+     * @param dispatch - the dispatch of the message by a shared subscription, null if none
+     * @return the result of the offer
+     */
+    OfferResult offer(ByteBuffer message, long publishedAt, boolean mayWait, String conflationKey, SharedSubscription.Dispatch dispatch)
+    {
+        OfferResult result;
+        List<SharedSubscription.Dispatch> givenBack;
+        lock.lock();
+        try {
+            result = enqueue(message, publishedAt, mayWait, conflationKey, dispatch);
+            givenBack = evicted;
+            evicted = null;
+        } finally {
+            lock.unlock();
+        }
+        //the evicted messages are queued for other clients, so they are given back after the lock of this queue was released
+        if (givenBack != null) {
+            for (SharedSubscription.Dispatch evictedDispatch : givenBack) {
+                evictedDispatch.evicted();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A method that add an encoded message to the queue and apply the policy when it is full, must be called while holding the lock
+     * @param message - the encoded message
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param mayWait - false if the caller must never wait for a full queue
+     * @param conflationKey - the key of a message of a conflated topic, null to add the message after the waiting ones
+     * @param dispatch - the dispatch of the message by a shared subscription, null if none
+     * @return the result of the offer
+     */
+    private OfferResult enqueue(ByteBuffer message, long publishedAt, boolean mayWait, String conflationKey, SharedSubscription.Dispatch dispatch)
+    {
+        int size = message.remaining();
+        if (closing || closed) {
+            return OfferResult.REJECTED;
+        }
+        if (conflationKey != null && replace(conflationKey, message, publishedAt)) {
+            limits.conflatedMessages.increment();
+            //the replaced message was waiting, so a writer already drains the queue
+            return OfferResult.QUEUED;
+        }
+        if (isFull(size)) {
+            switch (limits.policy) {
+                case BLOCK:
+                    if (!mayWait) {
+                        limits.droppedNewest.increment();
+                        done(dispatch);
+                        return OfferResult.REJECTED;
+                    }
+                    limits.blockedPublishes.increment();
+                    while (isFull(size) && !closing && !closed) {
+                        notFull.awaitUninterruptibly();
+                    }
+                    if (closing || closed) {
+                        return OfferResult.REJECTED;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    if (dispatch != null && dispatch.redispatched) {
+                        //a message evicted from another member does not evict messages in turn, it is dropped
+                        limits.droppedNewest.increment();
+                        dispatch.done();
+                        return OfferResult.REJECTED;
+                    }
+                    while (isFull(size)) {
+                        SharedSubscription.Dispatch oldest = dispatches[head];
+                        dispatches[head] = null;
+                        bytes -= poll().remaining();
+                        if (oldest != null) {
+                            //the message of a shared subscription goes back to its group instead of being dropped
+                            if (evicted == null) {
+                                evicted = new ArrayList<>();
+                            }
+                            evicted.add(oldest);
+                        } else {
+                            limits.droppedOldest.increment();
+                        }
+                    }
+                    break;
+                case DROP_NEWEST:
+                    limits.droppedNewest.increment();
+                    done(dispatch);
+                    return OfferResult.REJECTED;
+                case DISCONNECT:
+                    limits.disconnectedClients.increment();
+                    return OfferResult.DISCONNECT;
+            }
+        }
+        add(message, publishedAt, conflationKey, dispatch);
+        bytes += size;
+        return claimWriter();
+    }
+
+    /**
+     * A method that replace all the waiting messages with the last messages to the client before a disconnect,
+     * further messages are rejected, and the writer closes the connection once the queue is drained
+     * @param lastMessages - the encoded last messages
+     * @return SCHEDULE_WRITER if the caller must schedule a writer, QUEUED otherwise
+     */
+    OfferResult closeWith(ByteBuffer... lastMessages)
+    {
+        lock.lock();
+        try {
+            clear();
+            if (closed) {
+                return OfferResult.QUEUED;
+            }
+            for (ByteBuffer message : lastMessages) {
+                add(message, 0, null, null);
+                bytes += message.remaining();
+            }
+            closing = true;
+            notFull.signalAll();
+            return claimWriter();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that move the pending messages into the given batch,
+     * when the queue is empty the writer gives up the queue, and the next offer schedules a new writer
+     * @param batch - the array to fill
+     * @param batchPublishedNanos - the array to fill with the times the messages were published at
+     * @return the number of messages in the batch, 0 if the queue was empty
+     */
+    int drain(ByteBuffer[] batch, long[] batchPublishedNanos)
+    {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < batch.length && count > 0) {
+                batchPublishedNanos[drained] = publishedNanos[head];
+                ByteBuffer message = poll();
+                bytes -= message.remaining();
+                batch[drained++] = message;
+            }
+            if (drained == 0) {
+                draining = false;
+            } else {
+                notFull.signalAll();
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that checks if the writer must close the connection after the queue was drained
+     * @return true if the last messages before a disconnect were queued
+     */
+    boolean isClosing()
+    {
+        lock.lock();
+        try {
+            return closing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that retrieve the number of messages waiting in the queue
+     * @return the number of the waiting messages
+     */
+    int size()
+    {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that close the queue, the waiting messages are discarded and the blocked publishers are released
+     */
+    void close()
+    {
+        lock.lock();
+        try {
+            closed = true;
+            clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that checks if a message does not fit in the limits of the queue,
+     * a message always fits in an empty queue, so a single large message is never rejected
+     * @param size - the size of the message in bytes
+     * @return true if the queue is full
+     */
+    private boolean isFull(int size)
+    {
+        return count > 0 && (count >= limits.maxMessages || bytes + size > limits.maxBytes);
+    }
+
+    /**
+     * A method that end the flight of a message a shared subscription dispatched, when the message is dropped
+     * @param dispatch - the dispatch of the message, may be null
+     */
+    private static void done(SharedSubscription.Dispatch dispatch)
+    {
+        if (dispatch != null) {
+            dispatch.done();
+        }
+    }
+
+    /**
+     * A method that replace the waiting message with the given conflation key, in its place in the ring
+     * @param key - the conflation key
+     * @param message - the newer encoded message
+     * @param publishedAt - the time the newer message was published at
+     * @return true if a message with the key was waiting and was replaced
+     */
+    private boolean replace(String key, ByteBuffer message, long publishedAt)
+    {
+        Long position = positions != null ? positions.get(key) : null;
+        if (position == null) {
+            return false;
+        }
+        int index = (int) ((head + position - polled) & (messages.length - 1));
+        bytes += message.remaining() - messages[index].remaining();
+        messages[index] = message;
+        publishedNanos[index] = publishedAt;
+        return true;
+    }
+
+    /**
+     * A method that add a message to the tail of the ring, the ring grows when it is full
+     * @param message - the encoded message
+     * @param publishedAt - the time the message was published at
+     * @param key - the conflation key of the message, null if it is not conflated
+     * @param dispatch - the dispatch of the message by a shared subscription, null if none
+     */
+    private void add(ByteBuffer message, long publishedAt, String key, SharedSubscription.Dispatch dispatch)
+    {
+        if (count == messages.length) {
+            ByteBuffer[] grown = new ByteBuffer[messages.length * 2];
+            long[] grownNanos = new long[messages.length * 2];
+            String[] grownKeys = new String[messages.length * 2];
+            SharedSubscription.Dispatch[] grownDispatches = new SharedSubscription.Dispatch[messages.length * 2];
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) & (messages.length - 1);
+                grown[i] = messages[index];
+                grownNanos[i] = publishedNanos[index];
+                grownKeys[i] = keys[index];
+                grownDispatches[i] = dispatches[index];
+            }
+            messages = grown;
+            publishedNanos = grownNanos;
+            keys = grownKeys;
+            dispatches = grownDispatches;
+            head = 0;
+        }
+        int tail = (head + count) & (messages.length - 1);
+        messages[tail] = message;
+        publishedNanos[tail] = publishedAt;
+        keys[tail] = key;
+        dispatches[tail] = dispatch;
+        if (key != null) {
+            if (positions == null) {
+                positions = new HashMap<>();
+            }
+            positions.put(key, polled + count);
+        }
+        count++;
+    }
+
+    /**
+     * A method that remove the message at the head of the ring
+     * @return the oldest waiting message
+     */
+    private ByteBuffer poll()
+    {
+        ByteBuffer message = messages[head];
+        messages[head] = null;
+        if (keys[head] != null) {
+            positions.remove(keys[head]);
+            keys[head] = null;
+        }
+        if (dispatches[head] != null) {
+            dispatches[head].done();
+            dispatches[head] = null;
+        }
+        head = (head + 1) & (messages.length - 1);
+        count--;
+        polled++;
+        return message;
+    }
+
+    /**
+     * A method that discard all the waiting messages
+     */
+    private void clear()
+    {
+        Arrays.fill(messages, null);
+        Arrays.fill(keys, null);
+        //the messages of the shared subscriptions stay in flight, so they are dispatched to the other members of their groups
+        Arrays.fill(dispatches, null);
+        if (positions != null) {
+            positions.clear();
+        }
+        polled += count;
+        head = 0;
+        count = 0;
+        bytes = 0;
+    }
+
+    /**
+     * A method that make the caller the writer of the queue, if no writer drains it
+     * @return SCHEDULE_WRITER if the caller must schedule a writer, QUEUED otherwise
+     */
+    private OfferResult claimWriter()
+    {
+        if (draining) {
+            return OfferResult.QUEUED;
+        }
+        draining = true;
+        return OfferResult.SCHEDULE_WRITER;
+    }
+}
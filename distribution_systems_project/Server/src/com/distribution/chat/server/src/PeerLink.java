@@ -0,0 +1,369 @@
+package com.distribution.chat.server.src;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.distribution.chat.server.src.Server.writeToLog;
+
+/**
+ * A class represented a federation link with a peer server,
+ * the link is a connection of the broker that subscribes to the filters of the servers behind it,
+ * so a published message crosses the link once, no matter how many remote clients match it,
+ * the frames on the link use the framing of the binary protocol, with the federation opcodes
+ */
+public class PeerLink implements Runnable, ClientConnection {
+
+    //federation opcodes
+    static final byte HELLO = 0x20; //meta - the id of the server
+    static final byte INTEREST = 0x21; //meta - "origin version present", topic - the filter
+    static final byte FORWARD = 0x22; //meta - "origin messageId hops textual sender time", topic, payload - the content
+    static final byte REACH = 0x23; //meta - "origin epoch", the server is reachable through the link,
+                                    //payload - the servers behind the peer, when it routes to the origin through the link
+
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int WRITE_BATCH_SIZE = 256;
+    private static final byte[] EMPTY = new byte[0];
+
+    final Socket socket;
+    final boolean initiator; //true if this server connected to the peer
+    volatile String peerId;
+    private final Federation federation;
+    private final OutputStream outputStream;
+    private final OutboundQueue outbound;
+    private final Executor writerExecutor;
+    private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE]; //used only by the current writer
+    private final long[] writeBatchPublishedNanos = new long[WRITE_BATCH_SIZE];
+    private byte[] writeBuffer = new byte[READ_BUFFER_SIZE];
+    private final String name;
+
+    /**
+     * Constructor
+     * @param socket - the connected socket of the link
+     * @param initiator - true if this server connected to the peer
+     * @param federation - the federation of this server
+     * @param writerExecutor - the executor that runs the writer of the outbound queue
+     */
+    PeerLink(Socket socket, boolean initiator, Federation federation, Executor writerExecutor) throws IOException
+    {
+        this.socket = socket;
+        this.initiator = initiator;
+        this.federation = federation;
+        this.outbound = federation.broker.newOutboundQueue();
+        this.writerExecutor = writerExecutor;
+        this.outputStream = socket.getOutputStream();
+        this.name = "peer " + socket.getInetAddress() + ":" + socket.getPort();
+    }
+
+    /**
+     * A method that the task will run when starts
+     * This method introduces this server to the peer, and then process the frames of the peer until the link is closed
+     */
+    @Override
+    public void run()
+    {
+        send(frame(HELLO, federation.serverId, "", EMPTY));
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE))) {
+            byte[] frame = new byte[READ_BUFFER_SIZE];
+            while (!socket.isClosed()) {
+                try {
+                    in.readFully(frame, 0, BinaryProtocol.HEADER_SIZE);
+                } catch (EOFException e) {
+                    return; //the peer closed the link
+                }
+                int frameSize = BinaryProtocol.frameSize(frame, 0);
+                if (frameSize < 0) {
+                    throw new IOException("Frame payload is larger than " + BinaryProtocol.MAX_PAYLOAD_SIZE + " bytes");
+                }
+                if (frame.length < frameSize) {
+                    frame = Arrays.copyOf(frame, frameSize);
+                }
+                in.readFully(frame, BinaryProtocol.HEADER_SIZE, frameSize - BinaryProtocol.HEADER_SIZE);
+                if (!process(frame, frameSize)) {
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), "the federation link was interrupted - " + this);
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+        } finally {
+            federation.onLinkDown(this);
+            closeSocket();
+        }
+    }
+
+    /**
+     * A method that process a single frame from the peer
+     * @param frame - an array that holds the frame
+     * @param frameSize - the size of the frame
+     * @return false if the link must be closed
+     */
+    private boolean process(byte[] frame, int frameSize)
+    {
+        String[] meta = meta(frame);
+        switch (frame[0]) {
+            case HELLO:
+                return federation.onHello(this, meta[0]);
+            case INTEREST:
+                federation.onInterest(this, meta[0], Long.parseLong(meta[1]), "1".equals(meta[2]), BinaryProtocol.topic(frame, 0));
+                return true;
+            case FORWARD:
+                //the sender may not hold a space, the time is the rest of the meta
+                Delivery delivery = new Delivery(BinaryProtocol.topic(frame, 0), meta[4], meta[5],
+                        BinaryProtocol.payload(frame, 0, frameSize), "1".equals(meta[3]));
+                delivery.origin = meta[0];
+                delivery.messageId = Long.parseLong(meta[1]);
+                delivery.hops = Integer.parseInt(meta[2]) + 1;
+                federation.onForward(this, delivery);
+                return true;
+            case REACH:
+                byte[] behind = BinaryProtocol.payload(frame, 0, frameSize);
+                federation.onReach(this, meta[0], Long.parseLong(meta[1]),
+                        behind.length == 0 ? null : new HashSet<>(Arrays.asList(new String(behind, StandardCharsets.UTF_8).split(" "))));
+                return true;
+            default:
+                writeToLog(Server.LOG_LEVEL.ERROR.toString(), "Unknown federation opcode " + frame[0] + " from " + this);
+                return true;
+        }
+    }
+
+    /**
+     * A method that send the interest of a server in a filter to the peer
+     * @param origin - the id of the server that has the interest
+     * @param version - the version of the interest
+     * @param present - true if the server has clients that registered to the filter
+     * @param filter - the topic filter
+     */
+    void sendInterest(String origin, long version, boolean present, String filter)
+    {
+        send(frame(INTEREST, origin + " " + version + " " + (present ? "1" : "0"), filter, EMPTY));
+    }
+
+    /**
+     * A method that send the reachability of a server to the peer
+     * @param origin - the id of the reachable server
+     * @param epoch - the epoch of the reachability
+     */
+    void sendReach(String origin, long epoch)
+    {
+        send(frame(REACH, origin + " " + epoch, "", EMPTY));
+    }
+
+    /**
+     * A method that tell the peer this server routes to a server through it, and which servers are behind this server
+     * @param origin - the id of the reachable server
+     * @param epoch - the epoch of the reachability
+     * @param behind - the servers behind this server in the tree of the reachable server, this server included
+     */
+    void sendBehind(String origin, long epoch, Set<String> behind)
+    {
+        send(frame(REACH, origin + " " + epoch, "", String.join(" ", behind).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * A method that send an encoded frame to the peer, through the outbound queue of the link
+     * @param message - the encoded frame
+     * @param publishedAt - the System.nanoTime the message was published at, 0 if it is not a published message
+     */
+    @Override
+    public void send(ByteBuffer message, long publishedAt)
+    {
+        if (!message.hasRemaining()) {
+            return; //the replies of the broker to a client mean nothing to a peer
+        }
+        switch (outbound.offer(message, publishedAt, true)) {
+            case SCHEDULE_WRITER:
+                try {
+                    writerExecutor.execute(this::drainOutbound);
+                } catch (RejectedExecutionException e) {
+                    drainOutbound();
+                }
+                break;
+            case DISCONNECT:
+                writeToLog(Server.LOG_LEVEL.ERROR.toString(), "The federation link is too slow, disconnecting - " + this);
+                closeSocket();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * A method that write the outbound queue to the peer until it is empty, a batch at a time
+     */
+    private void drainOutbound()
+    {
+        int count;
+        while ((count = outbound.drain(writeBatch, writeBatchPublishedNanos)) > 0) {
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                length += writeBatch[i].remaining();
+            }
+            if (writeBuffer.length < length) {
+                writeBuffer = new byte[Math.max(length, writeBuffer.length * 2)];
+            }
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                ByteBuffer message = writeBatch[i];
+                int remaining = message.remaining();
+                message.get(message.position(), writeBuffer, position, remaining);
+                position += remaining;
+                writeBatch[i] = null;
+            }
+            try {
+                outputStream.write(writeBuffer, 0, length);
+                outputStream.flush();
+            } catch (IOException e) {
+                writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error occurred while sending to " + this);
+                closeSocket();
+            }
+        }
+    }
+
+    @Override
+    public int getOutboundDepth()
+    {
+        return outbound.size();
+    }
+
+    @Override
+    public WireProtocol getProtocol()
+    {
+        return Protocol.INSTANCE;
+    }
+
+    @Override
+    public void setProtocol(WireProtocol protocol)
+    {
+        //a link always speaks the federation protocol
+    }
+
+    @Override
+    public String getIpPort()
+    {
+        return socket.getInetAddress() + ":" + socket.getPort();
+    }
+
+    /**
+     * A method that close the link, the reading task then ends and the federation forgets the link
+     */
+    @Override
+    public void shutdown()
+    {
+        closeSocket();
+    }
+
+    private void closeSocket()
+    {
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            writeToLog(Server.LOG_LEVEL.FATAL.toString(), "Error while try to close " + this);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return peerId == null ? name : name + " (" + peerId + ")";
+    }
+
+    /**
+     * A method that decode the meta of a frame into its fields, the last field takes the rest of the meta
+     * @param frame - an array that holds the frame
+     * @return the fields of the meta
+     */
+    private static String[] meta(byte[] frame)
+    {
+        String meta = new String(frame, BinaryProtocol.HEADER_SIZE, frame[1] & 0xFF, StandardCharsets.UTF_8);
+        return meta.split(" ", 6);
+    }
+
+    private static ByteBuffer frame(byte opcode, String meta, String topic, byte[] payload)
+    {
+        return BinaryProtocol.frame(opcode, meta.getBytes(StandardCharsets.UTF_8), topic.getBytes(StandardCharsets.UTF_8), payload);
+    }
+
+    /**
+     * A class represented the encoding of the broker messages for a federation link,
+     * only the published messages are forwarded, the replies of the broker are encoded as nothing
+     */
+    static final class Protocol implements WireProtocol {
+
+        static final Protocol INSTANCE = new Protocol();
+        private static final ByteBuffer NOTHING = ByteBuffer.allocate(0);
+
+        @Override
+        public ByteBuffer ok()
+        {
+            return NOTHING.duplicate();
+        }
+
+        @Override
+        public ByteBuffer error()
+        {
+            return NOTHING.duplicate();
+        }
+
+        @Override
+        public ByteBuffer error(String reason)
+        {
+            return NOTHING.duplicate();
+        }
+
+        @Override
+        public ByteBuffer close()
+        {
+            return NOTHING.duplicate();
+        }
+
+        @Override
+        public ByteBuffer topics(Collection<String> topics)
+        {
+            return NOTHING.duplicate();
+        }
+
+        @Override
+        public ByteBuffer stats(String report)
+        {
+            return NOTHING.duplicate();
+        }
+
+        /**
+         * A method that encode a published message with its origin server, its id and the number of links it crossed
+         * @param delivery - the published message
+         * @return the encoded frame
+         */
+        @Override
+        public ByteBuffer deliver(Delivery delivery)
+        {
+            String meta = delivery.origin + " " + delivery.messageId + " " + delivery.hops + " "
+                    + (delivery.isTextual() ? "1" : "0") + " " + delivery.sender + " " + delivery.time;
+            return frame(FORWARD, meta, delivery.topic, delivery.getPayload());
+        }
+
+        @Override
+        public WireProtocol withSequences()
+        {
+            return this;
+        }
+
+        @Override
+        public ByteBuffer tag(long requestId, ByteBuffer reply)
+        {
+            return reply;
+        }
+    }
+}
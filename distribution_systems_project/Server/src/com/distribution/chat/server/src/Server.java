@@ -21,14 +21,15 @@ import static java.net.NetworkInterface.getNetworkInterfaces;
 public class Server {
 
     /**
-     * A set that hold all  the handle clients threads
+     * The broker the Server app starts and stops, it keeps its topics from one start to the next
      */
-    static Set<HandleClientThread> handleClients = new HashSet<>();
-    private static File logger;
-    private static boolean connected = false;
-    private static ServerSocket serverSocket = null;
-    private static ServerListener listener = null;
-    private static InetAddress chosenIp = null;
+    private static final EmbeddedBroker embeddedBroker = new EmbeddedBroker();
+    /**
+     * The formatters of the time stamps, a DateTimeFormatter is immutable and thread-safe, so a single instance is shared
+     */
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static volatile AsyncLogWriter logWriter = null;
 
     /**
      * An enum that contains message token types
@@ -58,8 +59,19 @@ public class Server {
         Properties config = new Properties();//object to load the properties file
 
         try {
-            //Create or open logger file
-            logger = new File("ChatLog.log");
+            //Create or open logger file, with the log settings of the configuration file (if exists)
+            Properties logConfig = new Properties();
+            try (FileInputStream in = new FileInputStream(System.getProperty("user.dir") + "/server-config.properties")) {
+                logConfig.load(in);
+            } catch (IOException e) {
+                //the missing configuration file is reported when the server starts listening
+            }
+            try {
+                initLogWriter(new File("ChatLog.log"), logConfig);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid log settings in the configuration file, using the default log settings");
+                initLogWriter(new File("ChatLog.log"), new Properties());
+            }
 
             //show menu
             showMenu();
@@ -74,20 +86,21 @@ public class Server {
                         break;
                     case "2":
                     case "STOP":
-                        if (connected) {
-                            stopConnections();
+                        if (embeddedBroker.isRunning()) {
+                            embeddedBroker.stop();
                         } else {
                             System.out.println("You are not connected yet");
                         }
                         break;
                     case "3":
                     case "QUIT":
-                        if (connected)// close connections first
+                        if (embeddedBroker.isRunning())// close connections first
                         {
-                            stopConnections();
+                            embeddedBroker.stop();
                         }
                         System.out.println("Server app will close now, GoodBye!");
                         writeToLog(LOG_LEVEL.INFO.toString(), "Server app closed");// write to log
+                        logWriter.shutdown();// write the queued log records before exit
                         System.exit(0);
                         break;
                     default:
@@ -139,7 +152,7 @@ public class Server {
      * @param config - properties file object
      */
     private static void startConnection(Properties config) {
-        if (!connected) {
+        if (!embeddedBroker.isRunning()) {
             try {
                 config.load(new FileInputStream(System.getProperty("user.dir") + "/server-config.properties"));
             } catch (IOException e) {
@@ -164,21 +177,33 @@ public class Server {
                 return;
             }
 
-            while (!connected) {
-                chosenIp = printInetAddresses();
+            try {
+                embeddedBroker.configure(config);
+            } catch (IllegalArgumentException e) {
+                System.out.println("\nThe settings are not valid - " + e.getMessage() + "!");
+                System.out.println("Please modify the settings in the configuration file, and try to connect again");
+                return;
+            }
+
+            while (!embeddedBroker.isRunning()) {
+                InetAddress chosenIp = printInetAddresses();
                 try {
-                    serverSocket = new ServerSocket(port, 10, chosenIp);
-                    connected = true;
+                    embeddedBroker.start(chosenIp);
                 }
-                catch (IOException e) {
+                catch (BindException e) {
                     System.out.println("Connection Error - can not listen on ip - " + chosenIp);
                 }
+                catch (IllegalArgumentException e) {
+                    System.out.println("\nThe settings are not valid - " + e.getMessage() + "!");
+                    System.out.println("Please modify the settings in the configuration file, and try to connect again");
+                    return;
+                }
+                catch (IOException e) {
+                    System.out.println("\nError while starting the server - " + e.getMessage());
+                    writeToLog(LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
+                    return;
+                }
             }
-            listener = new ServerListener(serverSocket);
-            listener.start();
-            System.out.println("[" + getCurrentDateTimeStamp() + "] " + "Server start listening to " + chosenIp + " on port " + port);
-            //write to log
-            writeToLog(LOG_LEVEL.INFO.toString(), "Server start listening to " + chosenIp + " on port " + port);
         } else {
             System.out.println("You are already listening");
         }
@@ -233,7 +258,8 @@ public class Server {
     }
 
     /**
-     * A method that parse a raw message from the client
+     * A method that parse a raw message from the client into strings,
+     * the connections parse their bytes in place with the CommandParser, this method remains for callers that hold a string
      * @param message - raw message from the client
      * @return A table contains parsed message
      */
@@ -266,29 +292,6 @@ public class Server {
         return table;
     }
 
-    /**
-     * A method that stop the connections with the clients
-     */
-    private synchronized static void stopConnections() {
-        try {
-            for (HandleClientThread hc : handleClients) {
-                PrintWriter pw = new PrintWriter(hc.clientSocket.getOutputStream());
-                pw.write("CLOSE\n");
-                pw.flush();
-                hc.stop = true;
-                System.out.println("[" + getCurrentDateTimeStamp() + "] Connection closed with socket " + hc.clientSocket);
-                writeToLog(LOG_LEVEL.INFO.toString(), "Connection closed with socket " + hc.clientSocket);// write to log
-            }
-            handleClients.clear();
-            listener.stop = true;
-            serverSocket.close();
-            connected = false;
-            System.out.println("[" + getCurrentDateTimeStamp() + "]" + "Server stop listening to ip " + serverSocket.getInetAddress() + " on port " + serverSocket.getLocalPort());
-        } catch (IOException e) {
-            writeToLog(LOG_LEVEL.FATAL.toString(), HandleClientThread.getStackTraceAsString(e));
-        }
-    }
-
     /**
      * A method that checks if port is in use
      * @param port - the given port to check
@@ -311,7 +314,7 @@ public class Server {
      * @return A string of the current time
      */
     static String getCurrentTimeStamp() {
-        return LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+        return LocalTime.now().format(TIME_FORMATTER);
     }
 
     /**
@@ -319,22 +322,53 @@ public class Server {
      * @return A string of the current date and time
      */
     static String getCurrentDateTimeStamp() {
-        LocalDateTime now = LocalDateTime.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        return now.format(formatter);
+        return LocalDateTime.now().format(DATE_TIME_FORMATTER);
+    }
+
+    /**
+     * A method that create and start the log writer
+     * @param file - the log file
+     * @param config - properties file object with the log settings
+     */
+    static void initLogWriter(File file, Properties config) {
+        AsyncLogWriter writer = new AsyncLogWriter(file, config);
+        writer.start();
+        logWriter = writer;
     }
 
     /**
-     * A method that write a line to the log file
+     * A method that retrieve the log writer, a writer with the default settings is created if none was initialized
+     * @return the log writer
+     */
+    private static AsyncLogWriter getLogWriter() {
+        AsyncLogWriter writer = logWriter;
+        if (writer == null) {
+            synchronized (Server.class) {
+                if (logWriter == null) {
+                    initLogWriter(new File("ChatLog.log"), new Properties());
+                }
+                writer = logWriter;
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * A method that write a line to the log file,
+     * the line is queued and written by the log writer thread
      * @param TAG  - the level of the log
      * @param line - content to write to the log
      */
     static void writeToLog(String TAG, String line) {
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(logger, true))) {
-            bw.write("[" + getCurrentDateTimeStamp() + "] " + TAG + " - " + line + "\n");
-            bw.newLine();
-        } catch (IOException e) {
-            System.out.println("Error while writing to log");
-        }
+        getLogWriter().log(TAG, line);
+    }
+
+    /**
+     * A method that print a line with the current date and time on the server console,
+     * the line is queued and printed by the log writer thread according to the console mode
+     * @param line - content to print on the console
+     */
+    static void printToConsole(String line) {
+        getLogWriter().console(line);
     }
 }
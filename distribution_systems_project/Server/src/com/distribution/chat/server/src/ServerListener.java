@@ -4,29 +4,37 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
 
 import static com.distribution.chat.server.src.Server.writeToLog;
 
 /**
- * A class represented a thread that listen for new connections with clients,
- * in order to release the ui main thread to interact with the user
+ * A class represented a task that listen for new connections with clients,
+ * in order to release the ui main thread to interact with the user,
+ * every accepted client is handled by a task submitted to the connections executor
  */
-public class ServerListener extends Thread {
+public class ServerListener implements Runnable {
 
     private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private final Broker broker;
     public volatile boolean stop;
 
     /**
      * Constructor
      * @param serverSocket
+     * @param executor - the executor that runs the handle client tasks
+     * @param broker - the broker that process the messages of the clients
      */
-    ServerListener(ServerSocket serverSocket) {
+    ServerListener(ServerSocket serverSocket, ExecutorService executor, Broker broker) {
         this.stop = false;
         this.serverSocket = serverSocket;
+        this.executor = executor;
+        this.broker = broker;
     }
 
     /**
-     * A method that the thread will run when starts
+     * A method that the task will run when starts
      * This method waits for new connections with clients
      */
     @Override
@@ -35,9 +43,9 @@ public class ServerListener extends Thread {
             while (!stop) {
                 if (!stop && serverSocket != null && !serverSocket.isClosed()) {
                     Socket clientSocket = serverSocket.accept();
-                    HandleClientThread hc = new HandleClientThread(clientSocket);
-                    hc.start();
-                    Server.handleClients.add(hc);
+                    HandleClientThread hc = new HandleClientThread(clientSocket, executor, broker);
+                    broker.handleClients.add(hc);
+                    executor.execute(hc);
                 }
             }
         }
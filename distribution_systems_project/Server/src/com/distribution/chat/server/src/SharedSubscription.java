@@ -0,0 +1,295 @@
+package com.distribution.chat.server.src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A class represented a shared subscription, "$share/group/filter", the clients that registered to it are the members of a group
+ * that share the messages of the filter between them, every message goes to a single member of the group,
+ * chosen in turn or by the fewest messages in flight (dispatched to the member and not written to it yet),
+ * the messages in flight to a member that disconnects are dispatched again to the other members,
+ * the messages in flight to a member that leaves are still written to it,
+ * and so is a message the DROP_OLDEST policy evicted from the queue of a member, once, to a member other than the one that evicted it
+ */
+public class SharedSubscription {
+
+    /**
+     * The prefix of the name of a shared subscription
+     */
+    static final String PREFIX = "$share/";
+
+    /**
+     * An enum that contains the ways to choose the member that gets a message
+     */
+    enum Strategy {
+        ROUND_ROBIN, //the members in turn
+        LEAST_OUTSTANDING //the member with the fewest messages in flight, in turn between equals
+    }
+
+    final String name; //the name the clients registered to, "$share/group/filter"
+    final String filter; //the topic filter the group shares
+    //guards the members, so no message is dispatched to a member once it was removed
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Member[] members = new Member[0]; //replaced on every change
+    private long turn = 0; //the count of the dispatched messages, the turn of the next member, guarded by the lock
+    private final Consumer<Dispatch> redispatcher; //dispatches a message the slow consumer policy evicted to another member
+
+    private SharedSubscription(String name, String filter, Consumer<Dispatch> redispatcher)
+    {
+        this.name = name;
+        this.filter = filter;
+        this.redispatcher = redispatcher;
+    }
+
+    /**
+     * A method that checks if the name of a subscription is a shared subscription
+     * @param subscription - the topic filter of a REGISTER
+     * @return true if the name starts with "$share/"
+     */
+    static boolean isShared(String subscription)
+    {
+        return subscription != null && subscription.startsWith(PREFIX);
+    }
+
+    /**
+     * A method that create a shared subscription of the given name
+     * @param name - "$share/group/filter", the group is a single level without wildcards
+     * @param redispatcher - dispatches a message the slow consumer policy evicted from the queue of a member to another member
+     * @return the shared subscription without members, or null if the name is not valid
+     */
+    static SharedSubscription parse(String name, Consumer<Dispatch> redispatcher)
+    {
+        if (!isShared(name)) {
+            return null;
+        }
+        int groupEnd = name.indexOf(TopicRegistry.LEVEL_SEPARATOR, PREFIX.length());
+        if (groupEnd <= PREFIX.length()) {
+            return null;
+        }
+        String group = name.substring(PREFIX.length(), groupEnd);
+        String filter = name.substring(groupEnd + 1);
+        if (TopicRegistry.hasWildcard(group) || !TopicRegistry.isValidFilter(filter)) {
+            return null;
+        }
+        return new SharedSubscription(name, filter, redispatcher);
+    }
+
+    /**
+     * A method that retrieve the topic filter of a subscription, in order to tell the federation about it
+     * @param subscription - the topic filter of a REGISTER
+     * @return the filter the group shares for a shared subscription, or the subscription itself
+     */
+    static String filterOf(String subscription)
+    {
+        if (!isShared(subscription)) {
+            return subscription;
+        }
+        int groupEnd = subscription.indexOf(TopicRegistry.LEVEL_SEPARATOR, PREFIX.length());
+        return groupEnd < 0 ? subscription : subscription.substring(groupEnd + 1);
+    }
+
+    /**
+     * A method that add a client to the group
+     * @param client - instance of the client connection
+     */
+    void addMember(ClientConnection client)
+    {
+        lock.lock();
+        try {
+            Member[] current = members;
+            Member[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = new Member(client);
+            members = grown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method that remove a client from the group, no message is dispatched to it afterwards
+     * @param client - instance of the client connection
+     * @param takeInFlight - true if the queue of the client dropped the messages in flight to it (the client disconnected),
+     *                     false if they are still written to it (the client left)
+     * @return the messages in flight to the client, in the order they were dispatched, to be dispatched to the other members,
+     * empty if the messages in flight are not taken
+     */
+    List<Dispatch> removeMember(ClientConnection client, boolean takeInFlight)
+    {
+        Member removed = null;
+        lock.lock();
+        try {
+            Member[] current = members;
+            List<Member> remaining = new ArrayList<>(current.length);
+            for (Member member : current) {
+                if (member.client == client) {
+                    removed = member;
+                } else {
+                    remaining.add(member);
+                }
+            }
+            members = remaining.toArray(new Member[0]);
+        } finally {
+            lock.unlock();
+        }
+        if (removed == null || !takeInFlight) {
+            return new ArrayList<>();
+        }
+        List<Dispatch> inFlight = new ArrayList<>(removed.inFlight);
+        removed.inFlight.clear();
+        inFlight.sort(Comparator.comparingLong(dispatch -> dispatch.order));
+        return inFlight;
+    }
+
+    /**
+     * A method that checks if the group has no members
+     * @return true if the last member left
+     */
+    boolean isEmpty()
+    {
+        return members.length == 0;
+    }
+
+    /**
+     * A method that choose the member that gets a message, and count the message in flight to it
+     * @param delivery - the published message
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param strategy - the way to choose the member
+     * @return the dispatch of the message to the chosen member, or null if the group has no members
+     */
+    Dispatch dispatch(Delivery delivery, long publishedAt, Strategy strategy)
+    {
+        return dispatch(delivery, publishedAt, strategy, null);
+    }
+
+    /**
+     * A method that choose the member that gets a message again, after the slow consumer policy of a member evicted it
+     * @param evicted - the dispatch of the evicted message
+     * @param strategy - the way to choose the member
+     * @return the dispatch of the message to another member, or null if the group has no other member
+     */
+    Dispatch redispatch(Dispatch evicted, Strategy strategy)
+    {
+        return dispatch(evicted.delivery, evicted.publishedAt, strategy, evicted.member);
+    }
+
+    /**
+     * A method that choose the member that gets a message, other than the excluded member, and count the message in flight to it
+     * @param delivery - the published message
+     * @param publishedAt - the System.nanoTime the message was published at
+     * @param strategy - the way to choose the member
+     * @param excluded - the member that evicted the message, null for a new message
+     * @return the dispatch of the message to the chosen member, or null if the group has no other members
+     */
+    private Dispatch dispatch(Delivery delivery, long publishedAt, Strategy strategy, Member excluded)
+    {
+        lock.lock();
+        try {
+            Member[] current = members;
+            if (current.length == 0) {
+                return null;
+            }
+            long order = turn++;
+            int start = (int) (order % current.length);
+            Member chosen = null;
+            int fewest = Integer.MAX_VALUE;
+            //the scan starts at the member in turn, so the members with equal counts take turns
+            for (int i = 0; i < current.length; i++) {
+                Member member = current[(start + i) % current.length];
+                if (member == excluded) {
+                    continue;
+                }
+                if (strategy == Strategy.ROUND_ROBIN) {
+                    chosen = member;
+                    break;
+                }
+                int outstanding = member.inFlight.size();
+                if (outstanding < fewest) {
+                    chosen = member;
+                    fewest = outstanding;
+                    if (fewest == 0) {
+                        break;
+                    }
+                }
+            }
+            if (chosen == null) {
+                return null;
+            }
+            Dispatch dispatch = new Dispatch(this, chosen, delivery, publishedAt, order, excluded != null);
+            chosen.inFlight.add(dispatch);
+            return dispatch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    /**
+     * A class represented a member of the group, and the messages in flight to it
+     */
+    static final class Member {
+
+        final ClientConnection client;
+        final Set<Dispatch> inFlight = ConcurrentHashMap.newKeySet();
+
+        private Member(ClientConnection client)
+        {
+            this.client = client;
+        }
+    }
+
+    /**
+     * A class represented a message dispatched to a member of the group, in flight until it was written to the member
+     */
+    static final class Dispatch {
+
+        final SharedSubscription group;
+        final Member member;
+        final Delivery delivery;
+        final long publishedAt; //the System.nanoTime the message was published at
+        private final long order; //the order the group dispatched its messages in
+        final boolean redispatched; //true if the message was evicted from another member, it is not evicted again
+
+        private Dispatch(SharedSubscription group, Member member, Delivery delivery, long publishedAt, long order, boolean redispatched)
+        {
+            this.group = group;
+            this.member = member;
+            this.delivery = delivery;
+            this.publishedAt = publishedAt;
+            this.order = order;
+            this.redispatched = redispatched;
+        }
+
+        /**
+         * A method that called once the message was written to the member (or dropped by the slow consumer policy),
+         * the message is no longer in flight, and is not dispatched again if the member leaves
+         */
+        void done()
+        {
+            member.inFlight.remove(this);
+        }
+
+        /**
+         * A method that called once the slow consumer policy evicted the message from the queue of the member,
+         * the message is given back to the group, to be dispatched to another member,
+         * must be called without holding the lock of a queue, since the message is queued for another client
+         */
+        void evicted()
+        {
+            //a member that disconnected already gave its messages in flight back to the group
+            if (member.inFlight.remove(this)) {
+                group.redispatcher.accept(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.distribution.chat.server.src;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class represented the limits of the outbound queue of every client,
+ * the policy that applies when a slow client reaches them, and the counters of every policy and of the conflation
+ */
+public class SlowConsumerPolicy {
+
+    /**
+     * An enum that contains the policies when the outbound queue of a client is full
+     */
+    public enum Policy {
+        BLOCK, //the publisher waits until the queue has room (on the nio engine the newest message is dropped)
+        DROP_OLDEST, //the oldest waiting messages are dropped to make room
+        DROP_NEWEST, //the new message is dropped
+        DISCONNECT //the client is told the reason and disconnected
+    }
+
+    final int maxMessages;
+    final long maxBytes;
+    final Policy policy;
+
+    final LongAdder blockedPublishes = new LongAdder();
+    final LongAdder droppedOldest = new LongAdder();
+    final LongAdder droppedNewest = new LongAdder();
+    final LongAdder disconnectedClients = new LongAdder();
+    final LongAdder conflatedMessages = new LongAdder(); //waiting messages of a conflated topic replaced by a newer one
+
+    /**
+     * Constructor
+     * @param maxMessages - the maximum number of messages waiting to be written to a client
+     * @param maxBytes - the maximum number of bytes waiting to be written to a client
+     * @param policy - the policy when a client reaches one of the limits
+     */
+    SlowConsumerPolicy(int maxMessages, long maxBytes, Policy policy)
+    {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.policy = policy;
+    }
+
+    /**
+     * A method that create the policy from the configuration file
+     * @param config - properties file object
+     * @return A policy with the configured limits, missing settings get default values
+     */
+    static SlowConsumerPolicy fromConfig(Properties config)
+    {
+        return new SlowConsumerPolicy(
+                Integer.parseInt(config.getProperty("outbound.max.messages", "10000").trim()),
+                Long.parseLong(config.getProperty("outbound.max.bytes", "8388608").trim()),
+                Policy.valueOf(config.getProperty("outbound.policy", "block").trim().toUpperCase()));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "policy " + policy + " (max " + maxMessages + " messages, " + maxBytes + " bytes) - "
+                + "blocked publishes: " + blockedPublishes.sum()
+                + ", dropped oldest: " + droppedOldest.sum()
+                + ", dropped newest: " + droppedNewest.sum()
+                + ", disconnected clients: " + disconnectedClients.sum()
+                + ", conflated messages: " + conflatedMessages.sum();
+    }
+}
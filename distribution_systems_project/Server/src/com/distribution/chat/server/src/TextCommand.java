@@ -0,0 +1,54 @@
+package com.distribution.chat.server.src;
+
+import java.util.Arrays;
+
+/**
+ * A class represented a parsed text command, as a reusable view over the bytes of the line,
+ * the parser fills the same instance for every line of a connection, so parsing allocates nothing
+ */
+public class TextCommand {
+
+    /**
+     * An enum that contains the commands of the text protocol
+     */
+    public enum Opcode {
+        REGISTER,
+        LEAVE,
+        SEND,
+        CLOSE,
+        TOPICS, //getRegisterTopics
+        STATS, //the metrics of the broker
+        EMPTY, //a blank line, ignored
+        BAD_REQUEST
+    }
+
+    Opcode opcode;
+    String topic; //the topic, resolved through the topic cache of the parser
+    byte[] line; //the buffer that holds the line
+    int lineOffset;
+    int lineLength;
+    int contentOffset;
+    int contentLength;
+    TopicHistory.ReplayRequest replay; //the replay a REGISTER asked for
+    String where; //the content filter expression of a REGISTER, null if none
+    long requestId; //the id of a "#id COMMAND" line, echoed on the reply, NO_REQUEST_ID if the line was not tagged
+
+    /**
+     * A method that copy the content of a SEND command out of the line buffer
+     * @return the raw bytes of the content
+     */
+    byte[] copyContent()
+    {
+        return Arrays.copyOfRange(line, contentOffset, contentOffset + contentLength);
+    }
+
+    /**
+     * A method that decode the whole line, used only to report a bad request
+     * @return the line as text
+     */
+    @Override
+    public String toString()
+    {
+        return new String(line, lineOffset, lineLength, Delivery.CHARSET);
+    }
+}
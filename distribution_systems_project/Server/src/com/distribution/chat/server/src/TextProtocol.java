@@ -0,0 +1,108 @@
+package com.distribution.chat.server.src;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * A class represented the newline terminated text protocol of the server
+ */
+public class TextProtocol implements WireProtocol {
+
+    static final TextProtocol INSTANCE = new TextProtocol(false);
+    static final TextProtocol SEQUENCED = new TextProtocol(true);
+
+    private final boolean sequenced;
+
+    private TextProtocol(boolean sequenced)
+    {
+        this.sequenced = sequenced;
+    }
+
+    @Override
+    public ByteBuffer ok()
+    {
+        return line("OK");
+    }
+
+    @Override
+    public ByteBuffer error()
+    {
+        return line("ERROR");
+    }
+
+    @Override
+    public ByteBuffer error(String reason)
+    {
+        return line("ERROR - " + reason);
+    }
+
+    @Override
+    public ByteBuffer close()
+    {
+        return line("CLOSE");
+    }
+
+    @Override
+    public ByteBuffer topics(Collection<String> topics)
+    {
+        return line("*topics-" + topics.toString());
+    }
+
+    @Override
+    public ByteBuffer stats(String report)
+    {
+        return line("*stats-" + report);
+    }
+
+    /**
+     * A method that encode a published message as "( topic ) ip:port time -  content",
+     * the content is separated by two spaces, as the text clients always got it,
+     * the sequenced variant adds the sequence number after the time, "( topic ) ip:port time #sequence -  content",
+     * a line break in the content (a binary client may publish one) is replaced with a space,
+     * so a message is always a single line and never reads as a reply of the server
+     * @param delivery - the published message
+     * @return the encoded message
+     */
+    @Override
+    public ByteBuffer deliver(Delivery delivery)
+    {
+        String content = delivery.getContent();
+        if (content.indexOf('\n') >= 0 || content.indexOf('\r') >= 0) {
+            content = content.replace('\n', ' ').replace('\r', ' ');
+        }
+        return line("( " + delivery.topic + " ) " + delivery.sender + " " + delivery.time + (sequenced ? " #" + delivery.sequence : "")
+                + " - " + (content.isEmpty() ? "" : " " + content));
+    }
+
+    @Override
+    public WireProtocol withSequences()
+    {
+        return SEQUENCED;
+    }
+
+    /**
+     * A method that tag a reply line as "#requestId reply"
+     * @param requestId - the request id the client tagged the command with
+     * @param reply - the encoded reply line
+     * @return the tagged reply
+     */
+    @Override
+    public ByteBuffer tag(long requestId, ByteBuffer reply)
+    {
+        byte[] prefix = ("#" + requestId + " ").getBytes(Delivery.CHARSET);
+        ByteBuffer tagged = ByteBuffer.allocate(prefix.length + reply.remaining());
+        tagged.put(prefix).put(reply.duplicate());
+        tagged.flip();
+        return tagged;
+    }
+
+    /**
+     * A method that encode a single line
+     * @param message - the line without the line terminator
+     * @return the encoded line
+     */
+    static ByteBuffer line(String message)
+    {
+        return ByteBuffer.wrap((message + "\n").getBytes(Delivery.CHARSET));
+    }
+}
@@ -0,0 +1,189 @@
+package com.distribution.chat.server.src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A class represented the recent history of a single topic, in order to replay it to a client that registers late,
+ * every published message gets the next sequence number of its topic and is kept in a ring of preallocated slots,
+ * the publish and the replaying REGISTER of a topic hold its lock, so the replayed and the live messages
+ * have no gap and no duplicate between them,
+ * the last message is kept apart from the ring, for the new subscribers of a conflated topic
+ */
+public class TopicHistory {
+
+    /**
+     * An enum that contains the ways a REGISTER asks to replay the history of its topic
+     */
+    public enum Replay {
+        NONE, //only the messages published after the REGISTER
+        FROM, //the messages from a sequence number, the ones older than the kept messages are read from the store
+        LAST //the last kept messages
+    }
+
+    final ReentrantLock lock = new ReentrantLock();
+    private final Delivery[] slots; //guarded by the lock
+    private final long[] publishedAt;
+    private final long maxAgeMillis;
+    private final long firstSequence; //the sequence number the history started from, the older messages are only in the store
+    private long nextSequence;
+    private Delivery last; //the last published message, guarded by the lock
+    volatile boolean conflated; //true if the subscribers of the topic hold only its latest message
+
+    /**
+     * Constructor
+     * @param size - the number of messages to keep (0 - none)
+     * @param maxAgeSeconds - the maximum age of a replayed message (0 - no limit)
+     * @param firstSequence - the sequence number of the next message of the topic
+     */
+    TopicHistory(int size, long maxAgeSeconds, long firstSequence)
+    {
+        this.slots = new Delivery[size];
+        this.publishedAt = new long[size];
+        this.maxAgeMillis = TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+        this.firstSequence = firstSequence;
+        this.nextSequence = firstSequence;
+    }
+
+    /**
+     * A method that give a published message the next sequence number and keep it,
+     * the oldest kept message is overwritten, must be called while holding the lock
+     * @param delivery - the published message
+     */
+    void append(Delivery delivery)
+    {
+        delivery.sequence = nextSequence;
+        last = delivery;
+        if (slots.length > 0) {
+            int slot = (int) (nextSequence % slots.length);
+            slots[slot] = delivery;
+            publishedAt[slot] = System.currentTimeMillis();
+        }
+        nextSequence++;
+    }
+
+    /**
+     * A method that retrieve the last published message, must be called while holding the lock
+     * @return the last message, or null if none was published since the server started
+     */
+    Delivery last()
+    {
+        return last;
+    }
+
+    /**
+     * A method that retrieve the kept messages a REGISTER asked to replay, oldest first,
+     * must be called while holding the lock
+     * @param request - the replay the REGISTER asked for
+     * @return A list of the messages to replay
+     */
+    List<Delivery> replay(ReplayRequest request)
+    {
+        long value = request.value;
+        long oldest = oldestSequence();
+        long from;
+        switch (request.replay) {
+            case FROM:
+                from = Math.max(value, oldest);
+                break;
+            case LAST:
+                from = Math.max(nextSequence - value, oldest);
+                break;
+            default:
+                from = nextSequence;
+                break;
+        }
+        long minPublishedAt = minPublishedAt();
+        List<Delivery> messages = new ArrayList<>((int) Math.max(0, nextSequence - from));
+        for (long sequence = from; sequence < nextSequence; sequence++) {
+            int slot = (int) (sequence % slots.length);
+            if (slots[slot] != null && publishedAt[slot] >= minPublishedAt) {
+                messages.add(slots[slot]);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * A method that retrieve the sequence number of the oldest kept message, the older ones are only in the store,
+     * must be called while holding the lock
+     * @return the oldest sequence number of the ring, the next sequence number if the ring is empty
+     */
+    long oldestSequence()
+    {
+        return Math.max(firstSequence, nextSequence - slots.length);
+    }
+
+    /**
+     * A method that retrieve the time the oldest message that may be replayed was published at
+     * @return the time in milliseconds, Long.MIN_VALUE if the replayed messages have no maximum age
+     */
+    long minPublishedAt()
+    {
+        return maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+    }
+
+    /**
+     * A class represented the replay a REGISTER asked for, and whether the client asked for the latest message of a topic only
+     */
+    static final class ReplayRequest {
+
+        static final ReplayRequest NONE = new ReplayRequest(Replay.NONE, 0, false);
+        static final ReplayRequest CONFLATE = new ReplayRequest(Replay.NONE, 0, true);
+        static final String CONFLATE_OPTION = "CONFLATE";
+
+        final Replay replay;
+        final long value; //the first sequence number for FROM, the number of messages for LAST
+        final boolean conflate; //true if a newer message of a topic replaces the one that waits for the client
+
+        private ReplayRequest(Replay replay, long value, boolean conflate)
+        {
+            this.replay = replay;
+            this.value = value;
+            this.conflate = conflate;
+        }
+
+        /**
+         * A method that parse the replay request of a REGISTER, "FROM sequence" or "LAST count", case insensitive,
+         * that may end with "CONFLATE"
+         * @param buffer - the buffer that holds the request
+         * @param from - the offset of the request in the buffer
+         * @param to - the offset after the request
+         * @return the replay request, NONE if the request is blank, or null if it is not valid
+         */
+        static ReplayRequest parse(byte[] buffer, int from, int to)
+        {
+            String[] tokens = new String(buffer, from, to - from, Delivery.CHARSET).trim().split(" +");
+            if (tokens.length == 1 && tokens[0].isEmpty()) {
+                return NONE;
+            }
+            boolean conflate = tokens[tokens.length - 1].equalsIgnoreCase(CONFLATE_OPTION);
+            if (conflate) {
+                if (tokens.length == 1) {
+                    return CONFLATE;
+                }
+                tokens = Arrays.copyOf(tokens, tokens.length - 1);
+            }
+            if (tokens.length != 2) {
+                return null;
+            }
+            Replay replay;
+            if (tokens[0].equalsIgnoreCase(Replay.FROM.name())) {
+                replay = Replay.FROM;
+            } else if (tokens[0].equalsIgnoreCase(Replay.LAST.name())) {
+                replay = Replay.LAST;
+            } else {
+                return null;
+            }
+            try {
+                long value = Long.parseLong(tokens[1]);
+                return value < 0 ? null : new ReplayRequest(replay, value, conflate);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
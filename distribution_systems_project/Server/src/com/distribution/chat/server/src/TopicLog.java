@@ -0,0 +1,191 @@
+package com.distribution.chat.server.src;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A class represented the durable append-only log of a single topic, made of segment files in the directory of the topic,
+ * only the writer thread of the message store appends, and a reader may read concurrently
+ */
+public class TopicLog {
+
+    final String topic;
+    private final File dir;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final List<LogSegment> segments = new ArrayList<>(); //sorted by base offset, the last one is active
+    private boolean dirty = false; //true if records were appended since the last force
+    private volatile boolean keepsSequences = true; //false once a message got an offset other than its sequence number
+
+    /**
+     * Constructor that opens the existing segments of the topic, or creates its first segment
+     * @param dir - the directory of the topic log
+     * @param topic - the topic of the log
+     * @param segmentSize - the size of a segment file
+     * @param indexInterval - the number of record bytes between two index entries
+     */
+    TopicLog(File dir, String topic, int segmentSize, int indexInterval) throws IOException
+    {
+        this.dir = dir;
+        this.topic = topic;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create the topic log directory " + dir);
+        }
+        long[] baseOffsets = existingBaseOffsets(dir);
+        for (int i = 0; i < baseOffsets.length - 1; i++) {
+            segments.add(LogSegment.sealed(dir, baseOffsets[i], baseOffsets[i + 1], indexInterval));
+        }
+        if (baseOffsets.length > 0) {
+            segments.add(LogSegment.recover(dir, baseOffsets[baseOffsets.length - 1], segmentSize, indexInterval));
+        } else {
+            segments.add(LogSegment.create(dir, 0, segmentSize, indexInterval));
+        }
+    }
+
+    /**
+     * A method that append a message to the end of the log, a full segment is sealed and a new one is created,
+     * the offsets of the log stop being the sequence numbers of the topic once a message was not stored
+     * @param delivery - the published message
+     * @param timestamp - the time the message was appended, in milliseconds
+     * @return the offset of the message in the log
+     */
+    synchronized long append(Delivery delivery, long timestamp) throws IOException
+    {
+        byte[] meta = (delivery.sender + " " + delivery.time).getBytes(Delivery.CHARSET);
+        byte[] payload = delivery.getPayload();
+        LogSegment active = active();
+        if (!active.fits(meta, payload)) {
+            active.seal();
+            long nextOffset = active.nextOffset();
+            //a message larger than a segment gets a segment of its own size
+            int size = Math.max(segmentSize, meta.length + payload.length + 64);
+            active = LogSegment.create(dir, nextOffset, size, indexInterval);
+            segments.add(active);
+        }
+        dirty = true;
+        long offset = active.append(timestamp, delivery.isTextual(), meta, payload);
+        if (offset != delivery.sequence) {
+            keepsSequences = false;
+        }
+        return offset;
+    }
+
+    /**
+     * A method that checks if the offsets of the log are still the sequence numbers of its topic,
+     * they are not after the store dropped a message of the topic, or did not store it while it was closed
+     * @return true if every message appended since the log was opened got its sequence number as its offset
+     */
+    boolean keepsSequences()
+    {
+        return keepsSequences;
+    }
+
+    /**
+     * A method that read the messages of the log from an offset
+     * @param fromOffset - the offset of the first message to read
+     * @param maxMessages - the maximum number of messages to read
+     * @param minTimestamp - the messages appended before this time, in milliseconds, are skipped
+     * @return A list of the messages, empty if the log has no message at or after the offset
+     */
+    synchronized List<Delivery> read(long fromOffset, int maxMessages, long minTimestamp) throws IOException
+    {
+        List<Delivery> messages = new ArrayList<>();
+        for (LogSegment segment : segments) {
+            if (segment.nextOffset() > fromOffset && messages.size() < maxMessages) {
+                segment.read(topic, Math.max(fromOffset, segment.baseOffset), maxMessages, minTimestamp, messages);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * A method that write the appended messages to the disk, if there are any
+     */
+    synchronized void force()
+    {
+        if (dirty) {
+            active().force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * A method that delete the oldest sealed segments, while the log is larger than the maximum size
+     * or the segment is older than the maximum age, the active segment is never deleted
+     * @param maxBytes - the maximum size of the log (0 - no size retention)
+     * @param maxAgeMillis - the maximum age of a sealed segment (0 - no age retention)
+     */
+    synchronized void applyRetention(long maxBytes, long maxAgeMillis)
+    {
+        long size = 0;
+        for (LogSegment segment : segments) {
+            size += segment.size();
+        }
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.get(0);
+            boolean bySize = maxBytes > 0 && size > maxBytes;
+            boolean byAge = maxAgeMillis > 0 && now - oldest.logFile.lastModified() > maxAgeMillis;
+            if (!bySize && !byAge) {
+                break;
+            }
+            size -= oldest.size();
+            oldest.delete();
+            segments.remove(0);
+        }
+    }
+
+    /**
+     * A method that retrieve the offset the next message of the topic would get
+     * @return the next offset
+     */
+    synchronized long nextOffset()
+    {
+        return active().nextOffset();
+    }
+
+    /**
+     * A method that close the files of the active segment
+     */
+    synchronized void close() throws IOException
+    {
+        active().close();
+    }
+
+    private LogSegment active()
+    {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * A method that find the base offsets of the segment files in the directory of a topic
+     * @param dir - the directory of the topic log
+     * @return the sorted base offsets
+     */
+    private static long[] existingBaseOffsets(File dir)
+    {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(LogSegment.LOG_SUFFIX));
+        if (files == null) {
+            return new long[0];
+        }
+        long[] baseOffsets = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                baseOffsets[count] = Long.parseLong(name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                //not a segment file
+            }
+        }
+        baseOffsets = Arrays.copyOf(baseOffsets, count);
+        Arrays.sort(baseOffsets);
+        return baseOffsets;
+    }
+}
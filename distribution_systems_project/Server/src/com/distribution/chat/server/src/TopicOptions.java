@@ -0,0 +1,38 @@
+package com.distribution.chat.server.src;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A class represented the options of the subscriptions that match a topic, resolved once per topic for the fan-out,
+ * so the fan-out checks a subscriber with a single hashed lookup, instead of matching its subscriptions on every message,
+ * the options are resolved again after every REGISTER and LEAVE
+ */
+final class TopicOptions {
+
+    final long generation; //the generation of the subscriptions the options were resolved at
+    final Set<ClientConnection> conflating; //the subscribers that registered to a filter of the topic with CONFLATE
+    //the content filters of the subscribers whose every subscription that matches the topic has a content filter,
+    //a message passes to such a subscriber if one of its filters accepts it
+    final Map<ClientConnection, ContentFilter[]> contentFilters;
+
+    /**
+     * Constructor
+     * @param generation - the generation of the subscriptions the options were resolved at
+     * @param conflating - the subscribers that conflate the topic
+     * @param contentFilters - the content filters of the filtered subscribers of the topic
+     */
+    TopicOptions(long generation, Set<ClientConnection> conflating, Map<ClientConnection, ContentFilter[]> contentFilters)
+    {
+        this.generation = generation;
+        if (conflating.isEmpty()) {
+            this.conflating = Collections.emptySet();
+        } else {
+            this.conflating = Collections.newSetFromMap(new IdentityHashMap<>());
+            this.conflating.addAll(conflating);
+        }
+        this.contentFilters = contentFilters;
+    }
+}
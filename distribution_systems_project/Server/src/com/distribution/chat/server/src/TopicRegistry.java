@@ -0,0 +1,313 @@
+package com.distribution.chat.server.src;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A class represented an index from topic filters to their subscribers,
+ * the topics are hierarchical levels separated by '/', and a filter may hold the wildcards
+ * '+' (exactly one level) and '#' (any number of levels, only as the last level), as in MQTT,
+ * the filters are kept in a trie, so matching a topic depends on its depth and not on the number of subscriptions,
+ * the result of matching a hot topic is cached until the next REGISTER or LEAVE,
+ * the subscribers are the client connections, or the shared subscriptions of the groups of clients
+ */
+public class TopicRegistry<S> {
+
+    static final char LEVEL_SEPARATOR = '/';
+    static final String SINGLE_LEVEL = "+";
+    static final String MULTI_LEVEL = "#";
+    static final int MAX_CACHED_TOPICS = 4096;
+
+    /**
+     * A class represented a single level in the trie of the topic filters
+     */
+    private static final class Node<S> {
+        final ConcurrentHashMap<String, Node<S>> children = new ConcurrentHashMap<>();
+        final CopyOnWriteArraySet<S> subscribers = new CopyOnWriteArraySet<>();
+
+        boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+
+    private final Node<S> root = new Node<>();
+    private final ReentrantLock writeLock = new ReentrantLock(); //the matching walks the trie without a lock
+    private final ConcurrentHashMap<String, Set<S>> matchCache = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong(); //changes on every REGISTER and LEAVE
+
+    /**
+     * A method that checks if a topic filter is valid, the wildcards must occupy a whole level,
+     * and '#' may only be the last level
+     * @param filter - the topic filter of a REGISTER
+     * @return true if the filter is valid
+     */
+    static boolean isValidFilter(String filter)
+    {
+        if (filter == null || filter.isEmpty()) {
+            return false;
+        }
+        List<String> levels = split(filter);
+        for (int i = 0; i < levels.size(); i++) {
+            String level = levels.get(i);
+            if (level.equals(MULTI_LEVEL)) {
+                if (i != levels.size() - 1) {
+                    return false;
+                }
+            } else if (!level.equals(SINGLE_LEVEL) && (level.indexOf('+') >= 0 || level.indexOf('#') >= 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A method that checks if a topic holds a wildcard, such a topic can not be published to
+     * @param topic - the topic of a published message
+     * @return true if the topic holds '+' or '#'
+     */
+    static boolean hasWildcard(String topic)
+    {
+        return topic.indexOf('+') >= 0 || topic.indexOf('#') >= 0;
+    }
+
+    /**
+     * A method that checks if a topic of a binary client could be sent by a text client too,
+     * the topic must not be empty, and must not hold a space or a line break
+     * @param topic - the topic of a binary SEND or BATCH entry
+     * @return true if the topic is valid
+     */
+    static boolean isValidTopic(String topic)
+    {
+        if (topic.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < topic.length(); i++) {
+            char c = topic.charAt(i);
+            if (c == ' ' || c == '\n' || c == '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A method that checks if a topic filter matches a topic, with the same rules as the matching of the subscribers
+     * @param filter - a valid topic filter
+     * @param topic - a topic without wildcards
+     * @return true if a message of the topic reaches the subscribers of the filter
+     */
+    static boolean matches(String filter, String topic)
+    {
+        List<String> filterLevels = split(filter);
+        List<String> topicLevels = split(topic);
+        for (int i = 0; i < filterLevels.size(); i++) {
+            String level = filterLevels.get(i);
+            if (level.equals(MULTI_LEVEL)) {
+                //'#' matches the rest of the levels, including none
+                return true;
+            }
+            if (i == topicLevels.size() || (!level.equals(SINGLE_LEVEL) && !level.equals(topicLevels.get(i)))) {
+                return false;
+            }
+        }
+        return filterLevels.size() == topicLevels.size();
+    }
+
+    /**
+     * A method that register a client to a topic filter
+     * @param filter - the topic filter to register to
+     * @param client - instance of the client connection
+     * @return true if the client was not registered to the filter before, false otherwise
+     */
+    boolean subscribe(String filter, S client) {
+        writeLock.lock();
+        try {
+            Node<S> node = root;
+            for (String level : split(filter)) {
+                node = node.children.computeIfAbsent(level, l -> new Node<>());
+            }
+            boolean added = node.subscribers.add(client);
+            if (added) {
+                invalidate();
+            }
+            return added;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * A method that unregister a client from a topic filter,
+     * the levels of the filter are removed from the trie when no subscription passes through them
+     * @param filter - the topic filter to leave
+     * @param client - instance of the client connection
+     * @return true if the client was registered to the filter, false otherwise
+     */
+    boolean unsubscribe(String filter, S client) {
+        writeLock.lock();
+        try {
+            List<String> levels = split(filter);
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Node<S>[] path = new Node[levels.size() + 1];
+            path[0] = root;
+            for (int i = 0; i < levels.size(); i++) {
+                path[i + 1] = path[i].children.get(levels.get(i));
+                if (path[i + 1] == null) {
+                    return false;
+                }
+            }
+            if (!path[levels.size()].subscribers.remove(client)) {
+                return false;
+            }
+            for (int i = levels.size(); i > 0 && path[i].isEmpty(); i--) {
+                path[i - 1].children.remove(levels.get(i - 1));
+            }
+            invalidate();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * A method that unregister a client from all the given topic filters
+     * @param client - instance of the client connection
+     * @param filters - the topic filters the client registered to
+     */
+    void unsubscribeAll(S client, Set<String> filters) {
+        for (String filter : filters) {
+            unsubscribe(filter, client);
+        }
+    }
+
+    /**
+     * A method that retrieve the subscribers of a topic, of all the filters that match it,
+     * a client that registered to several matching filters is returned once,
+     * iterating the returned set never blocks a REGISTER or a LEAVE
+     * @param topic - the topic of the message
+     * @return A set of the clients that registered to a filter that matches the topic
+     */
+    Set<S> getSubscribers(String topic) {
+        Set<S> cached = matchCache.get(topic);
+        if (cached != null) {
+            return cached;
+        }
+        long matchedGeneration = generation.get();
+        Set<S> matched = match(topic);
+        if (matchCache.size() >= MAX_CACHED_TOPICS) {
+            matchCache.clear();
+        }
+        matchCache.put(topic, matched);
+        //a REGISTER or a LEAVE while matching may have been missed, so the result must not stay in the cache
+        if (generation.get() != matchedGeneration) {
+            matchCache.remove(topic, matched);
+        }
+        return matched;
+    }
+
+    /**
+     * A method that count the subscribers of every topic filter, by walking the whole trie
+     * @return A map of topic filter to the number of its subscribers, sorted by the filter
+     */
+    Map<String, Integer> subscriberCounts() {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Map.Entry<String, Node<S>> child : root.children.entrySet()) {
+            count(child.getValue(), child.getKey(), counts);
+        }
+        return counts;
+    }
+
+    private static <S> void count(Node<S> node, String filter, Map<String, Integer> counts) {
+        if (!node.subscribers.isEmpty()) {
+            counts.put(filter, node.subscribers.size());
+        }
+        for (Map.Entry<String, Node<S>> child : node.children.entrySet()) {
+            count(child.getValue(), filter + LEVEL_SEPARATOR + child.getKey(), counts);
+        }
+    }
+
+    /**
+     * A method that walk the trie with the levels of a topic and collect the subscribers of every matching filter
+     * @param topic - the topic of the message
+     * @return A set of the matching clients
+     */
+    private Set<S> match(String topic) {
+        List<String> levels = split(topic);
+        List<Node<S>> matches = new ArrayList<>();
+        collect(root, levels, 0, matches);
+        if (matches.isEmpty()) {
+            return Collections.emptySet();
+        }
+        if (matches.size() == 1) {
+            return Collections.unmodifiableSet(matches.get(0).subscribers);
+        }
+        Set<S> clients = new LinkedHashSet<>();
+        for (Node<S> node : matches) {
+            clients.addAll(node.subscribers);
+        }
+        return Collections.unmodifiableSet(clients);
+    }
+
+    /**
+     * A method that collect the nodes of the filters that match the rest of the topic levels
+     * @param node - the node of the levels matched so far
+     * @param levels - the levels of the topic
+     * @param depth - the number of levels matched so far
+     * @param matches - the list to add the matching nodes to
+     */
+    private static <S> void collect(Node<S> node, List<String> levels, int depth, List<Node<S>> matches) {
+        //'#' matches the rest of the levels, including none
+        Node<S> multi = node.children.get(MULTI_LEVEL);
+        if (multi != null && !multi.subscribers.isEmpty()) {
+            matches.add(multi);
+        }
+        if (depth == levels.size()) {
+            if (!node.subscribers.isEmpty()) {
+                matches.add(node);
+            }
+            return;
+        }
+        Node<S> exact = node.children.get(levels.get(depth));
+        if (exact != null) {
+            collect(exact, levels, depth + 1, matches);
+        }
+        Node<S> single = node.children.get(SINGLE_LEVEL);
+        if (single != null) {
+            collect(single, levels, depth + 1, matches);
+        }
+    }
+
+    /**
+     * A method that drop the cached matches after the subscriptions changed
+     */
+    private void invalidate() {
+        generation.incrementAndGet();
+        matchCache.clear();
+    }
+
+    /**
+     * A method that split a topic or a filter into its levels
+     * @param topic - the topic or the filter
+     * @return A list of the levels
+     */
+    private static List<String> split(String topic) {
+        List<String> levels = new ArrayList<>(4);
+        int start = 0;
+        int separator;
+        while ((separator = topic.indexOf(LEVEL_SEPARATOR, start)) >= 0) {
+            levels.add(topic.substring(start, separator));
+            start = separator + 1;
+        }
+        levels.add(topic.substring(start));
+        return levels;
+    }
+}
@@ -0,0 +1,75 @@
+package com.distribution.chat.server.src;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * An interface represented the encoding of the server messages for a connection,
+ * in order to serve text and binary clients with the same broker
+ */
+public interface WireProtocol {
+
+    long NO_REQUEST_ID = -1; //the request id of a command that was not tagged by the client
+
+    /**
+     * A method that encode a successful reply
+     * @return the encoded reply
+     */
+    ByteBuffer ok();
+
+    /**
+     * A method that encode a failure reply
+     * @return the encoded reply
+     */
+    ByteBuffer error();
+
+    /**
+     * A method that encode a failure with its reason
+     * @param reason - the reason of the failure
+     * @return the encoded reply
+     */
+    ByteBuffer error(String reason);
+
+    /**
+     * A method that encode the closing of the connection by the server
+     * @return the encoded message
+     */
+    ByteBuffer close();
+
+    /**
+     * A method that encode the topics the client registered to
+     * @param topics - the registered topics (may be empty)
+     * @return the encoded reply
+     */
+    ByteBuffer topics(Collection<String> topics);
+
+    /**
+     * A method that encode the metrics of the broker, as the STATS command replies
+     * @param report - the metrics in a single line
+     * @return the encoded reply
+     */
+    ByteBuffer stats(String report);
+
+    /**
+     * A method that encode a published message for a subscriber
+     * @param delivery - the published message
+     * @return the encoded message
+     */
+    ByteBuffer deliver(Delivery delivery);
+
+    /**
+     * A method that retrieve the variant of the protocol that adds the sequence number of the topic to every published message,
+     * in order to let a client that replays the history of a topic know where to continue from
+     * @return the protocol with sequence numbers
+     */
+    WireProtocol withSequences();
+
+    /**
+     * A method that tag an encoded reply with the request id of the command it answers,
+     * in order to let a client keep many commands in flight on one connection
+     * @param requestId - the request id the client tagged the command with
+     * @param reply - the encoded reply
+     * @return the tagged reply
+     */
+    ByteBuffer tag(long requestId, ByteBuffer reply);
+}
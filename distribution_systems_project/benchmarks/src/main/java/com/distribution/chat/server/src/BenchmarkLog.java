@@ -0,0 +1,31 @@
+package com.distribution.chat.server.src;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * A class represented the log of the server for a benchmark,
+ * the log is written to a temporary directory as the server writes it, and the console is quiet
+ */
+public class BenchmarkLog {
+
+    private BenchmarkLog()
+    {
+    }
+
+    /**
+     * A method that start the log writer of the server in a temporary directory
+     * @param overflow - the overflow policy of the log queue (block or drop)
+     */
+    static void start(String overflow) throws IOException
+    {
+        File dir = Files.createTempDirectory("chat-benchmark").toFile();
+        dir.deleteOnExit();
+        Properties config = new Properties();
+        config.setProperty("console.mode", "quiet");
+        config.setProperty("log.overflow", overflow);
+        Server.initLogWriter(new File(dir, "ChatLog.log"), config);
+    }
+}
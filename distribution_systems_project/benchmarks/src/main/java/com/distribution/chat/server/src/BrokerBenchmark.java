@@ -0,0 +1,93 @@
+package com.distribution.chat.server.src;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class represented the benchmarks of REGISTER, LEAVE and SEND through the broker,
+ * across numbers of connections and topics, every topic has a subscriber and every connection registered to a topic,
+ * the connections write into in-memory sinks
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BrokerBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int connections;
+
+    @Param({"1", "100", "10000"})
+    public int topics;
+
+    private Broker broker;
+    private SinkConnection client;
+    private CommandParser parser;
+    private byte[] register;
+    private byte[] leave;
+    private byte[][] sends;
+    private int nextTopic = 0;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        BenchmarkLog.start("block");
+        broker = new Broker();
+        parser = new CommandParser();
+        SinkConnection[] clients = new SinkConnection[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new SinkConnection(i, TextProtocol.INSTANCE);
+            broker.addClient(clients[i]);
+        }
+        for (int i = 0; i < Math.max(connections, topics); i++) {
+            process(clients[i % connections], bytes("REGISTER topic/" + (i % topics)));
+        }
+        client = new SinkConnection(connections, TextProtocol.INSTANCE);
+        broker.addClient(client);
+        register = bytes("REGISTER bench/fresh");
+        leave = bytes("LEAVE bench/fresh");
+        sends = new byte[topics][];
+        for (int i = 0; i < topics; i++) {
+            sends[i] = bytes("SEND topic/" + i + " the final score is 2-1");
+        }
+    }
+
+    @Benchmark
+    public String registerAndLeave()
+    {
+        process(client, register);
+        return process(client, leave);
+    }
+
+    @Benchmark
+    public String send()
+    {
+        int topic = nextTopic;
+        nextTopic = topic + 1 == topics ? 0 : topic + 1;
+        return process(client, sends[topic]);
+    }
+
+    private String process(SinkConnection connection, byte[] line)
+    {
+        return broker.processCommand(connection, parser.parse(line, 0, line.length));
+    }
+
+    private static byte[] bytes(String line)
+    {
+        return line.getBytes(Delivery.CHARSET);
+    }
+}
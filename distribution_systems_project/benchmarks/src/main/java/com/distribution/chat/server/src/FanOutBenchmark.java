@@ -0,0 +1,113 @@
+package com.distribution.chat.server.src;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class represented the benchmarks of publishing a message to the subscribers of a single topic,
+ * the subscribers write into in-memory sinks instead of sockets,
+ * with the fan-out on the publisher thread or split in parallel chunks from 256 subscribers up,
+ * a burst of messages is published either as separate SENDs or as a single BATCH frame, the score is per message
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+    private static final int BURST = 16;
+
+    @Param({"1", "10", "100", "1000"})
+    public int subscribers;
+
+    @Param({"text", "binary"})
+    public String protocol;
+
+    @Param({"0", "256"})
+    public String fanOutThreshold; //0 - the fan-out runs on the publisher thread
+
+    private Broker broker;
+    private SinkConnection publisher;
+    private byte[] frame;
+    private CommandParser parser;
+    private byte[] line;
+    private byte[] batch;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        BenchmarkLog.start("block");
+        broker = new Broker();
+        Properties config = new Properties();
+        config.setProperty("fanout.parallel.threshold", fanOutThreshold);
+        config.setProperty("fanout.chunk.size", "128");
+        broker.configure(config);
+        parser = new CommandParser();
+        WireProtocol wireProtocol = "binary".equals(protocol) ? BinaryProtocol.INSTANCE : TextProtocol.INSTANCE;
+        for (int i = 0; i < subscribers; i++) {
+            SinkConnection subscriber = new SinkConnection(i, wireProtocol);
+            broker.addClient(subscriber);
+            byte[] register = "REGISTER fanout/topic".getBytes(Delivery.CHARSET);
+            broker.processCommand(subscriber, parser.parse(register, 0, register.length));
+        }
+        publisher = new SinkConnection(subscribers, wireProtocol);
+        broker.addClient(publisher);
+        line = "SEND fanout/topic the final score is 2-1".getBytes(Delivery.CHARSET);
+        frame = BinaryProtocol.frame(BinaryProtocol.SEND, new byte[0], "fanout/topic".getBytes(Delivery.CHARSET),
+                "the final score is 2-1".getBytes(Delivery.CHARSET)).array();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        for (int i = 0; i < BURST; i++) {
+            out.writeShort("fanout/topic".length());
+            out.write("fanout/topic".getBytes(Delivery.CHARSET));
+            out.writeInt("the final score is 2-1".length());
+            out.write("the final score is 2-1".getBytes(Delivery.CHARSET));
+        }
+        batch = BinaryProtocol.frame(BinaryProtocol.BATCH, new byte[0], new byte[0], entries.toByteArray()).array();
+    }
+
+    @Benchmark
+    public String publish()
+    {
+        if (publisher.getProtocol() == BinaryProtocol.INSTANCE) {
+            return broker.processFrame(publisher, frame, 0, frame.length);
+        }
+        return broker.processCommand(publisher, parser.parse(line, 0, line.length));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public String publishBurst()
+    {
+        String reply = null;
+        for (int i = 0; i < BURST; i++) {
+            reply = publish();
+        }
+        return reply;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public String publishBatch()
+    {
+        return broker.processFrame(publisher, batch, 0, batch.length);
+    }
+}
@@ -0,0 +1,64 @@
+package com.distribution.chat.server.src;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class represented the benchmarks of the log of the server and of the time stamps it formats,
+ * a blocking log measures the writer thread throughput, a dropping log measures the cost to the caller
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggingBenchmark {
+
+    @Param({"block", "drop"})
+    public String overflow;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        BenchmarkLog.start(overflow);
+    }
+
+    @Benchmark
+    public void writeToLog()
+    {
+        Server.writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client /127.0.0.1:10000 sent the final score is 2-1 on topic news/sport");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void writeToLogContended()
+    {
+        Server.writeToLog(Server.LOG_LEVEL.INFO.toString(), "Client /127.0.0.1:10000 sent the final score is 2-1 on topic news/sport");
+    }
+
+    @Benchmark
+    public String getCurrentDateTimeStamp()
+    {
+        return Server.getCurrentDateTimeStamp();
+    }
+
+    @Benchmark
+    public String getCurrentTimeStamp()
+    {
+        return Server.getCurrentTimeStamp();
+    }
+}
@@ -0,0 +1,54 @@
+package com.distribution.chat.server.src;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class represented the benchmarks of parsing a text command,
+ * the string parser Server.parseRawMessage against the in place parser the connections use
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    @Param({"SEND news/sport the final score is 2-1", "REGISTER news/sport", "LEAVE news/sport", "getRegisterTopics"})
+    public String line;
+
+    private byte[] lineBytes;
+    private CommandParser parser;
+
+    @Setup
+    public void setup()
+    {
+        lineBytes = line.getBytes(Delivery.CHARSET);
+        parser = new CommandParser();
+    }
+
+    @Benchmark
+    public Hashtable<Server.TokenType, String> parseRawMessage()
+    {
+        return Server.parseRawMessage(line);
+    }
+
+    @Benchmark
+    public TextCommand commandParser()
+    {
+        return parser.parse(lineBytes, 0, lineBytes.length);
+    }
+}
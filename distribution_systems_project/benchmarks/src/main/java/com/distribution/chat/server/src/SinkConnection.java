@@ -0,0 +1,77 @@
+package com.distribution.chat.server.src;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A class represented a client connection that writes its messages into an in-memory sink instead of a socket,
+ * in order to benchmark the broker without the network, the bytes are copied as the writer of a connection copies them
+ */
+public class SinkConnection implements ClientConnection {
+
+    private final String ipPort;
+    private final byte[] sink = new byte[64 * 1024];
+    private volatile WireProtocol protocol;
+    long messages = 0;
+    long bytes = 0;
+
+    /**
+     * Constructor
+     * @param id - a number that tells the connection apart
+     * @param protocol - the protocol of the connection
+     */
+    SinkConnection(int id, WireProtocol protocol)
+    {
+        this.ipPort = "/127.0.0.1:" + (10000 + id);
+        this.protocol = protocol;
+    }
+
+    @Override
+    public WireProtocol getProtocol()
+    {
+        return protocol;
+    }
+
+    @Override
+    public void setProtocol(WireProtocol protocol)
+    {
+        this.protocol = protocol;
+    }
+
+    /**
+     * A method that copy an encoded message into the sink
+     * @param message - the encoded message
+     * @param publishedAt - the time the message was published at
+     */
+    @Override
+    public void send(ByteBuffer message, long publishedAt)
+    {
+        int length = Math.min(message.remaining(), sink.length);
+        message.get(message.position(), sink, 0, length);
+        messages++;
+        bytes += message.remaining();
+    }
+
+    @Override
+    public int getOutboundDepth()
+    {
+        return 0;
+    }
+
+    @Override
+    public String getIpPort()
+    {
+        return ipPort;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        //nothing to close
+    }
+
+    @Override
+    public String toString()
+    {
+        return "sink " + ipPort;
+    }
+}